@@ -0,0 +1,107 @@
+package poetry.test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+import poetry.database.BulkSession;
+import poetry.test.data.DatabaseHelper;
+
+public class BulkSessionTestCase extends AndroidTestCase
+{
+    public void testSettingsAreRestored() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        long cache_size = queryWriterPragma(database, "cache_size");
+        long temp_store = queryWriterPragma(database, "temp_store");
+
+        BulkSession session = new BulkSession(database);
+        session.setCacheSize(32 * 1024);
+        session.begin();
+
+        assertTrue(session.isActive());
+        assertEquals(-32 * 1024, queryWriterPragma(database, "cache_size"));
+        assertEquals(2, queryWriterPragma(database, "temp_store"));
+
+        session.end();
+
+        assertFalse(session.isActive());
+        assertFalse(database.inTransaction());
+        assertEquals(cache_size, queryWriterPragma(database, "cache_size"));
+        assertEquals(temp_store, queryWriterPragma(database, "temp_store"));
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testEndFailsWhileAnotherConnectionWrites() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        if (!database.isWriteAheadLoggingEnabled())
+        {
+            database.enableWriteAheadLogging();
+        }
+
+        long cache_size = queryWriterPragma(database, "cache_size");
+        BulkSession session = helper.beginBulkSession();
+
+        // Another connection holds the write lock, so the session can't bind to the writer connection
+        SQLiteDatabase other_database = SQLiteDatabase.openDatabase(database.getPath(), null,
+            SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        other_database.beginTransactionNonExclusive();
+
+        try
+        {
+            session.end();
+            fail("expected end() to fail while the database is locked");
+        }
+        catch (SQLiteException e)
+        {
+            // The session can be ended again and the thread is not left in a transaction
+            assertTrue(session.isActive());
+            assertFalse(database.inTransaction());
+        }
+        finally
+        {
+            other_database.endTransaction();
+            other_database.close();
+        }
+
+        session.end();
+
+        assertFalse(session.isActive());
+        assertEquals(cache_size, queryWriterPragma(database, "cache_size"));
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    /**
+     * Query a setting of the writer connection: statements in a transaction run on the writer connection.
+     */
+    private static long queryWriterPragma(SQLiteDatabase database, String name)
+    {
+        database.beginTransactionNonExclusive();
+
+        try
+        {
+            SQLiteStatement statement = database.compileStatement("PRAGMA " + name);
+
+            try
+            {
+                return statement.simpleQueryForLong();
+            }
+            finally
+            {
+                statement.close();
+            }
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+    }
+}
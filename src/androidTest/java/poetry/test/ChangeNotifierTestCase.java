@@ -0,0 +1,125 @@
+package poetry.test;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.j256.ormlite.table.TableUtils;
+
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import poetry.database.ChangeEvent;
+import poetry.database.ChangeNotifier;
+import poetry.database.ChangeObserver;
+import poetry.json.JsonPersister;
+import poetry.test.data.DatabaseHelper;
+import poetry.test.data.models.Album;
+import poetry.test.data.models.User;
+
+public class ChangeNotifierTestCase extends AndroidTestCase
+{
+    public void testEventBuilder() throws Exception
+    {
+        ChangeEvent first = new ChangeEvent.Builder().addRow(User.class, 1).build();
+
+        // Integer IDs are Long values
+        assertTrue(first.getIds(User.class).contains(1L));
+
+        // Added events are not modified by the builder
+        ChangeEvent.Builder builder = new ChangeEvent.Builder().addEvent(first).addRow(User.class, (short) 2);
+        ChangeEvent merged = builder.build();
+
+        assertEquals(1, first.getIds(User.class).size());
+        assertEquals(2, merged.getIds(User.class).size());
+        assertTrue(merged.getIds(User.class).contains(2L));
+        assertTrue(builder.isEmpty());
+
+        // Tables with too many changed rows are marked as a whole
+        for (int i = 0; i <= ChangeEvent.Builder.MAX_IDS_PER_TABLE; ++i)
+        {
+            builder.addRow(User.class, i);
+        }
+
+        ChangeEvent large = builder.build();
+        assertTrue(large.isTableChanged(User.class));
+        assertNull(large.getIds(User.class));
+    }
+
+    public void testEventsAfterOutermostCommit() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        TableUtils.clearTable(helper.getConnectionSource(), Album.class);
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        ChangeNotifier notifier = new ChangeNotifier();
+        notifier.setDebounceDelay(0);
+        assertFalse(notifier.hasObservers());
+
+        RecordingObserver observer = new RecordingObserver();
+        notifier.register(observer, Album.class);
+        assertTrue(notifier.hasObservers());
+
+        JsonPersister persister = new JsonPersister(database);
+        persister.setChangeNotifier(notifier);
+
+        // Rolled back outer transaction: nothing is published
+        database.beginTransactionWithListenerNonExclusive(notifier.createTransactionListener());
+
+        try
+        {
+            persister.persistObject(Album.class, new JSONObject("{\"id\": 1, \"title\": \"Rolled back\"}"));
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+
+        assertFalse(observer.await(200));
+
+        // Committed outer transaction: the changes are published after the commit
+        database.beginTransactionWithListenerNonExclusive(notifier.createTransactionListener());
+
+        try
+        {
+            persister.persistObject(Album.class, new JSONObject("{\"id\": 2, \"title\": \"Committed\"}"));
+            assertFalse(observer.await(200));
+            database.setTransactionSuccessful();
+        }
+        finally
+        {
+            database.endTransaction();
+        }
+
+        assertTrue(observer.await(2000));
+        assertEquals(1, observer.events.size());
+        assertTrue(observer.events.get(0).getIds(Album.class).contains(2L));
+        assertFalse(observer.events.get(0).getIds(Album.class).contains(1L));
+
+        notifier.unregister(observer);
+        assertFalse(notifier.hasObservers());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    private static class RecordingObserver implements ChangeObserver
+    {
+        final List<ChangeEvent> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onChange(ChangeEvent event)
+        {
+            events.add(event);
+            latch.countDown();
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException
+        {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
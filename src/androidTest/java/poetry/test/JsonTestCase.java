@@ -1,19 +1,47 @@
 package poetry.test;
 
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.test.AndroidTestCase;
+import android.util.MalformedJsonException;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.table.TableUtils;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import poetry.json.JsonPathResolver;
 import poetry.json.JsonPersister;
 import poetry.test.data.DatabaseHelper;
 import poetry.test.data.JsonLoader;
+import poetry.test.data.models.Album;
+import poetry.test.data.models.AlbumRating;
+import poetry.test.data.models.AlbumTag;
+import poetry.test.data.models.Article;
+import poetry.test.data.models.Artist;
+import poetry.test.data.models.ArtistGenre;
+import poetry.test.data.models.Category;
+import poetry.test.data.models.Course;
+import poetry.test.data.models.Enrollment;
+import poetry.test.data.models.Genre;
 import poetry.test.data.models.Group;
+import poetry.test.data.models.Label;
+import poetry.test.data.models.Poem;
+import poetry.test.data.models.Song;
+import poetry.test.data.models.Student;
 import poetry.test.data.models.User;
 
 public class JsonTestCase extends AndroidTestCase
@@ -55,4 +83,612 @@ public class JsonTestCase extends AndroidTestCase
 
         DatabaseHelper.releaseHelper();
     }
-}
\ No newline at end of file
+
+    public void testPersistDocument() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+
+        JSONObject json = JsonLoader.loadObject(getContext(), poetry.test.R.raw.test);
+
+        // Users are mapped first, but groups are referenced by users so they are persisted first
+        Map<String, Class<?>> mapping = new LinkedHashMap<>();
+        mapping.put("users", User.class);
+        mapping.put("groups", Group.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        Map<String, List<Object>> ids = persister.persistDocument(json, mapping);
+
+        assertEquals(2, ids.get("users").size());
+        assertEquals(3, ids.get("groups").size());
+
+        Dao<User, Integer> user_dao = helper.getDao(User.class);
+        User user = user_dao.queryForId(2);
+        assertNotNull(user);
+        assertEquals("Jane", user.getName());
+        assertEquals(1, user.getTags().size());
+
+        Dao<Group, Integer> group_dao = helper.getDao(Group.class);
+        Group group = group_dao.queryForId(3);
+        assertNotNull(group);
+        assertEquals("Group C", group.getName());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testPersistBufferRejectsMalformedJson() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        Dao<User, Integer> user_dao = helper.getDao(User.class);
+
+        String[] malformed_documents = {
+            "[{\"id\": 100, \"name\": \"Mismatched\"}}",
+            "{\"id\": 100, \"name\": \"Mismatched\"]",
+            "[{\"id\": 0100, \"name\": \"Leading zero\"}]",
+            "[{\"id\": 100, \"name\": \"Unterminated}]",
+            "[{\"id\": 100, \"name\": \"Invalid \\q escape\"}]",
+            "[{\"id\": 100, \"name\": nul}]",
+            "[{\"id\": -, \"name\": \"Invalid number\"}]",
+            "[{\"id\": 100 \"name\": \"Missing comma\"}]",
+            "[{\"id\": 100, \"name\": \"Unterminated array\"}",
+            "[{\"id\": 100, \"name\": \"Trailing data\"}] []"
+        };
+
+        for (String malformed_document : malformed_documents)
+        {
+            try
+            {
+                persister.persistBuffer(User.class, ByteBuffer.wrap(malformed_document.getBytes("UTF-8")));
+                fail("expected a MalformedJsonException for " + malformed_document);
+            }
+            catch (MalformedJsonException e)
+            {
+                // The transaction is rolled back
+                assertNull(user_dao.queryForId(100));
+            }
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testMultiRowInserts() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Album.class, AlbumTag.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+
+        // More tags than fit in one multi-row INSERT statement
+        JSONArray tags_json = new JSONArray();
+
+        for (int i = 0; i < 700; ++i)
+        {
+            tags_json.put("tag" + i);
+        }
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistObject(Album.class, new JSONObject().put("id", 1).put("title", "Large").put("tags", tags_json));
+
+        List<String> tags = album_dao.queryForId(1).getTags();
+        assertEquals(700, tags.size());
+        assertTrue(tags.contains("tag0"));
+        assertTrue(tags.contains("tag699"));
+
+        // Pending rows of a parent are written before its old rows are replaced
+        persister.persistArray(Album.class, new JSONArray("[{\"id\": 2, \"tags\": [\"a\", \"b\"]}, {\"id\": 2, \"tags\": [\"c\"]}]"));
+
+        assertEquals(1, album_dao.queryForId(2).getTags().size());
+        assertEquals("c", album_dao.queryForId(2).getTags().get(0));
+        assertEquals(701, helper.getDao(AlbumTag.class).countOf());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testTableAtATimeSelfReference() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Category.class);
+        Dao<Category, Integer> category_dao = helper.getDao(Category.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase(), JsonPersister.OPTION_TABLE_AT_A_TIME);
+
+        // The rows don't exist yet: the updates change nothing, so the rows are inserted
+        persister.persistArray(Category.class, new JSONArray("[{\"id\": 2, \"name\": \"Child\", \"parent\": {\"id\": 1, \"name\": \"Root\"}}]"));
+
+        Category child = category_dao.queryForId(2);
+        assertNotNull(child);
+        assertEquals("Child", child.getName());
+        assertEquals(1, child.getParent().getId());
+        assertEquals("Root", category_dao.queryForId(1).getName());
+
+        // The rows exist: they are updated
+        persister.persistArray(Category.class, new JSONArray("[{\"id\": 2, \"name\": \"Child 2\", \"parent\": {\"id\": 1, \"name\": \"Root 2\"}}]"));
+
+        assertEquals(2, category_dao.countOf());
+        assertEquals("Child 2", category_dao.queryForId(2).getName());
+        assertEquals(1, category_dao.queryForId(2).getParent().getId());
+        assertEquals("Root 2", category_dao.queryForId(1).getName());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testReplaceArray() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"name\": \"One\", \"albums\": [{\"id\": 10, \"title\": \"Old\", \"tags\": [\"old\"]}]},"
+            + "{\"id\": 2, \"name\": \"Two\", \"albums\": [{\"id\": 20, \"title\": \"Old\"}]}]"));
+
+        List<Integer> ids = persister.replaceArray(Artist.class, new JSONArray("[{\"id\": 2, \"name\": \"Two again\", \"albums\": [{\"id\": 21, \"title\": \"New\", \"tags\": [\"new\"]}]}]"));
+        assertEquals(1, ids.size());
+
+        // The live tables and the tables of the collections are replaced as a whole
+        Dao<Artist, Integer> artist_dao = helper.getDao(Artist.class);
+        assertEquals(1, artist_dao.countOf());
+        assertEquals("Two again", artist_dao.queryForId(2).getName());
+
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        assertEquals(1, album_dao.countOf());
+        assertEquals("new", album_dao.queryForId(21).getTags().get(0));
+        assertEquals(1, helper.getDao(AlbumTag.class).countOf());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testMergePolicies() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Article.class);
+        Dao<Article, Integer> article_dao = helper.getDao(Article.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"First\", \"summary\": \"Summary\", \"author\": \"Alice\"}"));
+
+        // Null values of NON_NULL fields and values of INSERT_ONLY fields don't overwrite stored values
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"Second\", \"summary\": null, \"author\": \"Bob\"}"));
+
+        Article article = article_dao.queryForId(1);
+        assertEquals("Second", article.getTitle());
+        assertEquals("Summary", article.getSummary());
+        assertEquals("Alice", article.getAuthor());
+
+        // Rows with local changes are kept
+        article.setDirty(true);
+        article_dao.update(article);
+
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"Remote\"}"));
+        assertEquals(1, persister.getLastImportReport().getSkippedCount(Article.class));
+        assertEquals("Second", article_dao.queryForId(1).getTitle());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testVersionGuard() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Article.class);
+        Dao<Article, Integer> article_dao = helper.getDao(Article.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"First\", \"version\": 2}"));
+
+        // Older and unknown versions don't overwrite the row
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"Older\", \"version\": 1}"));
+        assertEquals(1, persister.getLastImportReport().getSkippedCount(Article.class));
+        assertEquals("First", article_dao.queryForId(1).getTitle());
+
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"Unversioned\", \"version\": null}"));
+        assertEquals(1, persister.getLastImportReport().getSkippedCount(Article.class));
+        assertEquals("First", article_dao.queryForId(1).getTitle());
+
+        // Newer versions are written
+        persister.persistObject(Article.class, new JSONObject("{\"id\": 1, \"title\": \"Newer\", \"version\": 3}"));
+        assertEquals(0, persister.getLastImportReport().getSkippedCount());
+
+        Article article = article_dao.queryForId(1);
+        assertEquals("Newer", article.getTitle());
+        assertEquals(Long.valueOf(3), article.getVersion());
+
+        // The table-at-a-time writer guards the rows as well
+        JsonPersister table_persister = new JsonPersister(helper.getWritableDatabase(), JsonPersister.OPTION_TABLE_AT_A_TIME);
+        table_persister.persistArray(Article.class, new JSONArray("[{\"id\": 1, \"title\": \"Older\", \"version\": 2}, {\"id\": 2, \"title\": \"Other\", \"version\": 1}]"));
+        assertEquals(1, table_persister.getLastImportReport().getSkippedCount(Article.class));
+        assertEquals("Newer", article_dao.queryForId(1).getTitle());
+        assertEquals("Other", article_dao.queryForId(2).getTitle());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testSkipFailedObjects() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Album.class, AlbumTag.class, AlbumRating.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+
+        // The rating of the second album fails when its batch is written: only that album is rolled back
+        JSONArray albums_json = new JSONArray()
+            .put(new JSONObject().put("id", 1).put("title", "First").put("tags", new JSONArray().put("a")))
+            .put(new JSONObject().put("id", 2).put("title", "Broken").put("tags", new JSONArray().put("b"))
+                .put("ratings", new JSONArray().put(new JSONObject().put("bad", true))))
+            .put(new JSONObject().put("id", 3).put("title", "Last").put("tags", new JSONArray().put("c"))
+                .put("ratings", new JSONArray().put(5)));
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase(), JsonPersister.OPTION_SKIP_FAILED_OBJECTS);
+        List<Integer> ids = persister.persistArray(Album.class, albums_json);
+
+        assertEquals(2, ids.size());
+        assertEquals(1, persister.getLastImportReport().getFailures().size());
+        assertEquals("[1]", persister.getLastImportReport().getFailures().get(0).getJsonPath());
+
+        // The pending rows of the failed album are dropped, so they aren't written at the end of the import
+        assertNull(album_dao.queryForId(2));
+        assertEquals(2, helper.getDao(AlbumTag.class).countOf());
+        assertEquals(1, helper.getDao(AlbumRating.class).countOf());
+        assertEquals("a", album_dao.queryForId(1).getTags().get(0));
+        assertEquals("c", album_dao.queryForId(3).getTags().get(0));
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testDeferredOrphanCleanup() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"albums\": [{\"id\": 10}, {\"id\": 11}]},"
+            + "{\"id\": 2, \"albums\": [{\"id\": 20}]}]"));
+        assertEquals(3, album_dao.countOf());
+
+        JsonPersister deferring_persister = new JsonPersister(helper.getWritableDatabase(), JsonPersister.OPTION_DEFER_ORPHAN_CLEANUP);
+        deferring_persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"albums\": [{\"id\": 11}, {\"id\": 12}]},"
+            + "{\"id\": 2, \"albums\": []}]"));
+
+        // The albums that are no longer in the collections are deleted at the end of the transaction
+        assertNull(album_dao.queryForId(10));
+        assertNotNull(album_dao.queryForId(11));
+        assertNotNull(album_dao.queryForId(12));
+        assertNull(album_dao.queryForId(20));
+        assertEquals(2, album_dao.countOf());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testDeleteAbsentRowsWithCascade() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"albums\": [{\"id\": 10, \"tags\": [\"kept\"], \"songs\": [{\"id\": 100}]}]},"
+            + "{\"id\": 2, \"albums\": [{\"id\": 20, \"tags\": [\"deleted\"], \"songs\": [{\"id\": 200}, {\"id\": 201}]}]}]"));
+
+        // Artist 2 is absent and artist 1 has no collections in the payload
+        JsonPersister deleting_persister = new JsonPersister(helper.getWritableDatabase(),
+            JsonPersister.OPTION_DELETE_ABSENT_ROWS | JsonPersister.OPTION_CASCADE_ABSENT_ROWS);
+        deleting_persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"name\": \"One\"}]"));
+
+        Dao<Artist, Integer> artist_dao = helper.getDao(Artist.class);
+        assertEquals(1, artist_dao.countOf());
+        assertEquals("One", artist_dao.queryForId(1).getName());
+
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        assertNotNull(album_dao.queryForId(10));
+        assertNull(album_dao.queryForId(20));
+        assertEquals(1, album_dao.countOf());
+
+        Dao<Song, Integer> song_dao = helper.getDao(Song.class);
+        assertNotNull(song_dao.queryForId(100));
+        assertEquals(1, song_dao.countOf());
+        assertEquals(1, helper.getDao(AlbumTag.class).countOf());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testJoinTableFromBothSides() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Student.class, Course.class, Enrollment.class);
+
+        // Both collections write to the enrollment table, with their columns in opposite order
+        JSONObject json = new JSONObject("{\"students\": [{\"id\": 1, \"courses\": [{\"id\": 10}, {\"id\": 11}]}],"
+            + "\"courses\": [{\"id\": 10, \"students\": [{\"id\": 2}]}]}");
+
+        Map<String, Class<?>> mapping = new LinkedHashMap<>();
+        mapping.put("students", Student.class);
+        mapping.put("courses", Course.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistDocument(json, mapping);
+
+        // The students of course 10 are replaced by the course, like without batching
+        Dao<Enrollment, Integer> enrollment_dao = helper.getDao(Enrollment.class);
+        assertEquals(2, enrollment_dao.countOf());
+
+        List<Enrollment> enrollments = enrollment_dao.queryForEq("student_id", 1);
+        assertEquals(1, enrollments.size());
+        assertEquals(11, enrollments.get(0).getCourse().getId());
+
+        enrollments = enrollment_dao.queryForEq("student_id", 2);
+        assertEquals(1, enrollments.size());
+        assertEquals(10, enrollments.get(0).getCourse().getId());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testSkippedParentInBothEngines() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        Dao<Artist, Integer> artist_dao = helper.getDao(Artist.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        Dao<Label, Integer> label_dao = helper.getDao(Label.class);
+        Dao<Genre, Integer> genre_dao = helper.getDao(Genre.class);
+
+        int[] engine_options = { 0, JsonPersister.OPTION_TABLE_AT_A_TIME };
+
+        for (int options : engine_options)
+        {
+            clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+
+            JsonPersister persister = new JsonPersister(helper.getWritableDatabase(), options);
+            persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"name\": \"Stored\", \"version\": 2, \"albums\": [{\"id\": 10}], \"genres\": [{\"id\": 1}]}]"));
+
+            // The stale artist is skipped along with its albums and genre mappings
+            persister.persistArray(Artist.class, new JSONArray("[{\"id\": 1, \"name\": \"Stale\", \"version\": 1, \"label\": {\"id\": 5},"
+                + " \"albums\": [{\"id\": 11}], \"genres\": [{\"id\": 2}]}]"));
+
+            assertEquals(1, persister.getLastImportReport().getSkippedCount(Artist.class));
+            assertEquals("Stored", artist_dao.queryForId(1).getName());
+            assertNotNull(album_dao.queryForId(10));
+            assertNull(album_dao.queryForId(11));
+            assertEquals(1, helper.getDao(ArtistGenre.class).countOf());
+
+            // Foreign objects are written before the guard is applied by both engines
+            assertNotNull(label_dao.queryForId(5));
+
+            // Many-to-many targets are only written by the table-at-a-time writer
+            if (options == 0)
+            {
+                assertNull(genre_dao.queryForId(2));
+            }
+            else
+            {
+                assertNotNull(genre_dao.queryForId(2));
+            }
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testFullTextIndexAfterReplaceArray() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Poem.class);
+        Dao<Poem, Integer> poem_dao = helper.getDao(Poem.class);
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistArray(Poem.class, new JSONArray("[{\"id\": 1, \"title\": \"Old\", \"text\": \"autumn leaves\"}]"));
+        assertEquals(1, helper.searchFullText(Poem.class, "autumn", 10).size());
+
+        // The index is rebuilt from the swapped-in table
+        persister.replaceArray(Poem.class, new JSONArray("[{\"id\": 2, \"title\": \"New\", \"text\": \"winter snow\"}, {\"id\": 3, \"title\": \"Newer\", \"text\": \"spring rain\"}]"));
+
+        assertTrue(helper.searchFullText(Poem.class, "autumn", 10).isEmpty());
+        List<Integer> ids = helper.searchFullText(Poem.class, "winter", 10);
+        assertEquals(1, ids.size());
+        assertEquals(Integer.valueOf(2), ids.get(0));
+
+        // The triggers are on the new live table
+        Poem poem = poem_dao.queryForId(3);
+        poem.setText("summer sun");
+        poem_dao.update(poem);
+
+        assertTrue(helper.searchFullText(Poem.class, "rain", 10).isEmpty());
+        assertEquals(Integer.valueOf(3), helper.searchFullText(Poem.class, "summer", 10).get(0));
+
+        persister.persistArray(Poem.class, new JSONArray("[{\"id\": 4, \"title\": \"Added\", \"text\": \"summer night\"}]"));
+        assertEquals(2, helper.searchFullText(Poem.class, "summer", 10).size());
+
+        poem_dao.deleteById(2);
+        assertTrue(helper.searchFullText(Poem.class, "winter", 10).isEmpty());
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testNullCollectionsAreKept() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        Dao<AlbumTag, Integer> tag_dao = helper.getDao(AlbumTag.class);
+
+        int[] engine_options = { 0, JsonPersister.OPTION_TABLE_AT_A_TIME };
+
+        for (int options : engine_options)
+        {
+            clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+
+            JsonPersister persister = new JsonPersister(helper.getWritableDatabase(), options);
+            persister.persistObject(Artist.class, new JSONObject("{\"id\": 1, \"albums\": [{\"id\": 10, \"tags\": [\"a\", \"b\"]}], \"genres\": [{\"id\": 1}]}"));
+
+            // Null collections are left untouched
+            persister.persistObject(Artist.class, new JSONObject("{\"id\": 1, \"albums\": null, \"genres\": null}"));
+            persister.persistObject(Album.class, new JSONObject("{\"id\": 10, \"tags\": null}"));
+
+            assertNotNull(album_dao.queryForId(10));
+            assertEquals(2, tag_dao.countOf());
+            assertEquals(1, helper.getDao(ArtistGenre.class).countOf());
+
+            // Empty arrays remove the stored collection
+            persister.persistObject(Album.class, new JSONObject("{\"id\": 10, \"tags\": []}"));
+            persister.persistObject(Artist.class, new JSONObject("{\"id\": 1, \"albums\": [], \"genres\": []}"));
+
+            assertEquals(0, tag_dao.countOf());
+            assertNull(album_dao.queryForId(10));
+            assertEquals(0, helper.getDao(ArtistGenre.class).countOf());
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testLargeOneToManyCollection() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Artist.class, Label.class, Genre.class, ArtistGenre.class, Album.class, AlbumTag.class, AlbumRating.class, Song.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+
+        // More children than bind arguments fit in one statement
+        JSONArray albums_json = new JSONArray();
+
+        for (int i = 1; i <= 1500; ++i)
+        {
+            albums_json.put(new JSONObject().put("id", i));
+        }
+
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+        persister.persistObject(Artist.class, new JSONObject().put("id", 1).put("albums", albums_json));
+        assertEquals(1500, album_dao.countOf());
+        assertEquals(1500, album_dao.queryForEq("artist_id", 1).size());
+
+        // The albums that are left out are deleted
+        JSONArray kept_albums_json = new JSONArray();
+
+        for (int i = 301; i <= 1500; ++i)
+        {
+            kept_albums_json.put(new JSONObject().put("id", i));
+        }
+
+        persister.persistObject(Artist.class, new JSONObject().put("id", 1).put("albums", kept_albums_json));
+        assertEquals(1200, album_dao.countOf());
+        assertNull(album_dao.queryForId(300));
+        assertNotNull(album_dao.queryForId(301));
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testPersistFileResumable() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        clearTables(helper, Album.class, AlbumTag.class, AlbumRating.class);
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        JSONArray albums_json = new JSONArray();
+
+        for (int i = 1; i <= 10; ++i)
+        {
+            albums_json.put(new JSONObject().put("id", i).put("title", "Album " + i));
+        }
+
+        File file = new File(getContext().getCacheDir(), "albums.json");
+        FileOutputStream output_stream = new FileOutputStream(file);
+
+        try
+        {
+            output_stream.write(albums_json.toString().getBytes("UTF-8"));
+        }
+        finally
+        {
+            output_stream.close();
+        }
+
+        JsonPersister persister = new JsonPersister(database);
+        persister.discardCheckpoint("albums");
+
+        // Interrupt the import in the third chunk
+        database.execSQL("CREATE TEMP TRIGGER interrupt_import BEFORE INSERT ON album WHEN new.id = 8 BEGIN SELECT RAISE(ABORT, 'interrupted'); END");
+
+        try
+        {
+            persister.persistFileResumable(Album.class, file, "albums", 3);
+            fail("expected the import to be interrupted");
+        }
+        catch (SQLiteException e)
+        {
+            // The first two chunks are committed
+            assertEquals(6, album_dao.countOf());
+        }
+        finally
+        {
+            database.execSQL("DROP TRIGGER IF EXISTS interrupt_import");
+        }
+
+        // Committed chunks are not imported again
+        database.execSQL("UPDATE album SET title = 'Local' WHERE id = 1");
+
+        assertEquals(4, persister.persistFileResumable(Album.class, file, "albums", 3));
+        assertEquals(10, album_dao.countOf());
+        assertEquals("Local", album_dao.queryForId(1).getTitle());
+        assertEquals("Album 8", album_dao.queryForId(8).getTitle());
+
+        // The checkpoint is removed when the import completes
+        assertEquals(10, persister.persistFileResumable(Album.class, file, "albums", 3));
+        assertEquals("Album 1", album_dao.queryForId(1).getTitle());
+
+        assertTrue(file.delete());
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testPersistLines() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        Dao<Album, Integer> album_dao = helper.getDao(Album.class);
+        JsonPersister persister = new JsonPersister(helper.getWritableDatabase());
+
+        // Several batches that update the same rows: the last line of every ID must win
+        StringBuilder lines = new StringBuilder();
+
+        for (int i = 0; i < 2000; ++i)
+        {
+            lines.append(new JSONObject().put("id", i % 50 + 1).put("title", "Line " + i)).append('\n');
+
+            if (i % 100 == 0)
+            {
+                lines.append('\n');
+            }
+        }
+
+        byte[] plain_bytes = lines.toString().getBytes("UTF-8");
+        ByteArrayOutputStream compressed_output = new ByteArrayOutputStream();
+        GZIPOutputStream gzip_output = new GZIPOutputStream(compressed_output);
+        gzip_output.write(plain_bytes);
+        gzip_output.close();
+
+        byte[][] inputs = { plain_bytes, compressed_output.toByteArray() };
+
+        for (byte[] input : inputs)
+        {
+            clearTables(helper, Album.class, AlbumTag.class, AlbumRating.class);
+
+            assertEquals(2000, persister.persistLines(Album.class, new ByteArrayInputStream(input), 4));
+            assertEquals(50, album_dao.countOf());
+            assertEquals("Line 1950", album_dao.queryForId(1).getTitle());
+            assertEquals("Line 1999", album_dao.queryForId(50).getTitle());
+        }
+
+        // A malformed line fails the whole import
+        clearTables(helper, Album.class, AlbumTag.class, AlbumRating.class);
+
+        try
+        {
+            persister.persistLines(Album.class, new ByteArrayInputStream((lines + "{\"id\": 1,\n").getBytes("UTF-8")), 4);
+            fail("expected a JSONException for the malformed line");
+        }
+        catch (JSONException e)
+        {
+            assertTrue(e.getMessage().startsWith("line "));
+            assertEquals(0, album_dao.countOf());
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    private static void clearTables(DatabaseHelper helper, Class<?>... modelClasses) throws SQLException
+    {
+        for (Class<?> model_class : modelClasses)
+        {
+            TableUtils.clearTable(helper.getConnectionSource(), model_class);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package poetry.test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.test.AndroidTestCase;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.table.TableUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import poetry.database.KeysetPager;
+import poetry.database.ReadConnectionPool;
+import poetry.json.JsonPersister;
+import poetry.test.data.DatabaseHelper;
+import poetry.test.data.models.Album;
+import poetry.utils.QueryUtils;
+
+public class QueryTestCase extends AndroidTestCase
+{
+    public void testReadConnectionPoolIsReadOnly() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        TableUtils.clearTable(helper.getConnectionSource(), Album.class);
+
+        new JsonPersister(helper.getWritableDatabase()).persistArray(Album.class, new JSONArray("[{\"id\": 1, \"title\": \"Pooled\"}]"));
+
+        ReadConnectionPool pool = new ReadConnectionPool(helper.getWritableDatabase().getPath(), 1);
+        ReadConnectionPool.Connection connection = pool.acquire();
+
+        try
+        {
+            Dao<Album, Integer> album_dao = connection.getDao(Album.class);
+            assertEquals("Pooled", album_dao.queryForId(1).getTitle());
+
+            // Writes must go through the writable database
+            try
+            {
+                connection.getDatabase().execSQL("DELETE FROM album");
+                fail("expected a write on a pooled connection to fail");
+            }
+            catch (SQLiteException e)
+            {
+                assertEquals(1, helper.getDao(Album.class).countOf());
+            }
+        }
+        finally
+        {
+            pool.release(connection);
+            pool.close();
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testKeysetPager() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        TableUtils.clearTable(helper.getConnectionSource(), Album.class);
+
+        new JsonPersister(helper.getWritableDatabase()).persistArray(Album.class, new JSONArray("[{\"id\": 1, \"title\": \"b\"}, {\"id\": 2, \"title\": \"a\"},"
+            + " {\"id\": 3, \"title\": \"b\"}, {\"id\": 4, \"title\": \"c\"}, {\"id\": 5, \"title\": \"a\"}, {\"id\": 6, \"title\": \"b\"}, {\"id\": 7, \"title\": \"c\"}]"));
+
+        // Equal titles are ordered by ID, so no rows are skipped or repeated at page boundaries
+        KeysetPager<Album> pager = helper.createPager(Album.class, "title", 3);
+        List<Integer> ids = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        KeysetPager.Page<Album> page = pager.fetch(null);
+
+        while (true)
+        {
+            for (Album album : page.getItems())
+            {
+                ids.add(album.getId());
+            }
+
+            if (!page.hasNext())
+            {
+                break;
+            }
+
+            tokens.add(page.getContinuationToken());
+            page = pager.fetch(page.getContinuationToken());
+        }
+
+        assertEquals(Arrays.asList(2, 5, 1, 3, 6, 4, 7), ids);
+        assertEquals(2, tokens.size());
+
+        // Tokens can be used again, e.g. after a restart, also when the page was not prefetched
+        pager.setPrefetchEnabled(false);
+        assertEquals(7, pager.fetch(tokens.get(1)).getItems().get(0).getId());
+
+        // Rows that are inserted before the position of a token don't shift the next pages
+        new JsonPersister(helper.getWritableDatabase()).persistObject(Album.class, new JSONObject("{\"id\": 8, \"title\": \"a\"}"));
+        assertEquals(3, pager.fetch(tokens.get(0)).getItems().get(0).getId());
+
+        // Tokens of a pager with other sort columns are rejected
+        String id_token = helper.createPager(Album.class, null, 3).fetch(null).getContinuationToken();
+
+        try
+        {
+            pager.fetch(id_token);
+            fail("expected a token of another pager to be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        try
+        {
+            pager.fetch("not a token");
+            fail("expected an invalid token to be rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        DatabaseHelper.releaseHelper();
+    }
+
+    public void testQueriesInChunks() throws Exception
+    {
+        DatabaseHelper helper = DatabaseHelper.getHelper(getContext());
+        TableUtils.clearTable(helper.getConnectionSource(), Album.class);
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        // More IDs than bind arguments fit in one statement
+        int count = QueryUtils.SQLITE_MAX_VARIABLE_NUMBER * 2 + 500;
+        JSONArray albums_json = new JSONArray();
+        long[] ids = new long[count];
+        String[] string_ids = new String[count];
+
+        for (int i = 0; i < count; ++i)
+        {
+            albums_json.put(new JSONObject().put("id", i + 1).put("title", (i % 2 == 0) ? "even" : "odd"));
+            ids[i] = i + 1;
+            string_ids[i] = Integer.toString(i + 1);
+        }
+
+        new JsonPersister(database).persistArray(Album.class, albums_json, false);
+
+        // The prefix arguments are repeated for every chunk
+        Cursor cursor = QueryUtils.rawQueryInChunks(database, "SELECT id FROM 'album' WHERE title = ? AND id", new String[]{"even"}, ids, count);
+
+        try
+        {
+            assertEquals((count + 1) / 2, cursor.getCount());
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        cursor = QueryUtils.rawQueryInChunks(database, "SELECT id FROM 'album' WHERE id", null, string_ids, count - 1);
+
+        try
+        {
+            assertEquals(count - 1, cursor.getCount());
+        }
+        finally
+        {
+            cursor.close();
+        }
+
+        int deleted_count = QueryUtils.executeUpdateDeleteInChunks(database, "DELETE FROM 'album' WHERE title = ? AND id", new String[]{"odd"}, ids, count);
+        assertEquals(count / 2, deleted_count);
+        assertEquals(count - count / 2, helper.getDao(Album.class).countOf());
+
+        DatabaseHelper.releaseHelper();
+    }
+}
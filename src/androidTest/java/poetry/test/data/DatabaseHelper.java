@@ -7,19 +7,47 @@ import com.j256.ormlite.android.apptools.OpenHelperManager;
 import com.j256.ormlite.support.ConnectionSource;
 
 import poetry.database.DatabaseConfiguration;
+import poetry.test.data.models.Album;
+import poetry.test.data.models.AlbumRating;
+import poetry.test.data.models.AlbumTag;
+import poetry.test.data.models.Article;
+import poetry.test.data.models.Artist;
+import poetry.test.data.models.ArtistGenre;
+import poetry.test.data.models.Category;
+import poetry.test.data.models.Course;
+import poetry.test.data.models.Enrollment;
+import poetry.test.data.models.Genre;
 import poetry.test.data.models.Group;
+import poetry.test.data.models.Label;
+import poetry.test.data.models.Poem;
+import poetry.test.data.models.Song;
+import poetry.test.data.models.Student;
 import poetry.test.data.models.User;
 import poetry.test.data.models.UserGroup;
 import poetry.test.data.models.UserTag;
 
 public class DatabaseHelper extends poetry.database.DatabaseHelper
 {
-    public final static DatabaseConfiguration sConfiguration = new DatabaseConfiguration(7, new Class<?>[]
+    public final static DatabaseConfiguration sConfiguration = new DatabaseConfiguration(17, new Class<?>[]
     {
         User.class,
         Group.class,
         UserTag.class,
-        UserGroup.class
+        UserGroup.class,
+        Album.class,
+        AlbumTag.class,
+        Category.class,
+        Artist.class,
+        Article.class,
+        AlbumRating.class,
+        Song.class,
+        Student.class,
+        Course.class,
+        Enrollment.class,
+        Label.class,
+        Genre.class,
+        ArtistGenre.class,
+        Poem.class
     });
 
     public DatabaseHelper(Context context)
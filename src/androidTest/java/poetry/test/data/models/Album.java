@@ -0,0 +1,63 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.dao.ForeignCollection;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import poetry.json.annotations.ForeignCollectionFieldSingleTarget;
+import poetry.json.annotations.MapFrom;
+
+@DatabaseTable
+public class Album
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "title")
+    @MapFrom("title")
+    private String mTitle;
+
+    @DatabaseField(foreign = true, columnName = "artist_id")
+    private Artist mArtist;
+
+    @ForeignCollectionField(eager = true)
+    @MapFrom("songs")
+    private ForeignCollection<Song> mSongs;
+
+    @ForeignCollectionField(eager = true)
+    @ForeignCollectionFieldSingleTarget(targetField = "value")
+    @MapFrom("tags")
+    private ForeignCollection<AlbumTag> mTags;
+
+    @ForeignCollectionField(eager = true)
+    @ForeignCollectionFieldSingleTarget(targetField = "value")
+    @MapFrom("ratings")
+    private ForeignCollection<AlbumRating> mRatings;
+
+    public int getId()
+    {
+        return mId;
+    }
+
+    public String getTitle()
+    {
+        return mTitle;
+    }
+
+    public List<String> getTags()
+    {
+        List<String> tags = new ArrayList<>();
+
+        for (AlbumTag tag : mTags)
+        {
+            tags.add(tag.getTag());
+        }
+
+        return tags;
+    }
+}
@@ -0,0 +1,22 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+@DatabaseTable
+public class AlbumRating
+{
+    @DatabaseField(generatedId = true, columnName = "id")
+    private int mId;
+
+    @DatabaseField(foreign = true, columnName = "album_id")
+    private Album mAlbum;
+
+    @DatabaseField(columnName = "value")
+    private int mValue;
+
+    public int getRating()
+    {
+        return mValue;
+    }
+}
@@ -0,0 +1,67 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.MapFrom;
+import poetry.json.annotations.MergePolicy;
+import poetry.json.annotations.VersionField;
+
+/**
+ * Rows with local changes (dirty) and rows with a newer version are not updated by imports.
+ */
+@DatabaseTable
+@MergePolicy(value = MergePolicy.Strategy.KEEP_DIRTY, dirtyColumn = "dirty")
+public class Article
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "title")
+    @MapFrom("title")
+    private String mTitle;
+
+    @DatabaseField(columnName = "version")
+    @MapFrom("version")
+    @VersionField
+    private Long mVersion;
+
+    @DatabaseField(columnName = "summary")
+    @MapFrom("summary")
+    @MergePolicy(MergePolicy.Strategy.NON_NULL)
+    private String mSummary;
+
+    @DatabaseField(columnName = "author")
+    @MapFrom("author")
+    @MergePolicy(MergePolicy.Strategy.INSERT_ONLY)
+    private String mAuthor;
+
+    @DatabaseField(columnName = "dirty")
+    private boolean mDirty;
+
+    public String getTitle()
+    {
+        return mTitle;
+    }
+
+    public Long getVersion()
+    {
+        return mVersion;
+    }
+
+    public String getSummary()
+    {
+        return mSummary;
+    }
+
+    public String getAuthor()
+    {
+        return mAuthor;
+    }
+
+    public void setDirty(boolean dirty)
+    {
+        mDirty = dirty;
+    }
+}
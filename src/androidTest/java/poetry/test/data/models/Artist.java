@@ -0,0 +1,53 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.dao.ForeignCollection;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.ManyToManyField;
+import poetry.json.annotations.MapFrom;
+import poetry.json.annotations.VersionField;
+
+@DatabaseTable
+public class Artist
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "name")
+    @MapFrom("name")
+    private String mName;
+
+    @DatabaseField(columnName = "version")
+    @MapFrom("version")
+    @VersionField
+    private Long mVersion;
+
+    @DatabaseField(foreign = true, columnName = "label_id")
+    @MapFrom("label")
+    private Label mLabel;
+
+    /**
+     * One-to-many relationship: the albums refer to the artist with their "artist_id" column.
+     */
+    @ForeignCollectionField(eager = true)
+    @MapFrom("albums")
+    private ForeignCollection<Album> mAlbums;
+
+    @ForeignCollectionField(eager = true)
+    @ManyToManyField(targetType = Genre.class)
+    @MapFrom("genres")
+    private ForeignCollection<ArtistGenre> mGenres;
+
+    public int getId()
+    {
+        return mId;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+}
@@ -0,0 +1,20 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Maps an Artist onto a Genre
+ */
+@DatabaseTable
+public class ArtistGenre
+{
+    @DatabaseField(generatedId = true, columnName = "id")
+    private int mId;
+
+    @DatabaseField(foreign = true, columnName = "artist_id")
+    private Artist mArtist;
+
+    @DatabaseField(foreign = true, columnName = "genre_id")
+    private Genre mGenre;
+}
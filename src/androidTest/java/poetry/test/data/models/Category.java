@@ -0,0 +1,40 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.MapFrom;
+
+/**
+ * A table that references itself: the parent is persisted from a nested object or an ID.
+ */
+@DatabaseTable
+public class Category
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "name")
+    @MapFrom("name")
+    private String mName;
+
+    @DatabaseField(foreign = true, columnName = "parent_id")
+    @MapFrom("parent")
+    private Category mParent;
+
+    public int getId()
+    {
+        return mId;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public Category getParent()
+    {
+        return mParent;
+    }
+}
@@ -0,0 +1,31 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.dao.ForeignCollection;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.ManyToManyField;
+import poetry.json.annotations.MapFrom;
+
+@DatabaseTable
+public class Course
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "name")
+    @MapFrom("name")
+    private String mName;
+
+    @ForeignCollectionField(eager = true)
+    @ManyToManyField(targetType = Student.class)
+    @MapFrom("students")
+    private ForeignCollection<Enrollment> mStudents;
+
+    public int getId()
+    {
+        return mId;
+    }
+}
@@ -0,0 +1,30 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+/**
+ * Maps a Student onto a Course
+ */
+@DatabaseTable
+public class Enrollment
+{
+    @DatabaseField(generatedId = true, columnName = "id")
+    private int mId;
+
+    @DatabaseField(foreign = true, columnName = "student_id")
+    private Student mStudent;
+
+    @DatabaseField(foreign = true, columnName = "course_id")
+    private Course mCourse;
+
+    public Student getStudent()
+    {
+        return mStudent;
+    }
+
+    public Course getCourse()
+    {
+        return mCourse;
+    }
+}
@@ -0,0 +1,40 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.FullTextIndexed;
+import poetry.json.annotations.MapFrom;
+
+@DatabaseTable
+public class Poem
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "title")
+    @MapFrom("title")
+    @FullTextIndexed
+    private String mTitle;
+
+    @DatabaseField(columnName = "text")
+    @MapFrom("text")
+    @FullTextIndexed
+    private String mText;
+
+    public int getId()
+    {
+        return mId;
+    }
+
+    public String getText()
+    {
+        return mText;
+    }
+
+    public void setText(String text)
+    {
+        mText = text;
+    }
+}
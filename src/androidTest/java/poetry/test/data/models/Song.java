@@ -0,0 +1,31 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.MapFrom;
+
+@DatabaseTable
+public class Song
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "title")
+    @MapFrom("title")
+    private String mTitle;
+
+    @DatabaseField(foreign = true, columnName = "album_id")
+    private Album mAlbum;
+
+    public int getId()
+    {
+        return mId;
+    }
+
+    public String getTitle()
+    {
+        return mTitle;
+    }
+}
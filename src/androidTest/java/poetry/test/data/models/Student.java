@@ -0,0 +1,34 @@
+package poetry.test.data.models;
+
+import com.j256.ormlite.dao.ForeignCollection;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+import com.j256.ormlite.table.DatabaseTable;
+
+import poetry.json.annotations.ManyToManyField;
+import poetry.json.annotations.MapFrom;
+
+@DatabaseTable
+public class Student
+{
+    @DatabaseField(id = true, columnName = "id")
+    @MapFrom("id")
+    private int mId;
+
+    @DatabaseField(columnName = "name")
+    @MapFrom("name")
+    private String mName;
+
+    /**
+     * Many-to-many relationship through the same join table as Course.students, from the other side.
+     */
+    @ForeignCollectionField(eager = true)
+    @ManyToManyField(targetType = Course.class)
+    @MapFrom("courses")
+    private ForeignCollection<Enrollment> mCourses;
+
+    public int getId()
+    {
+        return mId;
+    }
+}
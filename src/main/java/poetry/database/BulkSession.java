@@ -0,0 +1,284 @@
+package poetry.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Tunes the SQLite connection settings for large imports (e.g. an initial sync) across any amount of persist calls.
+ * <p>
+ * {@link #begin()} remembers the current settings and applies the bulk settings:
+ * less or no syncing to storage, a larger page cache, temporary data in memory and less frequent WAL checkpoints.
+ * {@link #end()} checkpoints the WAL and restores the previous settings.
+ * <p>
+ * With {@link #SYNCHRONOUS_OFF}, a power loss during the session can corrupt the database, so only use it
+ * when the data can be downloaded again. {@link #SYNCHRONOUS_NORMAL} is safe in WAL mode: a power loss can only lose the
+ * latest transactions.
+ * <p>
+ * Settings are applied to the writer connection: the pragmas run in an Android transaction, which binds them to the writer connection
+ * even when WAL allows reader connections. The SQLite transaction is committed before the pragmas run, because SQLite doesn't allow
+ * some of them in a transaction. A session can't begin or end while the calling thread is in a transaction.
+ * <p>
+ * Pragmas aren't transactional: when {@link #begin()} fails, it restores the previous settings. {@link #end()} restores them
+ * even when the checkpoint fails, and the session stays active when ending fails.
+ */
+public final class BulkSession {
+	public static final int SYNCHRONOUS_OFF = 0;
+	public static final int SYNCHRONOUS_NORMAL = 1;
+
+	private static final String TAG = BulkSession.class.getName();
+	// Reference: https://www.sqlite.org/pragma.html#pragma_temp_store
+	private static final int TEMP_STORE_MEMORY = 2;
+
+	private final SQLiteDatabase database;
+	private int synchronous = SYNCHRONOUS_NORMAL;
+	// Negative values are in KiB
+	private long cacheSize = -16 * 1024;
+	private long walAutoCheckpoint = 10000;
+	private long journalSizeLimit = 64 * 1024 * 1024;
+	private boolean active;
+	// The settings before the session began
+	private long previousSynchronous;
+	private long previousCacheSize;
+	private long previousTempStore;
+	private long previousWalAutoCheckpoint;
+	private long previousJournalSizeLimit;
+	private long walSizeBefore;
+	private long walSizeAfter;
+
+	/**
+	 * @param database the writable database
+	 */
+	public BulkSession(SQLiteDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * @param synchronous {@link #SYNCHRONOUS_NORMAL} (default) or {@link #SYNCHRONOUS_OFF}
+	 */
+	public void setSynchronous(int synchronous) {
+		this.synchronous = synchronous;
+	}
+
+	/**
+	 * @param cacheSizeKiB the page cache size (16 MiB by default)
+	 */
+	public void setCacheSize(int cacheSizeKiB) {
+		this.cacheSize = -cacheSizeKiB;
+	}
+
+	/**
+	 * @param pages the WAL size in pages that triggers an automatic checkpoint (10000 by default) or 0 to only checkpoint at the end
+	 */
+	public void setWalAutoCheckpoint(long pages) {
+		this.walAutoCheckpoint = pages;
+	}
+
+	/**
+	 * @param bytes the size that the WAL file is truncated to after a checkpoint (64 MiB by default)
+	 */
+	public void setJournalSizeLimit(long bytes) {
+		this.journalSizeLimit = bytes;
+	}
+
+	/**
+	 * Remember the current settings and apply the bulk settings.
+	 * When applying them fails, the previous settings are restored and the session doesn't begin.
+	 */
+	public synchronized void begin() {
+		if (active) {
+			throw new IllegalStateException("the bulk session already began");
+		}
+
+		checkNotInTransaction();
+
+		walSizeBefore = getWalSize();
+
+		// Statements in a transaction run on the writer connection: outside a transaction, Android may run pragmas on a reader connection
+		database.beginTransactionNonExclusive();
+
+		try {
+			previousSynchronous = queryPragma("synchronous");
+			previousCacheSize = queryPragma("cache_size");
+			previousTempStore = queryPragma("temp_store");
+			previousWalAutoCheckpoint = queryPragma("wal_autocheckpoint");
+			previousJournalSizeLimit = queryPragma("journal_size_limit");
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+
+		try {
+			applySettings(synchronous, cacheSize, TEMP_STORE_MEMORY, walAutoCheckpoint, journalSizeLimit);
+		} catch (RuntimeException e) {
+			restoreSettingsAfterFailure();
+			throw e;
+		}
+
+		active = true;
+
+		Log.i(TAG, "bulk session began (WAL size: " + walSizeBefore + " bytes)");
+	}
+
+	/**
+	 * Checkpoint the WAL and restore the settings from before the session.
+	 * The settings are restored even when the checkpoint fails. When ending fails (e.g. because another connection
+	 * holds the write lock), the session stays active, so end() can be called again.
+	 */
+	public synchronized void end() {
+		if (!active) {
+			throw new IllegalStateException("the bulk session didn't begin");
+		}
+
+		checkNotInTransaction();
+
+		try {
+			checkpoint();
+		} catch (RuntimeException e) {
+			restoreSettingsAfterFailure();
+			throw e;
+		}
+
+		restoreSettings();
+		active = false;
+
+		walSizeAfter = getWalSize();
+
+		Log.i(TAG, "bulk session ended (WAL size: " + walSizeBefore + " bytes before, " + walSizeAfter + " bytes after)");
+	}
+
+	public synchronized boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * @return the size of the WAL file when the session began (0 when there was none)
+	 */
+	public synchronized long getWalSizeBefore() {
+		return walSizeBefore;
+	}
+
+	/**
+	 * @return the size of the WAL file after the session ended (0 when there was none)
+	 */
+	public synchronized long getWalSizeAfter() {
+		return walSizeAfter;
+	}
+
+	private void checkpoint() {
+		beginOutsideTransaction();
+		boolean completed = false;
+
+		try {
+			// Write the WAL into the database and start a new WAL from its beginning (TRUNCATE requires SQLite 3.8.8)
+			if (queryPragma("wal_checkpoint(RESTART)") != 0) {
+				Log.w(TAG, "WAL checkpoint incomplete: the database is busy");
+			}
+
+			completed = true;
+		} finally {
+			endOutsideTransaction(completed);
+		}
+	}
+
+	/**
+	 * Restore the settings without hiding the error that is being thrown.
+	 */
+	private void restoreSettingsAfterFailure() {
+		try {
+			restoreSettings();
+		} catch (RuntimeException e) {
+			Log.w(TAG, "failed to restore the settings", e);
+		}
+	}
+
+	private void restoreSettings() {
+		applySettings(previousSynchronous, previousCacheSize, previousTempStore, previousWalAutoCheckpoint, previousJournalSizeLimit);
+	}
+
+	private void applySettings(long synchronous, long cacheSize, long tempStore, long walAutoCheckpoint, long journalSizeLimit) {
+		beginOutsideTransaction();
+		boolean completed = false;
+
+		try {
+			database.execSQL("PRAGMA synchronous = " + synchronous);
+			database.execSQL("PRAGMA cache_size = " + cacheSize);
+			database.execSQL("PRAGMA temp_store = " + tempStore);
+			database.execSQL("PRAGMA wal_autocheckpoint = " + walAutoCheckpoint);
+			database.execSQL("PRAGMA journal_size_limit = " + journalSizeLimit);
+			completed = true;
+		} finally {
+			endOutsideTransaction(completed);
+		}
+	}
+
+	/**
+	 * Bind the thread to the writer connection without an open SQLite transaction,
+	 * for statements that SQLite doesn't allow in a transaction (the safety level, the temp store and checkpoints).
+	 * <p>
+	 * An Android transaction binds the thread to the writer connection. It is marked successful before anything runs
+	 * (it has no changes) and its SQLite transaction is committed right away. Android treats statements that start with
+	 * "COMMIT" or "BEGIN" as its own transaction control, so a comment hides them.
+	 */
+	private void beginOutsideTransaction() {
+		database.beginTransactionNonExclusive();
+		database.setTransactionSuccessful();
+
+		try {
+			database.execSQL("/* */ COMMIT");
+		} catch (RuntimeException e) {
+			database.endTransaction();
+			throw e;
+		}
+	}
+
+	/**
+	 * Begin a deferred SQLite transaction for Android's transaction to end. A deferred BEGIN takes no locks,
+	 * so it doesn't fail when the database is busy.
+	 *
+	 * @param completed false when the statements failed: errors are logged instead of thrown, so they don't hide the original error
+	 */
+	private void endOutsideTransaction(boolean completed) {
+		try {
+			database.execSQL("/* */ BEGIN");
+		} catch (RuntimeException e) {
+			// Without a transaction, Android's COMMIT fails as well: report the failure to begin instead
+			try {
+				database.endTransaction();
+			} catch (RuntimeException end_exception) {
+				Log.w(TAG, "failed to end the transaction", end_exception);
+			}
+
+			if (completed) {
+				throw e;
+			}
+
+			Log.w(TAG, "failed to begin a transaction after a failed statement", e);
+			return;
+		}
+
+		database.endTransaction();
+	}
+
+	private long queryPragma(String name) {
+		SQLiteStatement statement = database.compileStatement("PRAGMA " + name);
+
+		try {
+			return statement.simpleQueryForLong();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private long getWalSize() {
+		return new File(database.getPath() + "-wal").length();
+	}
+
+	private void checkNotInTransaction() {
+		if (database.inTransaction()) {
+			throw new IllegalStateException("a bulk session can't begin or end in a transaction");
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package poetry.database;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import poetry.annotations.Nullable;
+
+/**
+ * The coalesced changes of one or more committed transactions: the model classes that were touched and the IDs of the touched rows.
+ * <p>
+ * When rows were changed without a known ID (e.g. deleted orphans, join tables or replaced tables), the whole table is marked as changed.
+ * Integer IDs (int, long, short and byte) are Long values, whether they were generated or imported.
+ */
+public final class ChangeEvent {
+	// Maps: model class -> IDs of changed rows or null when any row may have changed
+	private final Map<Class<?>, Set<Object>> changes;
+
+	private ChangeEvent(Map<Class<?>, Set<Object>> changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * @return the model classes that have changes
+	 */
+	public Set<Class<?>> getModelClasses() {
+		return Collections.unmodifiableSet(changes.keySet());
+	}
+
+	public boolean contains(Class<?> modelClass) {
+		return changes.containsKey(modelClass);
+	}
+
+	/**
+	 * @return true when any row of the model's table may have changed (so IDs are not available)
+	 */
+	public boolean isTableChanged(Class<?> modelClass) {
+		return changes.containsKey(modelClass) && changes.get(modelClass) == null;
+	}
+
+	/**
+	 * @return the IDs of the changed rows, an empty set when the model didn't change or null when any row may have changed
+	 */
+	@Nullable
+	public Set<Object> getIds(Class<?> modelClass) {
+		if (!changes.containsKey(modelClass)) {
+			return Collections.emptySet();
+		}
+
+		Set<Object> ids = changes.get(modelClass);
+
+		return (ids != null) ? Collections.unmodifiableSet(ids) : null;
+	}
+
+	/**
+	 * @return the changes of this event for the specified model classes only (or null when there are none)
+	 */
+	@Nullable
+	ChangeEvent filter(Set<Class<?>> modelClasses) {
+		Map<Class<?>, Set<Object>> filtered_changes = new HashMap<>();
+
+		for (Map.Entry<Class<?>, Set<Object>> entry : changes.entrySet()) {
+			if (modelClasses.contains(entry.getKey())) {
+				filtered_changes.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return filtered_changes.isEmpty() ? null : new ChangeEvent(filtered_changes);
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeEvent" + changes.toString();
+	}
+
+	/**
+	 * Collects changes. Not thread-safe.
+	 * <p>
+	 * Tables with more than {@link #MAX_IDS_PER_TABLE} changed rows are marked as changed as a whole,
+	 * so the memory of large imports doesn't grow with their row count.
+	 */
+	public static final class Builder {
+		public static final int MAX_IDS_PER_TABLE = 10000;
+
+		private HashMap<Class<?>, Set<Object>> changes = new HashMap<>();
+		// The model classes whose ID sets are shared with an added event: the sets are copied before they are modified
+		private final HashSet<Class<?>> sharedIdSets = new HashSet<>();
+
+		/**
+		 * Mark a row as changed.
+		 */
+		public Builder addRow(Class<?> modelClass, Object id) {
+			Set<Object> ids = getModifiableIds(modelClass);
+
+			// ids is null when the whole table is already marked
+			if (ids != null) {
+				if (ids.size() < MAX_IDS_PER_TABLE) {
+					ids.add(normalizeId(id));
+				} else if (!ids.contains(normalizeId(id))) {
+					addTable(modelClass);
+				}
+			}
+
+			return this;
+		}
+
+		private static Object normalizeId(Object id) {
+			if (id instanceof Integer || id instanceof Short || id instanceof Byte) {
+				return ((Number) id).longValue();
+			}
+
+			return id;
+		}
+
+		/**
+		 * Mark all rows of a table as (possibly) changed.
+		 */
+		public Builder addTable(Class<?> modelClass) {
+			changes.put(modelClass, null);
+			sharedIdSets.remove(modelClass);
+			return this;
+		}
+
+		/**
+		 * Add all changes of another event. The ID sets of the event are shared until they are modified.
+		 */
+		public Builder addEvent(ChangeEvent event) {
+			for (Map.Entry<Class<?>, Set<Object>> entry : event.changes.entrySet()) {
+				Class<?> model_class = entry.getKey();
+
+				if (entry.getValue() == null) {
+					addTable(model_class);
+				} else if (!changes.containsKey(model_class)) {
+					changes.put(model_class, entry.getValue());
+					sharedIdSets.add(model_class);
+				} else {
+					Set<Object> ids = getModifiableIds(model_class);
+
+					if (ids == null) {
+						continue;
+					}
+
+					ids.addAll(entry.getValue());
+
+					if (ids.size() > MAX_IDS_PER_TABLE) {
+						addTable(model_class);
+					}
+				}
+			}
+
+			return this;
+		}
+
+		/**
+		 * @return the ID set of the model class that can be modified (created when needed) or null when the whole table is marked
+		 */
+		@Nullable
+		private Set<Object> getModifiableIds(Class<?> modelClass) {
+			if (!changes.containsKey(modelClass)) {
+				Set<Object> ids = new HashSet<>();
+				changes.put(modelClass, ids);
+				return ids;
+			}
+
+			Set<Object> ids = changes.get(modelClass);
+
+			if (ids != null && sharedIdSets.remove(modelClass)) {
+				ids = new HashSet<>(ids);
+				changes.put(modelClass, ids);
+			}
+
+			return ids;
+		}
+
+		public boolean isEmpty() {
+			return changes.isEmpty();
+		}
+
+		public void clear() {
+			changes.clear();
+			sharedIdSets.clear();
+		}
+
+		/**
+		 * Create an event from the collected changes. The changes are handed over to the event without copying them,
+		 * so the builder is empty afterwards.
+		 */
+		public ChangeEvent build() {
+			ChangeEvent event = new ChangeEvent(changes);
+			changes = new HashMap<>();
+			sharedIdSets.clear();
+			return event;
+		}
+	}
+}
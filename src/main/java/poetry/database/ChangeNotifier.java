@@ -0,0 +1,172 @@
+package poetry.database;
+
+import android.database.sqlite.SQLiteTransactionListener;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers change events to observers on the main thread.
+ * <p>
+ * Events are debounced: events that are published shortly after each other are coalesced into a single event,
+ * which is delivered when no new events were published for the debounce delay.
+ * <p>
+ * Imports publish their changes when their transaction commits. When an import runs in an outer transaction of the caller,
+ * begin that transaction with a listener from {@link #createTransactionListener()}: the changes are then held until the
+ * outer transaction commits and discarded when it rolls back.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ChangeNotifier {
+	public static final long DEFAULT_DEBOUNCE_DELAY_MS = 100;
+
+	private final Object lock = new Object();
+	// Maps: observer -> model classes (an empty set means all classes)
+	private final LinkedHashMap<ChangeObserver, Set<Class<?>>> observers = new LinkedHashMap<>();
+	private final ChangeEvent.Builder pendingChanges = new ChangeEvent.Builder();
+	// Read without the lock by writers that skip collecting row IDs when nobody observes them
+	private volatile boolean hasObservers;
+	private long debounceDelay = DEFAULT_DEBOUNCE_DELAY_MS;
+	private Handler handler;
+
+	// The changes of the listener transactions of the calling thread: the innermost transaction is first
+	private final ThreadLocal<ArrayDeque<ChangeEvent.Builder>> transactionChanges = new ThreadLocal<ArrayDeque<ChangeEvent.Builder>>() {
+		@Override
+		protected ArrayDeque<ChangeEvent.Builder> initialValue() {
+			return new ArrayDeque<>();
+		}
+	};
+
+	private final Runnable deliverRunnable = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+
+	/**
+	 * @param observer     the observer
+	 * @param modelClasses the model classes to receive changes for or nothing to receive all changes
+	 */
+	public void register(ChangeObserver observer, Class<?>... modelClasses) {
+		synchronized (lock) {
+			observers.put(observer, new HashSet<>(Arrays.asList(modelClasses)));
+			hasObservers = true;
+		}
+	}
+
+	public void unregister(ChangeObserver observer) {
+		synchronized (lock) {
+			observers.remove(observer);
+			hasObservers = !observers.isEmpty();
+		}
+	}
+
+	/**
+	 * @return true when observers are registered: without observers, writers only need to mark the changed tables (not the rows)
+	 */
+	public boolean hasObservers() {
+		return hasObservers;
+	}
+
+	/**
+	 * @param debounceDelay the time in milliseconds to wait for more changes before delivering (0 delivers as soon as possible)
+	 */
+	public void setDebounceDelay(long debounceDelay) {
+		synchronized (lock) {
+			this.debounceDelay = debounceDelay;
+		}
+	}
+
+	/**
+	 * Create a listener for a transaction that contains imports, e.g. for SQLiteDatabase.beginTransactionWithListener().
+	 * The changes that are published on the same thread during the transaction are published when it commits
+	 * (to the enclosing listener transaction, if any) and discarded when it rolls back.
+	 *
+	 * @return a listener for a single transaction
+	 */
+	public SQLiteTransactionListener createTransactionListener() {
+		return new SQLiteTransactionListener() {
+			@Override
+			public void onBegin() {
+				transactionChanges.get().push(new ChangeEvent.Builder());
+			}
+
+			@Override
+			public void onCommit() {
+				ChangeEvent.Builder changes = transactionChanges.get().pop();
+
+				if (!changes.isEmpty()) {
+					publish(changes.build());
+				}
+			}
+
+			@Override
+			public void onRollback() {
+				transactionChanges.get().pop();
+			}
+		};
+	}
+
+	/**
+	 * @return true when the calling thread is in a transaction with a listener from {@link #createTransactionListener()}
+	 */
+	public boolean isInListenerTransaction() {
+		return !transactionChanges.get().isEmpty();
+	}
+
+	/**
+	 * Queue the changes of a committed transaction for delivery.
+	 * In a listener transaction, the changes are held until the transaction ends.
+	 */
+	public void publish(ChangeEvent event) {
+		ArrayDeque<ChangeEvent.Builder> pending_transaction_changes = transactionChanges.get();
+
+		if (!pending_transaction_changes.isEmpty()) {
+			pending_transaction_changes.peek().addEvent(event);
+			return;
+		}
+
+		synchronized (lock) {
+			pendingChanges.addEvent(event);
+
+			if (handler == null) {
+				handler = new Handler(Looper.getMainLooper());
+			}
+
+			// Restart the debounce delay
+			handler.removeCallbacks(deliverRunnable);
+			handler.postDelayed(deliverRunnable, debounceDelay);
+		}
+	}
+
+	private void deliver() {
+		ChangeEvent event;
+		LinkedHashMap<ChangeObserver, Set<Class<?>>> observers_copy;
+
+		synchronized (lock) {
+			if (pendingChanges.isEmpty()) {
+				return;
+			}
+
+			event = pendingChanges.build();
+			pendingChanges.clear();
+			observers_copy = new LinkedHashMap<>(observers);
+		}
+
+		// Observers are called outside the lock, so they can (un)register observers
+		for (Map.Entry<ChangeObserver, Set<Class<?>>> entry : observers_copy.entrySet()) {
+			ChangeEvent observer_event = entry.getValue().isEmpty() ? event : event.filter(entry.getValue());
+
+			if (observer_event != null) {
+				entry.getKey().onChange(observer_event);
+			}
+		}
+	}
+}
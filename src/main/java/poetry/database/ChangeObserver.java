@@ -0,0 +1,13 @@
+package poetry.database;
+
+/**
+ * Receives the changes of committed imports. See {@link DatabaseHelper#registerChangeObserver(ChangeObserver, Class[])}.
+ */
+public interface ChangeObserver {
+	/**
+	 * Called on the main thread after one or more imports were committed.
+	 *
+	 * @param event the coalesced changes (only for the model classes that the observer was registered for)
+	 */
+	void onChange(ChangeEvent event);
+}
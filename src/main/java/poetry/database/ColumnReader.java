@@ -0,0 +1,236 @@
+package poetry.database;
+
+import android.database.Cursor;
+
+import com.j256.ormlite.field.DatabaseField;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.UUID;
+
+import poetry.annotations.Nullable;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.ColumnTypes;
+import poetry.reflection.OrmliteReflection;
+
+/**
+ * Reads a single column from a cursor into a model field.
+ * <p>
+ * The conversion is resolved once per field (into a type code), so reading a row only requires a switch.
+ * Storage formats are resolved by {@link ColumnTypes}, the same way as they are written by the JSON persister.
+ */
+final class ColumnReader {
+	// Foreign objects are created from their ID column
+	private static final int TYPE_FOREIGN = ColumnTypes.FIRST_CUSTOM_TYPE;
+
+	private final Field field;
+	private final String columnName;
+	private final int typeCode;
+	@Nullable
+	private final Enum<?>[] enumConstants;
+	@Nullable
+	private final SimpleDateFormat dateFormat;
+	// For foreign fields: creates the foreign object and reads its ID
+	@Nullable
+	private final Constructor<?> foreignConstructor;
+	@Nullable
+	private final ColumnReader foreignIdReader;
+
+	ColumnReader(Field field, DatabaseField databaseField, AnnotationRetriever annotationRetriever) {
+		Class<?> type = field.getType();
+
+		this.field = field;
+		this.columnName = OrmliteReflection.getFieldName(field, databaseField);
+		this.enumConstants = type.isEnum() ? (Enum<?>[]) type.getEnumConstants() : null;
+		field.setAccessible(true);
+
+		if (OrmliteReflection.isForeign(databaseField)) {
+			Field foreign_id_field = OrmliteReflection.findIdField(annotationRetriever, type);
+
+			if (foreign_id_field == null) {
+				throw new RuntimeException("failed to find id field for foreign object " + type.getName() + " in " + field.getDeclaringClass().getName());
+			}
+
+			this.typeCode = TYPE_FOREIGN;
+			this.dateFormat = null;
+			this.foreignConstructor = getConstructor(type);
+			this.foreignIdReader = new ColumnReader(foreign_id_field, annotationRetriever.getAnnotation(foreign_id_field, DatabaseField.class), annotationRetriever);
+			return;
+		}
+
+		this.foreignConstructor = null;
+		this.foreignIdReader = null;
+
+		this.typeCode = ColumnTypes.getTypeCode(type, databaseField);
+		String date_format = ColumnTypes.getDateFormat(typeCode, databaseField);
+		this.dateFormat = (date_format != null) ? new SimpleDateFormat(date_format, Locale.US) : null;
+	}
+
+	static Constructor<?> getConstructor(Class<?> modelClass) {
+		try {
+			Constructor<?> constructor = modelClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor;
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException("model " + modelClass.getName() + " doesn't have a constructor without arguments", e);
+		}
+	}
+
+	String getColumnName() {
+		return columnName;
+	}
+
+	boolean isSupported() {
+		return typeCode != ColumnTypes.UNSUPPORTED;
+	}
+
+	/**
+	 * Read the column of the cursor's current row into the field of the target object.
+	 * Null values leave primitive fields at their default value.
+	 */
+	void read(Cursor cursor, int columnIndex, Object target) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+		if (cursor.isNull(columnIndex)) {
+			if (!field.getType().isPrimitive()) {
+				field.set(target, null);
+			}
+
+			return;
+		}
+
+		Class<?> type = field.getType();
+
+		switch (typeCode) {
+			case ColumnTypes.INT:
+				if (type.isPrimitive()) {
+					field.setInt(target, cursor.getInt(columnIndex));
+				} else {
+					field.set(target, cursor.getInt(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.LONG:
+				if (type.isPrimitive()) {
+					field.setLong(target, cursor.getLong(columnIndex));
+				} else {
+					field.set(target, cursor.getLong(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.SHORT:
+				if (type.isPrimitive()) {
+					field.setShort(target, cursor.getShort(columnIndex));
+				} else {
+					field.set(target, cursor.getShort(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.BYTE:
+				if (type.isPrimitive()) {
+					field.setByte(target, (byte) cursor.getInt(columnIndex));
+				} else {
+					field.set(target, (byte) cursor.getInt(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.BOOLEAN:
+				if (type.isPrimitive()) {
+					field.setBoolean(target, cursor.getInt(columnIndex) != 0);
+				} else {
+					field.set(target, cursor.getInt(columnIndex) != 0);
+				}
+				break;
+
+			case ColumnTypes.FLOAT:
+				if (type.isPrimitive()) {
+					field.setFloat(target, cursor.getFloat(columnIndex));
+				} else {
+					field.set(target, cursor.getFloat(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.DOUBLE:
+				if (type.isPrimitive()) {
+					field.setDouble(target, cursor.getDouble(columnIndex));
+				} else {
+					field.set(target, cursor.getDouble(columnIndex));
+				}
+				break;
+
+			case ColumnTypes.STRING:
+				field.set(target, cursor.getString(columnIndex));
+				break;
+
+			case ColumnTypes.DATE_LONG:
+				field.set(target, new Date(cursor.getLong(columnIndex)));
+				break;
+
+			case ColumnTypes.DATE_STRING:
+				field.set(target, parseDate(cursor.getString(columnIndex)));
+				break;
+
+			case ColumnTypes.ENUM_NAME:
+				field.set(target, findEnum(cursor.getString(columnIndex), false));
+				break;
+
+			case ColumnTypes.ENUM_ORDINAL:
+				int ordinal = cursor.getInt(columnIndex);
+				field.set(target, (ordinal >= 0 && ordinal < enumConstants.length) ? enumConstants[ordinal] : null);
+				break;
+
+			case ColumnTypes.ENUM_TO_STRING:
+				field.set(target, findEnum(cursor.getString(columnIndex), true));
+				break;
+
+			case ColumnTypes.BIG_DECIMAL:
+				field.set(target, new BigDecimal(cursor.getString(columnIndex)));
+				break;
+
+			case ColumnTypes.UUID_STRING:
+				field.set(target, UUID.fromString(cursor.getString(columnIndex)));
+				break;
+
+			case ColumnTypes.BYTE_ARRAY:
+				field.set(target, cursor.getBlob(columnIndex));
+				break;
+
+			case TYPE_FOREIGN:
+				// Like OrmLite without auto-refresh: a foreign object that only holds its ID
+				Object foreign_object = foreignConstructor.newInstance();
+				foreignIdReader.read(cursor, columnIndex, foreign_object);
+				field.set(target, foreign_object);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	@Nullable
+	private Date parseDate(String value) {
+		try {
+			// SimpleDateFormat is not thread-safe
+			synchronized (dateFormat) {
+				return dateFormat.parse(value);
+			}
+		} catch (ParseException e) {
+			throw new RuntimeException("failed to parse date \"" + value + "\" of " + field.getDeclaringClass().getName() + "." + field.getName(), e);
+		}
+	}
+
+	@Nullable
+	private Enum<?> findEnum(String value, boolean matchToString) {
+		for (Enum<?> constant : enumConstants) {
+			if ((matchToString ? constant.toString() : constant.name()).equals(value)) {
+				return constant;
+			}
+		}
+
+		return null;
+	}
+}
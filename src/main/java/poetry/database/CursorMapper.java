@@ -0,0 +1,137 @@
+package poetry.database;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.j256.ormlite.field.DatabaseField;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import poetry.reflection.AnnotationRetriever;
+
+/**
+ * Maps cursor rows onto model objects without the per-row overhead of OrmLite DAOs.
+ * <p>
+ * The fields, column names and conversions are resolved once per model class (from the same annotations that OrmLite uses).
+ * Column indices are resolved once per cursor. Columns that are not in the cursor are skipped, so partial projections are supported.
+ * Foreign objects are created with only their ID set (like OrmLite does without foreignAutoRefresh)
+ * and foreign collections are not loaded (use {@link ForeignCollectionLoader} to load them in batches).
+ * <p>
+ * This class is thread-safe. Get instances with {@link DatabaseHelper#getCursorMapper(Class)}.
+ *
+ * @param <T> the model type
+ */
+public final class CursorMapper<T> {
+	private final Class<T> modelClass;
+	private final Constructor<?> constructor;
+	private final ColumnReader[] columnReaders;
+
+	CursorMapper(Class<T> modelClass, AnnotationRetriever annotationRetriever) {
+		this.modelClass = modelClass;
+		this.constructor = ColumnReader.getConstructor(modelClass);
+
+		List<ColumnReader> column_readers = new ArrayList<>();
+		HashSet<String> column_names = new HashSet<>();
+
+		// Subclass fields come before superclass fields: the first field of a column wins
+		for (Class<?> current = modelClass; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				DatabaseField database_field = annotationRetriever.getAnnotation(field, DatabaseField.class);
+
+				if (database_field == null) {
+					continue;
+				}
+
+				ColumnReader column_reader = new ColumnReader(field, database_field, annotationRetriever);
+
+				if (!column_reader.isSupported()) {
+					Log.w(getClass().getName(), String.format("field %s of %s has an unsupported type and is not mapped", field.getName(), modelClass.getSimpleName()));
+				} else if (column_names.add(column_reader.getColumnName())) {
+					column_readers.add(column_reader);
+				}
+			}
+		}
+
+		this.columnReaders = column_readers.toArray(new ColumnReader[column_readers.size()]);
+	}
+
+	/**
+	 * Map all rows of a cursor (from the first row). The cursor is not closed.
+	 *
+	 * @param cursor the cursor
+	 * @return the mapped objects
+	 */
+	public List<T> mapAll(Cursor cursor) {
+		Binding binding = bind(cursor);
+		List<T> results = new ArrayList<>(cursor.getCount());
+
+		if (cursor.moveToFirst()) {
+			do {
+				results.add(binding.map());
+			} while (cursor.moveToNext());
+		}
+
+		return results;
+	}
+
+	/**
+	 * Resolve the column indices for a cursor. Use the binding to map rows while iterating the cursor yourself.
+	 *
+	 * @param cursor the cursor
+	 * @return the binding for the cursor
+	 */
+	public Binding bind(Cursor cursor) {
+		return new Binding(cursor);
+	}
+
+	/**
+	 * Maps the rows of a single cursor. Not thread-safe.
+	 */
+	public final class Binding {
+		private final Cursor cursor;
+		// Column indices per column reader (-1 when the cursor doesn't have the column)
+		private final int[] columnIndices;
+
+		private Binding(Cursor cursor) {
+			this.cursor = cursor;
+			this.columnIndices = new int[columnReaders.length];
+
+			for (int i = 0; i < columnReaders.length; ++i) {
+				columnIndices[i] = cursor.getColumnIndex(columnReaders[i].getColumnName());
+			}
+		}
+
+		/**
+		 * @return a new object for the cursor's current row
+		 */
+		public T map() {
+			try {
+				T object = modelClass.cast(constructor.newInstance());
+
+				for (int i = 0; i < columnReaders.length; ++i) {
+					if (columnIndices[i] != -1) {
+						columnReaders[i].read(cursor, columnIndices[i], object);
+					}
+				}
+
+				return object;
+			} catch (IllegalAccessException e) {
+				throw createMappingException(e);
+			} catch (InstantiationException e) {
+				throw createMappingException(e);
+			} catch (InvocationTargetException e) {
+				throw createMappingException(e);
+			}
+		}
+
+		// Multi-catch is avoided: its common type (ReflectiveOperationException) requires API level 19
+		private RuntimeException createMappingException(Exception cause) {
+			return new RuntimeException("failed to map a row onto " + modelClass.getName(), cause);
+		}
+	}
+}
@@ -5,11 +5,20 @@ public class DatabaseConfiguration {
 	private final int modelVersion;
 	private final Class<?>[] modelClasses;
 	private final String databaseName;
+	private final int readConnectionPoolSize;
 
-	public DatabaseConfiguration(int modelVersion, Class<?>[] modelClasses, String databaseName) {
+	/**
+	 * @param readConnectionPoolSize the maximum amount of connections for parallel queries or 0 to disable the read connection pool
+	 */
+	public DatabaseConfiguration(int modelVersion, Class<?>[] modelClasses, String databaseName, int readConnectionPoolSize) {
 		this.modelVersion = modelVersion;
 		this.modelClasses = modelClasses;
 		this.databaseName = databaseName;
+		this.readConnectionPoolSize = readConnectionPoolSize;
+	}
+
+	public DatabaseConfiguration(int modelVersion, Class<?>[] modelClasses, String databaseName) {
+		this(modelVersion, modelClasses, databaseName, 0);
 	}
 
 	public DatabaseConfiguration(int modelVersion, Class<?>[] modelClasses) {
@@ -28,5 +37,8 @@ public class DatabaseConfiguration {
 	public String getDatabaseName() {
 		return databaseName;
 	}
-}
 
+	public int getReadConnectionPoolSize() {
+		return readConnectionPoolSize;
+	}
+}
@@ -1,6 +1,7 @@
 package poetry.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
@@ -12,10 +13,18 @@ import com.j256.ormlite.table.TableUtils;
 
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.List;
+
+import poetry.annotations.Nullable;
+import poetry.reflection.AnnotationRetriever;
 
 public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 	private static DatabaseConfiguration configuration;
 	protected static final HashMap<Class<?>, Dao<?, ?>> cachedDaos = new HashMap<>();
+	private static final ChangeNotifier changeNotifier = new ChangeNotifier();
+	private static final HashMap<Class<?>, CursorMapper<?>> cachedCursorMappers = new HashMap<>();
+	private static final AnnotationRetriever annotationRetriever = new AnnotationRetriever();
+	private ReadConnectionPool readConnectionPool;
 
 	public DatabaseHelper(Context context) {
 		super(context, configuration.getDatabaseName(), null, configuration.getModelVersion());
@@ -43,6 +52,176 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 		OpenHelperManager.releaseHelper();
 	}
 
+	/**
+	 * Get the mapper that converts cursor rows into model objects. This is faster than a DAO for large result sets.
+	 *
+	 * @param modelClass the model type
+	 * @return the cached mapper
+	 */
+	public static <T> CursorMapper<T> getCursorMapper(Class<T> modelClass) {
+		synchronized (cachedCursorMappers) {
+			@SuppressWarnings("unchecked")
+			CursorMapper<T> mapper = (CursorMapper<T>) cachedCursorMappers.get(modelClass);
+
+			if (mapper == null) {
+				mapper = new CursorMapper<>(modelClass, annotationRetriever);
+				cachedCursorMappers.put(modelClass, mapper);
+			}
+
+			return mapper;
+		}
+	}
+
+	/**
+	 * Run a raw query and map all rows with the model's {@link CursorMapper}.
+	 *
+	 * @param modelClass    the model type
+	 * @param sql           the query
+	 * @param selectionArgs the query arguments
+	 * @return the mapped objects
+	 */
+	public <T> List<T> queryForList(Class<T> modelClass, String sql, String... selectionArgs) {
+		ReadConnectionPool pool = getReadConnectionPool();
+		ReadConnectionPool.Connection connection = (pool != null) ? pool.acquire() : null;
+
+		try {
+			SQLiteDatabase database = (connection != null) ? connection.getDatabase() : getReadableDatabase();
+			Cursor cursor = database.rawQuery(sql, selectionArgs);
+
+			try {
+				return getCursorMapper(modelClass).mapAll(cursor);
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			if (connection != null) {
+				pool.release(connection);
+			}
+		}
+	}
+
+	/**
+	 * Get the pool of connections for queries that run in parallel with each other and with imports.
+	 * Creating the pool enables Write Ahead Logging for the database.
+	 *
+	 * @return the pool or null when {@link DatabaseConfiguration#getReadConnectionPoolSize()} is 0
+	 */
+	@Nullable
+	public synchronized ReadConnectionPool getReadConnectionPool() {
+		if (readConnectionPool == null && configuration.getReadConnectionPoolSize() > 0) {
+			SQLiteDatabase database = getWritableDatabase();
+
+			// Pooled connections can only read while the writer is active when the database uses WAL
+			try {
+				if (!database.isWriteAheadLoggingEnabled() && !database.enableWriteAheadLogging()) {
+					Log.w(DatabaseHelper.class.getName(), "read connection pool disabled: Write Ahead Logging is not supported");
+					return null;
+				}
+			} catch (IllegalStateException e) {
+				// WAL can't be enabled during a transaction: the pool is created on a later call
+				Log.w(DatabaseHelper.class.getName(), "read connection pool not available yet: a transaction is active", e);
+				return null;
+			}
+
+			readConnectionPool = new ReadConnectionPool(database.getPath(), configuration.getReadConnectionPoolSize());
+		}
+
+		return readConnectionPool;
+	}
+
+	/**
+	 * Load the foreign collections of the objects with one query per collection (instead of one per object).
+	 *
+	 * @param modelClass the model type
+	 * @param objects    the objects (e.g. as returned by {@link #queryForList(Class, String, String...)})
+	 */
+	public <T> void loadForeignCollections(Class<T> modelClass, List<T> objects) {
+		ReadConnectionPool pool = getReadConnectionPool();
+		ReadConnectionPool.Connection connection = (pool != null) ? pool.acquire() : null;
+
+		try {
+			SQLiteDatabase database = (connection != null) ? connection.getDatabase() : getReadableDatabase();
+			// Writes through the loaded collections go through the helper's connection source
+			new ForeignCollectionLoader(database, getConnectionSource()).load(modelClass, objects);
+		} finally {
+			if (connection != null) {
+				pool.release(connection);
+			}
+		}
+	}
+
+	/**
+	 * Create a pager that fetches pages by key instead of by offset.
+	 * Every fetch uses a connection of the {@link #getReadConnectionPool()} when there is one.
+	 *
+	 * @param modelClass the model type
+	 * @param sortColumn the column to sort on or null to sort on the ID
+	 * @param pageSize   the maximum amount of objects per page
+	 * @return the pager
+	 */
+	public <T> KeysetPager<T> createPager(Class<T> modelClass, @Nullable String sortColumn, int pageSize) {
+		return new KeysetPager<>(getReadableDatabase(), getReadConnectionPool(), modelClass, sortColumn, pageSize);
+	}
+
+	/**
+	 * Find the IDs of the objects whose {@link poetry.json.annotations.FullTextIndexed} fields match a full-text query.
+	 *
+	 * @param modelClass the model type
+	 * @param query      an FTS4 MATCH expression (e.g. "hello world" or "hel*")
+	 * @param limit      the maximum amount of IDs to return
+	 * @return the IDs of the matching objects, the most relevant first
+	 */
+	public <IdType> List<IdType> searchFullText(Class<?> modelClass, String query, int limit) {
+		FullTextIndex full_text_index = new FullTextIndex(annotationRetriever, modelClass);
+
+		if (!full_text_index.hasColumns()) {
+			throw new IllegalArgumentException("class " + modelClass.getName() + " doesn't have FullTextIndexed fields");
+		}
+
+		ReadConnectionPool pool = getReadConnectionPool();
+		ReadConnectionPool.Connection connection = (pool != null) ? pool.acquire() : null;
+
+		try {
+			return full_text_index.search((connection != null) ? connection.getDatabase() : getReadableDatabase(), query, limit);
+		} finally {
+			if (connection != null) {
+				pool.release(connection);
+			}
+		}
+	}
+
+	/**
+	 * Begin a session with connection settings for large imports. Call {@link BulkSession#end()} when the imports are done.
+	 *
+	 * @return the active session
+	 */
+	public BulkSession beginBulkSession() {
+		BulkSession session = new BulkSession(getWritableDatabase());
+		session.begin();
+		return session;
+	}
+
+	/**
+	 * @return the notifier that delivers the changes of committed imports
+	 */
+	public static ChangeNotifier getChangeNotifier() {
+		return changeNotifier;
+	}
+
+	/**
+	 * Receive the changes of committed imports on the main thread.
+	 *
+	 * @param observer     the observer
+	 * @param modelClasses the model classes to receive changes for or nothing to receive all changes
+	 */
+	public static void registerChangeObserver(ChangeObserver observer, Class<?>... modelClasses) {
+		changeNotifier.register(observer, modelClasses);
+	}
+
+	public static void unregisterChangeObserver(ChangeObserver observer) {
+		changeNotifier.unregister(observer);
+	}
+
 	@Override
 	public void onCreate(SQLiteDatabase db, ConnectionSource connectionSource) {
 		createDatabase();
@@ -51,6 +230,12 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 	public void createTable(Class<?> classObject) {
 		try {
 			TableUtils.createTable(getConnectionSource(), classObject);
+
+			FullTextIndex full_text_index = new FullTextIndex(annotationRetriever, classObject);
+
+			if (full_text_index.hasColumns()) {
+				executeStatements(classObject, full_text_index.getCreateStatements());
+			}
 		} catch (SQLException e) {
 			Log.d(DatabaseHelper.class.getName(), "Can't create database", e);
 			throw new RuntimeException(e);
@@ -65,6 +250,12 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 
 	public <T> void dropTable(Class<T> classObject) {
 		try {
+			FullTextIndex full_text_index = new FullTextIndex(annotationRetriever, classObject);
+
+			if (full_text_index.hasColumns()) {
+				executeStatements(classObject, full_text_index.getDropStatements());
+			}
+
 			TableUtils.dropTable(getConnectionSource(), classObject, true);
 
 			if (cachedDaos.containsKey(classObject)) {
@@ -75,6 +266,17 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 		}
 	}
 
+	/**
+	 * Run statements through the DAO, which also works while the database is being created or upgraded.
+	 */
+	private void executeStatements(Class<?> classObject, List<String> statements) throws SQLException {
+		Dao<?, ?> dao = getDao(classObject);
+
+		for (String statement : statements) {
+			dao.executeRawNoArgs(statement);
+		}
+	}
+
 	public void recreateDatabase() {
 		dropDatabase();
 		createDatabase();
@@ -95,6 +297,18 @@ public class DatabaseHelper extends OrmLiteSqliteOpenHelper {
 		}
 	}
 
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (readConnectionPool != null) {
+				readConnectionPool.close();
+				readConnectionPool = null;
+			}
+		}
+
+		super.close();
+	}
+
 	@Override
 	public <D extends com.j256.ormlite.dao.Dao<T, ?>, T> D getDao(java.lang.Class<T> clazz) throws java.sql.SQLException {
 		@SuppressWarnings("unchecked")
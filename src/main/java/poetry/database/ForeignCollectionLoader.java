@@ -0,0 +1,228 @@
+package poetry.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.field.ForeignCollectionField;
+import com.j256.ormlite.support.ConnectionSource;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import poetry.json.annotations.ManyToManyField;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.FieldRetriever;
+import poetry.reflection.OrmliteReflection;
+import poetry.utils.QueryUtils;
+
+/**
+ * Fills the foreign collections of a list of parent objects with one batched query per collection,
+ * instead of one query per parent and collection (like OrmLite does for eager collections).
+ * <p>
+ * For {@link ManyToManyField} collections, the objects that the join table refers to are loaded with one extra batched query,
+ * so the join objects hold fully loaded targets.
+ * <p>
+ * Collections are loaded like OrmLite's eager collections: ForeignCollection fields get an implementation on top of the loaded list
+ * that delegates add(), remove(), update() and refresh() calls to the DAO of the elements.
+ */
+public class ForeignCollectionLoader {
+	private final SQLiteDatabase database;
+	private final ConnectionSource connectionSource;
+	private final AnnotationRetriever annotationRetriever = new AnnotationRetriever();
+	private final FieldRetriever fieldRetriever = new FieldRetriever();
+
+	/**
+	 * @param database         the database to query
+	 * @param connectionSource the source of the DAOs that the loaded collections use for writes and refreshes
+	 */
+	public ForeignCollectionLoader(SQLiteDatabase database, ConnectionSource connectionSource) {
+		this.database = database;
+		this.connectionSource = connectionSource;
+	}
+
+	/**
+	 * Load all the foreign collections of the parents.
+	 *
+	 * @param parentClass the type of the parents
+	 * @param parents     the parents (e.g. as mapped by {@link CursorMapper})
+	 */
+	public <T> void load(Class<T> parentClass, List<T> parents) {
+		Field parent_id_field = OrmliteReflection.findIdField(annotationRetriever, parentClass);
+
+		if (parent_id_field == null) {
+			throw new RuntimeException("class " + parentClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		// Maps: parent ID (as query argument) -> parent
+		LinkedHashMap<String, Object> parents_by_id = new LinkedHashMap<>(parents.size());
+
+		for (T parent : parents) {
+			parents_by_id.put(QueryUtils.parseAttribute(getFieldValue(parent_id_field, parent)), parent);
+		}
+
+		for (Class<?> current = parentClass; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				if (annotationRetriever.getAnnotation(field, ForeignCollectionField.class) != null) {
+					loadCollection(parentClass, field, parents_by_id);
+				}
+			}
+		}
+	}
+
+	private void loadCollection(Class<?> parentClass, Field collectionField, LinkedHashMap<String, Object> parentsById) {
+		Class<?> element_class = OrmliteReflection.getForeignCollectionParameterType(collectionField);
+		Field element_parent_field = OrmliteReflection.findForeignField(annotationRetriever, element_class, parentClass);
+
+		if (element_parent_field == null) {
+			throw new RuntimeException("no foreign field found while processing foreign collection relation for " + element_class.getName());
+		}
+
+		String parent_column_name = OrmliteReflection.getFieldName(annotationRetriever, element_parent_field);
+		Map<String, List<Object>> elements_by_parent_id = queryByColumn(element_class, parent_column_name, parentsById.keySet());
+
+		ManyToManyField many_to_many_field = annotationRetriever.getAnnotation(collectionField, ManyToManyField.class);
+
+		if (many_to_many_field != null) {
+			loadManyToManyTargets(element_class, many_to_many_field.targetType(), elements_by_parent_id);
+		}
+
+		Dao<Object, Object> element_dao = getDao(element_class);
+
+		for (Map.Entry<String, Object> parent_entry : parentsById.entrySet()) {
+			List<Object> elements = elements_by_parent_id.get(parent_entry.getKey());
+
+			if (elements == null) {
+				elements = new ArrayList<>(0);
+			}
+
+			// Refer to the loaded parent instead of an object that only holds the parent ID
+			for (Object element : elements) {
+				setFieldValue(element_parent_field, element, parent_entry.getValue());
+			}
+
+			setFieldValue(collectionField, parent_entry.getValue(), createCollection(collectionField.getType(), elements, element_dao, element_parent_field, parent_column_name, parent_entry.getValue()));
+		}
+	}
+
+	/**
+	 * Replace the target objects of join objects (which only hold the target ID) with fully loaded objects.
+	 */
+	private void loadManyToManyTargets(Class<?> joinClass, Class<?> targetClass, Map<String, List<Object>> joinObjectsByParentId) {
+		Field join_target_field = fieldRetriever.getFirstFieldOfType(joinClass, targetClass);
+		Field target_id_field = OrmliteReflection.findIdField(annotationRetriever, targetClass);
+
+		if (join_target_field == null || target_id_field == null) {
+			throw new RuntimeException("ManyToMany problem: no ID field found for type " + targetClass.getName());
+		}
+
+		List<Object> join_objects = new ArrayList<>();
+		LinkedHashMap<String, Object> target_ids = new LinkedHashMap<>();
+
+		for (List<Object> parent_join_objects : joinObjectsByParentId.values()) {
+			for (Object join_object : parent_join_objects) {
+				Object target = getFieldValue(join_target_field, join_object);
+
+				if (target != null) {
+					target_ids.put(QueryUtils.parseAttribute(getFieldValue(target_id_field, target)), target);
+					join_objects.add(join_object);
+				}
+			}
+		}
+
+		String target_id_column_name = OrmliteReflection.getFieldName(annotationRetriever, target_id_field);
+		Map<String, List<Object>> targets_by_id = queryByColumn(targetClass, target_id_column_name, target_ids.keySet());
+
+		for (Object join_object : join_objects) {
+			Object target_id = getFieldValue(target_id_field, getFieldValue(join_target_field, join_object));
+			List<Object> targets = targets_by_id.get(QueryUtils.parseAttribute(target_id));
+
+			if (targets != null) {
+				setFieldValue(join_target_field, join_object, targets.get(0));
+			}
+		}
+	}
+
+	/**
+	 * Query all the rows where a column holds one of the values, in chunks of the maximum amount of bind arguments.
+	 *
+	 * @return the mapped objects grouped by the column value
+	 */
+	private Map<String, List<Object>> queryByColumn(Class<?> modelClass, String columnName, Collection<String> values) {
+		HashMap<String, List<Object>> results = new HashMap<>();
+		String table_name = OrmliteReflection.getTableName(annotationRetriever, modelClass);
+		String[] value_array = values.toArray(new String[values.size()]);
+		Cursor cursor = QueryUtils.rawQueryInChunks(database, "SELECT * FROM '" + table_name + "' WHERE " + columnName, null, value_array, value_array.length);
+
+		try {
+			CursorMapper<?>.Binding binding = DatabaseHelper.getCursorMapper(modelClass).bind(cursor);
+			int column_index = cursor.getColumnIndexOrThrow(columnName);
+
+			while (cursor.moveToNext()) {
+				String key = cursor.getString(column_index);
+				List<Object> key_results = results.get(key);
+
+				if (key_results == null) {
+					key_results = new ArrayList<>();
+					results.put(key, key_results);
+				}
+
+				key_results.add(binding.map());
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return results;
+	}
+
+	/**
+	 * @return a collection that can be assigned to a field of the specified type
+	 */
+	private static Object createCollection(Class<?> fieldType, List<Object> elements, Dao<Object, Object> elementDao, Field elementParentField, String parentColumnName, Object parent) {
+		if (fieldType.isAssignableFrom(ArrayList.class)) {
+			return elements;
+		} else if (fieldType.isInterface() && Collection.class.isAssignableFrom(fieldType)) {
+			// e.g. ForeignCollection: implement it on top of the list
+			LoadedCollectionHandler handler = new LoadedCollectionHandler(elementDao, elementParentField, parentColumnName, parent, elements);
+			return Proxy.newProxyInstance(fieldType.getClassLoader(), new Class<?>[]{fieldType}, handler);
+		} else {
+			throw new RuntimeException("unsupported foreign collection type: " + fieldType.getName());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Dao<Object, Object> getDao(Class<?> modelClass) {
+		try {
+			return DaoManager.createDao(connectionSource, (Class<Object>) modelClass);
+		} catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Object getFieldValue(Field field, Object object) {
+		try {
+			field.setAccessible(true);
+			return field.get(object);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void setFieldValue(Field field, Object object, Object value) {
+		try {
+			field.setAccessible(true);
+			field.set(object, value);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
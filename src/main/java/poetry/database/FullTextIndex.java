@@ -0,0 +1,240 @@
+package poetry.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.j256.ormlite.field.DatabaseField;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import poetry.annotations.Nullable;
+import poetry.json.annotations.FullTextIndexed;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.OrmliteReflection;
+
+/**
+ * The full-text index of the {@link FullTextIndexed} fields of a model.
+ * <p>
+ * The index is an FTS4 table with external content: it doesn't store a copy of the text, but refers to the rows of the model's table by rowid.
+ * Triggers on the model's table keep the index in sync, so imports, DAO writes and deletes are indexed in the same transaction.
+ * Tables that are replaced or bulk loaded get their triggers back with {@link #getCreateTriggerStatements()}, followed by {@link #getRebuildSql()}.
+ * <p>
+ * Matches are ranked by relevance: for every search term and column, the hits in the row relative to the hits in all rows.
+ */
+public class FullTextIndex {
+	private static final String TABLE_SUFFIX = "_fts";
+
+	private static final Comparator<Match> MATCH_COMPARATOR = new Comparator<Match>() {
+		@Override
+		public int compare(Match lhs, Match rhs) {
+			return Double.compare(lhs.score, rhs.score);
+		}
+	};
+
+	private final Class<?> modelClass;
+	private final String tableName;
+	private final String indexTableName;
+	@Nullable
+	private final String idColumnName;
+	@Nullable
+	private final Class<?> idType;
+	private final List<String> columnNames = new ArrayList<>();
+
+	public FullTextIndex(AnnotationRetriever annotationRetriever, Class<?> modelClass) {
+		Field id_field = OrmliteReflection.findIdField(annotationRetriever, modelClass);
+
+		this.modelClass = modelClass;
+		this.tableName = OrmliteReflection.getTableName(annotationRetriever, modelClass);
+		this.indexTableName = tableName + TABLE_SUFFIX;
+		this.idColumnName = (id_field != null) ? OrmliteReflection.getFieldName(annotationRetriever, id_field) : null;
+		this.idType = (id_field != null) ? id_field.getType() : null;
+
+		for (Class<?> current = modelClass; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				DatabaseField database_field = annotationRetriever.getAnnotation(field, DatabaseField.class);
+
+				if (database_field != null && annotationRetriever.getAnnotation(field, FullTextIndexed.class) != null) {
+					columnNames.add(OrmliteReflection.getFieldName(field, database_field));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true when the model has fields that are annotated with {@link FullTextIndexed}
+	 */
+	public boolean hasColumns() {
+		return !columnNames.isEmpty();
+	}
+
+	/**
+	 * @return the statements that create the index and its triggers, for a model table that was just created:
+	 * follow them with {@link #getRebuildSql()} when the table already holds rows
+	 */
+	public List<String> getCreateStatements() {
+		List<String> statements = new ArrayList<>();
+		statements.add("CREATE VIRTUAL TABLE IF NOT EXISTS `" + indexTableName + "` USING fts4(content=\"" + tableName + "\", " + join("", ", ") + ")");
+		statements.addAll(getDropTriggerStatements());
+		statements.addAll(getCreateTriggerStatements());
+		return statements;
+	}
+
+	/**
+	 * @return the statements that drop the index and its triggers
+	 */
+	public List<String> getDropStatements() {
+		List<String> statements = getDropTriggerStatements();
+		statements.add("DROP TABLE IF EXISTS `" + indexTableName + "`");
+		return statements;
+	}
+
+	public List<String> getDropTriggerStatements() {
+		List<String> statements = new ArrayList<>();
+
+		for (String trigger_suffix : new String[]{"_bu", "_bd", "_au", "_ai"}) {
+			statements.add("DROP TRIGGER IF EXISTS `" + indexTableName + trigger_suffix + "`");
+		}
+
+		return statements;
+	}
+
+	/**
+	 * The rows are removed from the index before they change (the index reads the old text from the model's table)
+	 * and added after they changed. Updates that don't change indexed columns don't fire the triggers.
+	 */
+	public List<String> getCreateTriggerStatements() {
+		String update_columns = join("", ", ");
+		String delete_sql = "DELETE FROM `" + indexTableName + "` WHERE docid = old.rowid; END";
+		String insert_sql = "INSERT INTO `" + indexTableName + "` (docid, " + update_columns + ") VALUES (new.rowid, " + join("new.", ", ") + "); END";
+
+		List<String> statements = new ArrayList<>();
+		statements.add("CREATE TRIGGER `" + indexTableName + "_bu` BEFORE UPDATE OF " + update_columns + " ON `" + tableName + "` BEGIN " + delete_sql);
+		statements.add("CREATE TRIGGER `" + indexTableName + "_bd` BEFORE DELETE ON `" + tableName + "` BEGIN " + delete_sql);
+		statements.add("CREATE TRIGGER `" + indexTableName + "_au` AFTER UPDATE OF " + update_columns + " ON `" + tableName + "` BEGIN " + insert_sql);
+		statements.add("CREATE TRIGGER `" + indexTableName + "_ai` AFTER INSERT ON `" + tableName + "` BEGIN " + insert_sql);
+		return statements;
+	}
+
+	/**
+	 * @return the statement that rebuilds the index from the rows of the model's table
+	 */
+	public String getRebuildSql() {
+		return "INSERT INTO `" + indexTableName + "` (`" + indexTableName + "`) VALUES ('rebuild')";
+	}
+
+	/**
+	 * Find the rows that match a full-text query.
+	 *
+	 * @param database the database to query
+	 * @param query    an FTS4 MATCH expression (e.g. "hello world" or "hel*")
+	 * @param limit    the maximum amount of IDs to return
+	 * @param <IdType> the ID type
+	 * @return the IDs of the matching rows, the most relevant first
+	 */
+	@SuppressWarnings("unchecked")
+	public <IdType> List<IdType> search(SQLiteDatabase database, String query, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+
+		if (idColumnName == null) {
+			throw new RuntimeException("class " + modelClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		String sql = "SELECT c.`" + idColumnName + "`, matchinfo(`" + indexTableName + "`, 'pcx')"
+				+ " FROM `" + indexTableName + "` JOIN `" + tableName + "` AS c ON c.rowid = `" + indexTableName + "`.docid"
+				+ " WHERE `" + indexTableName + "` MATCH ?";
+
+		// Keeps the best matches: the head is the worst of them
+		PriorityQueue<Match> matches = new PriorityQueue<>(limit + 1, MATCH_COMPARATOR);
+		Cursor cursor = database.rawQuery(sql, new String[]{query});
+
+		try {
+			while (cursor.moveToNext()) {
+				matches.add(new Match(getId(cursor), getScore(cursor.getBlob(1))));
+
+				if (matches.size() > limit) {
+					matches.poll();
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+
+		List<Match> sorted_matches = new ArrayList<>(matches);
+		Collections.sort(sorted_matches, Collections.reverseOrder(MATCH_COMPARATOR));
+		List<IdType> ids = new ArrayList<>(sorted_matches.size());
+
+		for (Match match : sorted_matches) {
+			ids.add((IdType) match.id);
+		}
+
+		return ids;
+	}
+
+	private Object getId(Cursor cursor) {
+		if (idType == long.class || idType == Long.class) {
+			return cursor.getLong(0);
+		} else if (idType == int.class || idType == Integer.class) {
+			return cursor.getInt(0);
+		} else {
+			return cursor.getString(0);
+		}
+	}
+
+	/**
+	 * @param matchInfo the result of matchinfo() with format 'pcx': 32-bit integers in native byte order
+	 */
+	private static double getScore(byte[] matchInfo) {
+		IntBuffer values = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+		int phrase_count = values.get(0);
+		int column_count = values.get(1);
+		double score = 0;
+
+		for (int phrase = 0; phrase < phrase_count; ++phrase) {
+			for (int column = 0; column < column_count; ++column) {
+				int offset = 2 + 3 * (phrase * column_count + column);
+				int row_hits = values.get(offset);
+				int all_hits = values.get(offset + 1);
+
+				if (row_hits > 0) {
+					score += (double) row_hits / all_hits;
+				}
+			}
+		}
+
+		return score;
+	}
+
+	private String join(String prefix, String separator) {
+		StringBuilder builder = new StringBuilder();
+
+		for (String column_name : columnNames) {
+			if (builder.length() > 0) {
+				builder.append(separator);
+			}
+
+			builder.append(prefix).append('`').append(column_name).append('`');
+		}
+
+		return builder.toString();
+	}
+
+	private static final class Match {
+		final Object id;
+		final double score;
+
+		Match(Object id, double score) {
+			this.id = id;
+			this.score = score;
+		}
+	}
+}
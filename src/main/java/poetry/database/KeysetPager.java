@@ -0,0 +1,308 @@
+package poetry.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import poetry.annotations.Nullable;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.OrmliteReflection;
+import poetry.utils.QueryUtils;
+
+/**
+ * Pages through a model table by key instead of by offset: every page continues after the sort key and ID of the
+ * previous page's last row, so fetching a page takes the same time at any depth (given an index on the sort columns).
+ * <p>
+ * Pages are identified by opaque continuation tokens. After a page is fetched, the next page is prefetched in the background.
+ * With a {@link ReadConnectionPool}, every query acquires a pooled connection, so fetches don't wait for imports or other readers.
+ * The sort column must not contain null values.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @param <T> the model type
+ */
+public final class KeysetPager<T> {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "poetry-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final SQLiteDatabase database;
+	@Nullable
+	private final ReadConnectionPool readConnectionPool;
+	private final CursorMapper<T> mapper;
+	private final String[] keyColumnNames;
+	private final int pageSize;
+	private final String selectSql;
+	private final String orderSql;
+	private boolean prefetchEnabled = true;
+	@Nullable
+	private String prefetchedToken;
+	@Nullable
+	private Future<Page<T>> prefetchedPage;
+
+	/**
+	 * @param database   the database to query
+	 * @param modelClass the model type
+	 * @param sortColumn the column to sort on or null to sort on the ID
+	 * @param pageSize   the maximum amount of objects per page
+	 */
+	public KeysetPager(SQLiteDatabase database, Class<T> modelClass, @Nullable String sortColumn, int pageSize) {
+		this(database, null, modelClass, sortColumn, pageSize);
+	}
+
+	/**
+	 * @param database           the database to query when there is no pool
+	 * @param readConnectionPool the pool to acquire a connection from for every query or null
+	 * @param modelClass         the model type
+	 * @param sortColumn         the column to sort on or null to sort on the ID
+	 * @param pageSize           the maximum amount of objects per page
+	 */
+	public KeysetPager(SQLiteDatabase database, @Nullable ReadConnectionPool readConnectionPool, Class<T> modelClass, @Nullable String sortColumn, int pageSize) {
+		AnnotationRetriever annotation_retriever = new AnnotationRetriever();
+		Field id_field = OrmliteReflection.findIdField(annotation_retriever, modelClass);
+
+		if (id_field == null) {
+			throw new RuntimeException("class " + modelClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive");
+		}
+
+		String id_column_name = OrmliteReflection.getFieldName(annotation_retriever, id_field);
+
+		this.database = database;
+		this.readConnectionPool = readConnectionPool;
+		this.mapper = DatabaseHelper.getCursorMapper(modelClass);
+		this.pageSize = pageSize;
+
+		// The ID makes the order unique, so no rows are skipped or repeated between pages
+		if (sortColumn == null || sortColumn.equals(id_column_name)) {
+			this.keyColumnNames = new String[]{id_column_name};
+		} else {
+			this.keyColumnNames = new String[]{sortColumn, id_column_name};
+		}
+
+		StringBuilder order_builder = new StringBuilder(" ORDER BY ");
+
+		for (int i = 0; i < keyColumnNames.length; ++i) {
+			if (i != 0) {
+				order_builder.append(", ");
+			}
+
+			order_builder.append(keyColumnNames[i]);
+		}
+
+		// The page size is part of the SQL so the statement is the same for all pages
+		order_builder.append(" LIMIT ").append(pageSize);
+
+		this.selectSql = "SELECT * FROM '" + OrmliteReflection.getTableName(annotation_retriever, modelClass) + "'";
+		this.orderSql = order_builder.toString();
+	}
+
+	/**
+	 * @param prefetchEnabled whether to fetch the next page in the background after every page (enabled by default)
+	 */
+	public synchronized void setPrefetchEnabled(boolean prefetchEnabled) {
+		this.prefetchEnabled = prefetchEnabled;
+
+		if (!prefetchEnabled) {
+			cancelPrefetch();
+		}
+	}
+
+	/**
+	 * Fetch a page. When the requested page was prefetched, the prefetched result is returned.
+	 *
+	 * @param continuationToken null for the first page or the token of the previous page
+	 * @return the page
+	 */
+	public Page<T> fetch(@Nullable String continuationToken) {
+		Future<Page<T>> prefetched_page = null;
+
+		synchronized (this) {
+			if (prefetchedPage != null && equals(prefetchedToken, continuationToken)) {
+				prefetched_page = prefetchedPage;
+				prefetchedPage = null;
+				prefetchedToken = null;
+			} else {
+				cancelPrefetch();
+			}
+		}
+
+		Page<T> page = (prefetched_page != null) ? getPrefetchedPage(prefetched_page) : query(continuationToken);
+
+		if (page.hasNext()) {
+			prefetch(page.getContinuationToken());
+		}
+
+		return page;
+	}
+
+	private synchronized void prefetch(final String continuationToken) {
+		if (!prefetchEnabled) {
+			return;
+		}
+
+		cancelPrefetch();
+
+		prefetchedToken = continuationToken;
+		prefetchedPage = prefetchExecutor.submit(new Callable<Page<T>>() {
+			@Override
+			public Page<T> call() {
+				return query(continuationToken);
+			}
+		});
+	}
+
+	private void cancelPrefetch() {
+		if (prefetchedPage != null) {
+			prefetchedPage.cancel(false);
+			prefetchedPage = null;
+			prefetchedToken = null;
+		}
+	}
+
+	private Page<T> getPrefetchedPage(Future<Page<T>> page) {
+		try {
+			return page.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while waiting for a prefetched page", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new RuntimeException(cause);
+		}
+	}
+
+	private Page<T> query(@Nullable String continuationToken) {
+		String sql;
+		String[] args;
+
+		if (continuationToken == null) {
+			sql = selectSql + orderSql;
+			args = null;
+		} else {
+			List<String> arg_list = new ArrayList<>(keyColumnNames.length * 2);
+			sql = selectSql + " WHERE " + QueryUtils.createKeysetCondition(keyColumnNames, decodeToken(continuationToken), arg_list) + orderSql;
+			args = arg_list.toArray(new String[arg_list.size()]);
+		}
+
+		ReadConnectionPool.Connection connection = (readConnectionPool != null) ? readConnectionPool.acquire() : null;
+
+		try {
+			return mapPage(((connection != null) ? connection.getDatabase() : database).rawQuery(sql, args));
+		} finally {
+			if (connection != null) {
+				readConnectionPool.release(connection);
+			}
+		}
+	}
+
+	private Page<T> mapPage(Cursor cursor) {
+		try {
+			List<T> items = mapper.mapAll(cursor);
+			String next_token = null;
+
+			// A full page might be followed by more rows
+			if (items.size() == pageSize && cursor.moveToLast()) {
+				String[] key_values = new String[keyColumnNames.length];
+
+				for (int i = 0; i < keyColumnNames.length; ++i) {
+					key_values[i] = cursor.getString(cursor.getColumnIndexOrThrow(keyColumnNames[i]));
+				}
+
+				next_token = encodeToken(key_values);
+			}
+
+			return new Page<>(items, next_token);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private static String encodeToken(String[] keyValues) {
+		JSONArray json_array = new JSONArray();
+
+		for (String key_value : keyValues) {
+			json_array.put(key_value);
+		}
+
+		return Base64.encodeToString(json_array.toString().getBytes(UTF_8), Base64.URL_SAFE | Base64.NO_WRAP);
+	}
+
+	private String[] decodeToken(String continuationToken) {
+		try {
+			JSONArray json_array = new JSONArray(new String(Base64.decode(continuationToken, Base64.URL_SAFE), UTF_8));
+
+			if (json_array.length() != keyColumnNames.length) {
+				throw new IllegalArgumentException("continuation token doesn't belong to this pager");
+			}
+
+			String[] key_values = new String[json_array.length()];
+
+			for (int i = 0; i < key_values.length; ++i) {
+				key_values[i] = json_array.getString(i);
+			}
+
+			return key_values;
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("invalid continuation token", e);
+		}
+	}
+
+	private static boolean equals(@Nullable String a, @Nullable String b) {
+		return (a == null) ? b == null : a.equals(b);
+	}
+
+	/**
+	 * @param <T> the model type
+	 */
+	public static final class Page<T> {
+		private final List<T> items;
+		@Nullable
+		private final String continuationToken;
+
+		Page(List<T> items, @Nullable String continuationToken) {
+			this.items = Collections.unmodifiableList(items);
+			this.continuationToken = continuationToken;
+		}
+
+		public List<T> getItems() {
+			return items;
+		}
+
+		/**
+		 * @return the token to fetch the next page with or null when this is the last page
+		 */
+		@Nullable
+		public String getContinuationToken() {
+			return continuationToken;
+		}
+
+		public boolean hasNext() {
+			return continuationToken != null;
+		}
+	}
+}
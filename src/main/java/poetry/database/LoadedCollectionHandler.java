@@ -0,0 +1,257 @@
+package poetry.database;
+
+import com.j256.ormlite.dao.Dao;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Implements collection interfaces (e.g. ForeignCollection) on top of a loaded list, like OrmLite's eager collections.
+ * <p>
+ * Reads are served from the list. The methods that access the database are delegated to the DAO of the elements:
+ * add() creates the element, remove() and clear() delete elements, update() and refresh() update or refresh elements
+ * and refreshCollection() queries the elements of the parent again. OrmLite's iterators are plain iterators that don't need closing.
+ */
+final class LoadedCollectionHandler implements InvocationHandler {
+	private final Dao<Object, Object> dao;
+	private final Field parentField;
+	private final String parentColumnName;
+	private final Object parent;
+	private final List<Object> elements;
+
+	/**
+	 * @param dao              the DAO of the elements
+	 * @param parentField      the field of the elements that refers to the parent
+	 * @param parentColumnName the column of parentField
+	 * @param parent           the object that holds the collection
+	 * @param elements         the loaded elements
+	 */
+	LoadedCollectionHandler(Dao<Object, Object> dao, Field parentField, String parentColumnName, Object parent, List<Object> elements) {
+		this.dao = dao;
+		this.parentField = parentField;
+		this.parentColumnName = parentColumnName;
+		this.parent = parent;
+		this.elements = elements;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		Class<?> return_type = method.getReturnType();
+		int arg_count = (args != null) ? args.length : 0;
+
+		if (name.equals("equals") && arg_count == 1) {
+			return proxy == args[0];
+		} else if (name.equals("hashCode") && arg_count == 0) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("isEager")) {
+			return true;
+		} else if (name.equals("close") || name.equals("closeLastIterator")) {
+			return null;
+		} else if (name.equals("getWrappedIterable")) {
+			return Proxy.newProxyInstance(return_type.getClassLoader(), new Class<?>[]{return_type}, this);
+		} else if (name.equals("getDao")) {
+			return dao;
+		} else if (Iterator.class.isAssignableFrom(return_type)) {
+			// iterator(), closeableIterator(), iteratorThrow(), iterator(int flags), ...
+			Iterator<Object> iterator = new ElementIterator();
+
+			if (return_type == Iterator.class) {
+				return iterator;
+			}
+
+			return Proxy.newProxyInstance(return_type.getClassLoader(), new Class<?>[]{return_type}, new IteratorHandler(iterator));
+		} else if (name.equals("add") && arg_count == 1) {
+			return add(args[0]);
+		} else if (name.equals("addAll") && arg_count == 1) {
+			boolean changed = false;
+
+			for (Object element : (Collection<?>) args[0]) {
+				changed |= add(element);
+			}
+
+			return changed;
+		} else if (name.equals("remove") && arg_count == 1) {
+			return remove(args[0]);
+		} else if (name.equals("removeAll") && arg_count == 1) {
+			boolean changed = false;
+
+			for (Object element : (Collection<?>) args[0]) {
+				changed |= remove(element);
+			}
+
+			return changed;
+		} else if (name.equals("retainAll") && arg_count == 1) {
+			return removeWhere((Collection<?>) args[0], false);
+		} else if (name.equals("clear") && arg_count == 0) {
+			removeWhere(elements, true);
+			return null;
+		} else if (name.equals("update") && arg_count == 1) {
+			return dao.update(args[0]);
+		} else if (name.equals("refresh") && arg_count == 1) {
+			return dao.refresh(args[0]);
+		} else if (name.equals("updateAll")) {
+			int count = 0;
+
+			for (Object element : elements) {
+				count += dao.update(element);
+			}
+
+			return count;
+		} else if (name.equals("refreshAll")) {
+			int count = 0;
+
+			for (Object element : elements) {
+				count += dao.refresh(element);
+			}
+
+			return count;
+		} else if (name.equals("refreshCollection")) {
+			List<Object> loaded_elements = dao.queryForEq(parentColumnName, parent);
+			elements.clear();
+			elements.addAll(loaded_elements);
+			return elements.size();
+		}
+
+		Method list_method = findCollectionMethod(method);
+
+		if (list_method == null) {
+			throw new UnsupportedOperationException(name + "() is not supported by batch loaded collections");
+		}
+
+		try {
+			return list_method.invoke(elements, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private boolean add(Object element) {
+		try {
+			if (parentField.get(element) == null) {
+				parentField.set(element, parent);
+			}
+
+			dao.create(element);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (SQLException e) {
+			throw new IllegalStateException("failed to create " + element.getClass().getName(), e);
+		}
+
+		return elements.add(element);
+	}
+
+	private boolean remove(Object element) {
+		if (!elements.remove(element)) {
+			return false;
+		}
+
+		delete(element);
+		return true;
+	}
+
+	/**
+	 * @param contained true to remove the elements that are in the collection, false to remove the ones that aren't
+	 * @return true when elements were removed
+	 */
+	private boolean removeWhere(Collection<?> collection, boolean contained) {
+		boolean changed = false;
+
+		for (Object element : new ArrayList<>(elements)) {
+			if (collection.contains(element) == contained) {
+				changed |= remove(element);
+			}
+		}
+
+		return changed;
+	}
+
+	private void delete(Object element) {
+		try {
+			dao.delete(element);
+		} catch (SQLException e) {
+			throw new IllegalStateException("failed to delete " + element.getClass().getName(), e);
+		}
+	}
+
+	private static Method findCollectionMethod(Method method) {
+		try {
+			return Collection.class.getMethod(method.getName(), method.getParameterTypes());
+		} catch (NoSuchMethodException e) {
+			try {
+				return Object.class.getMethod(method.getName(), method.getParameterTypes());
+			} catch (NoSuchMethodException e2) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Iterates the list: remove() also deletes the element, like the iterators of OrmLite's eager collections.
+	 */
+	private final class ElementIterator implements Iterator<Object> {
+		private final Iterator<Object> iterator = elements.iterator();
+		private Object current;
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public Object next() {
+			current = iterator.next();
+			return current;
+		}
+
+		@Override
+		public void remove() {
+			iterator.remove();
+			delete(current);
+		}
+	}
+
+	/**
+	 * Implements closeable iterators (e.g. CloseableIterator) on top of a plain iterator.
+	 */
+	private static final class IteratorHandler implements InvocationHandler {
+		private final Iterator<Object> iterator;
+
+		IteratorHandler(Iterator<Object> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if (name.equals("hasNext")) {
+				return iterator.hasNext();
+			} else if (name.equals("next") || name.equals("nextThrow")) {
+				return iterator.next();
+			} else if (name.equals("remove")) {
+				iterator.remove();
+				return null;
+			} else if (name.equals("close") || name.equals("closeQuietly")) {
+				return null;
+			} else if (name.equals("equals") && args != null && args.length == 1) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode") && args == null) {
+				return System.identityHashCode(proxy);
+			} else if (name.equals("toString") && args == null) {
+				return iterator.toString();
+			}
+
+			throw new UnsupportedOperationException(name + "() is not supported by batch loaded collections");
+		}
+	}
+}
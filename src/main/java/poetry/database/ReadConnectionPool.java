@@ -0,0 +1,272 @@
+package poetry.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.j256.ormlite.android.AndroidConnectionSource;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of extra database connections for queries that run in parallel with each other and with imports.
+ * <p>
+ * With Write Ahead Logging (WAL), readers don't block the writer and the writer doesn't block readers,
+ * but a single SQLiteDatabase still serializes the queries of its users. Every pooled connection is a separate
+ * SQLiteDatabase (with its own OrmLite connection source) for the same file. Connections are opened when they are first needed.
+ * <p>
+ * Pooled connections are opened read-only: writes must go through the helper's writable database,
+ * so they are part of its transactions and its change notifications.
+ * <p>
+ * Usage:
+ * <pre>
+ * ReadConnectionPool.Connection connection = pool.acquire();
+ *
+ * try {
+ *     connection.getDao(User.class).queryForAll();
+ * } finally {
+ *     pool.release(connection);
+ * }
+ * </pre>
+ * This class is thread-safe.
+ */
+public final class ReadConnectionPool {
+	// The journal mode is set by the writer connection: read-only connections don't change it
+	private static final int OPEN_FLAGS = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+
+	private final String databasePath;
+	private final int maxConnections;
+	private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();
+	// Includes the connections that are being opened
+	private int openConnections;
+	private int activeConnections;
+	private long acquireCount;
+	private long waitCount;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+	private boolean closed;
+
+	/**
+	 * @param databasePath   the database file (the database must use WAL)
+	 * @param maxConnections the maximum amount of open connections
+	 */
+	public ReadConnectionPool(String databasePath, int maxConnections) {
+		if (maxConnections <= 0) {
+			throw new IllegalArgumentException("maxConnections must be positive");
+		}
+
+		this.databasePath = databasePath;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Get a connection for exclusive use until it is released. Waits when all connections are in use.
+	 *
+	 * @return the connection
+	 */
+	public Connection acquire() {
+		long start_nanos = System.nanoTime();
+		boolean waited = false;
+
+		synchronized (this) {
+			while (true) {
+				if (closed) {
+					throw new IllegalStateException("the connection pool is closed");
+				}
+
+				if (!idleConnections.isEmpty() || openConnections < maxConnections) {
+					break;
+				}
+
+				waited = true;
+
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("interrupted while waiting for a database connection", e);
+				}
+			}
+
+			activeConnections++;
+			acquireCount++;
+
+			if (waited) {
+				long wait_nanos = System.nanoTime() - start_nanos;
+				waitCount++;
+				totalWaitNanos += wait_nanos;
+				maxWaitNanos = Math.max(maxWaitNanos, wait_nanos);
+			}
+
+			if (!idleConnections.isEmpty()) {
+				return idleConnections.pop();
+			}
+
+			// Reserve the connection, but open it outside of the lock
+			openConnections++;
+		}
+
+		boolean opened = false;
+
+		try {
+			Connection connection = new Connection(SQLiteDatabase.openDatabase(databasePath, null, OPEN_FLAGS));
+			opened = true;
+			return connection;
+		} finally {
+			if (!opened) {
+				synchronized (this) {
+					openConnections--;
+					activeConnections--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return a connection to the pool.
+	 *
+	 * @param connection a connection from {@link #acquire()}
+	 */
+	public synchronized void release(Connection connection) {
+		activeConnections--;
+
+		if (closed) {
+			openConnections--;
+			connection.close();
+		} else {
+			idleConnections.push(connection);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Close all idle connections. Active connections are closed when they are released.
+	 */
+	public synchronized void close() {
+		closed = true;
+
+		for (Connection connection : idleConnections) {
+			connection.close();
+		}
+
+		openConnections -= idleConnections.size();
+		idleConnections.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @return a snapshot of the pool usage (to determine the pool size)
+	 */
+	public synchronized Metrics getMetrics() {
+		return new Metrics(maxConnections, openConnections, activeConnections, acquireCount, waitCount, totalWaitNanos / 1000000, maxWaitNanos / 1000000);
+	}
+
+	/**
+	 * A pooled database connection.
+	 */
+	public static final class Connection {
+		private final SQLiteDatabase database;
+		private final ConnectionSource connectionSource;
+
+		private Connection(SQLiteDatabase database) {
+			this.database = database;
+			this.connectionSource = new AndroidConnectionSource(database);
+		}
+
+		public SQLiteDatabase getDatabase() {
+			return database;
+		}
+
+		/**
+		 * @return the OrmLite connection source for this connection (e.g. for query builders)
+		 */
+		public ConnectionSource getConnectionSource() {
+			return connectionSource;
+		}
+
+		/**
+		 * @return a DAO that queries through this connection (DAOs are cached by OrmLite)
+		 */
+		public <D extends Dao<T, ?>, T> D getDao(Class<T> modelClass) throws SQLException {
+			return DaoManager.createDao(connectionSource, modelClass);
+		}
+
+		private void close() {
+			try {
+				connectionSource.close();
+			} catch (IOException e) {
+				Log.w(ReadConnectionPool.class.getName(), "failed to close connection source", e);
+			}
+
+			database.close();
+		}
+	}
+
+	/**
+	 * Pool usage statistics since the pool was created.
+	 */
+	public static final class Metrics {
+		private final int maxConnections;
+		private final int openConnections;
+		private final int activeConnections;
+		private final long acquireCount;
+		private final long waitCount;
+		private final long totalWaitMillis;
+		private final long maxWaitMillis;
+
+		Metrics(int maxConnections, int openConnections, int activeConnections, long acquireCount, long waitCount, long totalWaitMillis, long maxWaitMillis) {
+			this.maxConnections = maxConnections;
+			this.openConnections = openConnections;
+			this.activeConnections = activeConnections;
+			this.acquireCount = acquireCount;
+			this.waitCount = waitCount;
+			this.totalWaitMillis = totalWaitMillis;
+			this.maxWaitMillis = maxWaitMillis;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public int getOpenConnections() {
+			return openConnections;
+		}
+
+		/**
+		 * @return the amount of connections that are currently acquired
+		 */
+		public int getActiveConnections() {
+			return activeConnections;
+		}
+
+		public long getAcquireCount() {
+			return acquireCount;
+		}
+
+		/**
+		 * @return the amount of acquisitions that had to wait for a connection
+		 */
+		public long getWaitCount() {
+			return waitCount;
+		}
+
+		public long getTotalWaitMillis() {
+			return totalWaitMillis;
+		}
+
+		public long getMaxWaitMillis() {
+			return maxWaitMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("ReadConnectionPool.Metrics(open=%d/%d, active=%d, acquired=%d, waited=%d, wait=%dms, max wait=%dms)",
+					openConnections, maxConnections, activeConnections, acquireCount, waitCount, totalWaitMillis, maxWaitMillis);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package poetry.json;
+
+import com.j256.ormlite.field.DatabaseField;
+
+import java.lang.reflect.Field;
+
+import poetry.annotations.Nullable;
+import poetry.json.annotations.ForeignCollectionFieldSingleTarget;
+import poetry.json.annotations.ManyToManyField;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.FieldRetriever;
+import poetry.reflection.OrmliteReflection;
+
+/**
+ * Describes how a foreign collection field is persisted. It is created once per field.
+ * <p>
+ * There are 3 kinds of collections:
+ * <ul>
+ * <li>one-to-many: the target table holds objects with a foreign key to the parent</li>
+ * <li>many-to-many: the target table is a join table with a foreign key to the parent and a foreign key to the target type</li>
+ * <li>base types: the target table holds a foreign key to the parent and a value column</li>
+ * </ul>
+ */
+final class CollectionPlan {
+	static final int KIND_ONE_TO_MANY = 0;
+	static final int KIND_MANY_TO_MANY = 1;
+	static final int KIND_BASE_TYPES = 2;
+
+	private final Field field;
+	private final int kind;
+	private final ModelPlan targetPlan;
+	private final String foreignColumnName;
+	@Nullable
+	private final Class<?> manyToManyTargetClass;
+	@Nullable
+	private final String manyToManyTargetColumnName;
+	@Nullable
+	private final String valueColumnName;
+
+	/**
+	 * @param field               the foreign collection field
+	 * @param parentClass         the model class that holds the field
+	 * @param targetPlan          the plan for the type that is held by the collection
+	 * @param annotationRetriever the annotation retriever that caches the annotations
+	 * @param fieldRetriever      the field retriever that caches the fields
+	 */
+	CollectionPlan(Field field, Class<?> parentClass, ModelPlan targetPlan, AnnotationRetriever annotationRetriever, FieldRetriever fieldRetriever) {
+		Class<?> target_class = targetPlan.getModelClass();
+
+		if (targetPlan.getIdField() == null) {
+			throw new RuntimeException("no id field found while processing foreign collection relation for " + target_class.getName());
+		}
+
+		Field target_foreign_field = OrmliteReflection.findForeignField(annotationRetriever, target_class, parentClass);
+
+		if (target_foreign_field == null) {
+			throw new RuntimeException("no foreign field found while processing foreign collection relation for " + target_class.getName());
+		}
+
+		this.field = field;
+		this.targetPlan = targetPlan;
+		this.foreignColumnName = OrmliteReflection.getFieldName(annotationRetriever, target_foreign_field);
+
+		ManyToManyField many_to_many_field = annotationRetriever.getAnnotation(field, ManyToManyField.class);
+		ForeignCollectionFieldSingleTarget single_target_field = annotationRetriever.getAnnotation(field, ForeignCollectionFieldSingleTarget.class);
+
+		if (many_to_many_field != null) {
+			Field target_target_field = fieldRetriever.getFirstFieldOfType(target_class, many_to_many_field.targetType());
+
+			if (target_target_field == null) {
+				throw new RuntimeException("ManyToMany problem: no ID field found for type " + many_to_many_field.targetType().getName());
+			}
+
+			DatabaseField target_target_database_field = annotationRetriever.getAnnotation(target_target_field, DatabaseField.class);
+
+			this.kind = KIND_MANY_TO_MANY;
+			this.manyToManyTargetClass = target_target_field.getType();
+			this.manyToManyTargetColumnName = OrmliteReflection.getFieldName(target_target_field, target_target_database_field);
+			this.valueColumnName = null;
+		} else if (single_target_field != null) {
+			this.kind = KIND_BASE_TYPES;
+			this.manyToManyTargetClass = null;
+			this.manyToManyTargetColumnName = null;
+			this.valueColumnName = single_target_field.targetField();
+		} else {
+			this.kind = KIND_ONE_TO_MANY;
+			this.manyToManyTargetClass = null;
+			this.manyToManyTargetColumnName = null;
+			this.valueColumnName = null;
+		}
+	}
+
+	Field getField() {
+		return field;
+	}
+
+	/**
+	 * @return one of the KIND_* constants
+	 */
+	int getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the plan for the table that holds the rows of the collection (child, join or base type table)
+	 */
+	ModelPlan getTargetPlan() {
+		return targetPlan;
+	}
+
+	/**
+	 * @return the column in the target table that refers to the parent
+	 */
+	String getForeignColumnName() {
+		return foreignColumnName;
+	}
+
+	/**
+	 * @return the model type that the join table refers to (many-to-many only)
+	 */
+	@Nullable
+	Class<?> getManyToManyTargetClass() {
+		return manyToManyTargetClass;
+	}
+
+	/**
+	 * @return the column in the join table that refers to the target type (many-to-many only)
+	 */
+	@Nullable
+	String getManyToManyTargetColumnName() {
+		return manyToManyTargetColumnName;
+	}
+
+	/**
+	 * @return the column that holds the base type value (base types only)
+	 */
+	@Nullable
+	String getValueColumnName() {
+		return valueColumnName;
+	}
+}
@@ -0,0 +1,109 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import poetry.database.FullTextIndex;
+
+/**
+ * Drops the secondary indexes of tables before a bulk load and rebuilds them afterwards,
+ * so the indexes are built once instead of being updated for every row.
+ * <p>
+ * Only the non-unique indexes that OrmLite creates for the models are dropped: unique indexes are constraints that the import relies on.
+ * Indexes are rebuilt with the same name, followed by ANALYZE for the tables.
+ * Full-text indexes are not updated by their triggers during the load, but rebuilt once.
+ * Both steps are meant to run in the import transaction, so a rollback restores the indexes.
+ */
+final class DeferredIndexes {
+	private final SQLiteDatabase database;
+	private final TableIndexes tableIndexes;
+	// Maps: model class -> table name
+	private final Map<Class<?>, String> tableNames;
+	private final List<DroppedIndex> droppedIndexes = new ArrayList<>();
+	private final List<FullTextIndex> fullTextIndexes;
+
+	DeferredIndexes(SQLiteDatabase database, Map<Class<?>, String> tableNames) {
+		this.database = database;
+		this.tableIndexes = new TableIndexes(database);
+		this.tableNames = tableNames;
+		this.fullTextIndexes = ShadowTables.getFullTextIndexes(tableNames.keySet());
+	}
+
+	void drop() {
+		for (Map.Entry<Class<?>, String> entry : tableNames.entrySet()) {
+			for (TableIndexes.Index index : tableIndexes.getIndexes(entry.getKey())) {
+				if (index.isUnique()) {
+					continue;
+				}
+
+				// Tables that were replaced by ShadowTables use the alternative index name
+				String[] index_names = {index.getName(), ShadowTables.getAlternativeIndexName(index.getName())};
+
+				for (String index_name : index_names) {
+					if (exists(index_name, entry.getValue())) {
+						database.execSQL("DROP INDEX `" + index_name + "`");
+						droppedIndexes.add(new DroppedIndex(index, index_name, entry.getValue()));
+					}
+				}
+			}
+		}
+
+		for (FullTextIndex full_text_index : fullTextIndexes) {
+			for (String statement : full_text_index.getDropTriggerStatements()) {
+				database.execSQL(statement);
+			}
+		}
+
+		Log.i(DeferredIndexes.class.getName(), "dropped " + droppedIndexes.size() + " indexes for the import");
+	}
+
+	void rebuild() {
+		for (DroppedIndex dropped_index : droppedIndexes) {
+			database.execSQL(dropped_index.index.getCreateSql(dropped_index.name, dropped_index.tableName));
+		}
+
+		droppedIndexes.clear();
+
+		for (FullTextIndex full_text_index : fullTextIndexes) {
+			for (String statement : full_text_index.getCreateTriggerStatements()) {
+				database.execSQL(statement);
+			}
+
+			database.execSQL(full_text_index.getRebuildSql());
+		}
+
+		// Update the statistics that the query planner uses to choose indexes
+		for (String table_name : tableNames.values()) {
+			database.execSQL("ANALYZE '" + table_name + "'");
+		}
+	}
+
+	private boolean exists(String indexName, String tableName) {
+		SQLiteStatement statement = database.compileStatement("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name = ? AND tbl_name = ?");
+
+		try {
+			statement.bindString(1, indexName);
+			statement.bindString(2, tableName);
+			return statement.simpleQueryForLong() > 0;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static final class DroppedIndex {
+		final TableIndexes.Index index;
+		final String name;
+		final String tableName;
+
+		DroppedIndex(TableIndexes.Index index, String name, String tableName) {
+			this.index = index;
+			this.name = name;
+			this.tableName = tableName;
+		}
+	}
+}
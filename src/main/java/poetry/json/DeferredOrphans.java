@@ -0,0 +1,206 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Records the children that one-to-many collections keep during an import,
+ * so the orphans can be deleted with one statement per collection at the end of the transaction
+ * instead of one statement per parent.
+ * <p>
+ * The kept children are written to a temporary table per collection as (parent ID, child ID) pairs,
+ * with a (parent ID, NULL) row for every parent so parents without children are cleaned up too.
+ * The temporary tables are created in the import transaction, so a rollback removes them.
+ * <p>
+ * Immediate cleanups use the same statement for parents with more children than fit in a NOT IN clause.
+ */
+final class DeferredOrphans {
+	private static final String TABLE_PREFIX = "poetry_kept_";
+
+	private final SQLiteDatabase database;
+	private final LinkedHashMap<CollectionPlan, KeptChildren> keptChildren = new LinkedHashMap<>();
+	private int tableCount;
+
+	DeferredOrphans(SQLiteDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * Record the children that a parent keeps. When the parent was already recorded in this transaction,
+	 * the earlier children are replaced, just like an immediate cleanup would do.
+	 */
+	void add(CollectionPlan collectionPlan, Object parentId, IdList childIds) throws JSONException {
+		KeptChildren kept_children = keptChildren.get(collectionPlan);
+
+		if (kept_children == null) {
+			kept_children = new KeptChildren(collectionPlan, TABLE_PREFIX + tableCount++);
+			keptChildren.put(collectionPlan, kept_children);
+		}
+
+		kept_children.add(parentId, childIds);
+	}
+
+	/**
+	 * Delete the children of the recorded parents that were not kept and drop the temporary tables.
+	 *
+	 * @return the model classes of the tables that rows were deleted from
+	 */
+	List<Class<?>> deleteOrphans() {
+		List<Class<?>> changed_classes = new ArrayList<>();
+
+		try {
+			for (KeptChildren kept_children : keptChildren.values()) {
+				if (kept_children.deleteOrphans() > 0) {
+					changed_classes.add(kept_children.targetPlan.getModelClass());
+				}
+
+				kept_children.close();
+				database.execSQL("DROP TABLE temp." + kept_children.tableName);
+			}
+		} finally {
+			close();
+		}
+
+		return changed_classes;
+	}
+
+	/**
+	 * Delete the children of a single parent that were not kept, with a temporary table that is dropped afterwards.
+	 *
+	 * @return the amount of deleted rows
+	 */
+	int deleteOrphansNow(CollectionPlan collectionPlan, Object parentId, IdList childIds) throws JSONException {
+		KeptChildren kept_children = new KeptChildren(collectionPlan, TABLE_PREFIX + tableCount++);
+
+		try {
+			kept_children.add(parentId, childIds);
+			return kept_children.deleteOrphans();
+		} finally {
+			kept_children.close();
+			database.execSQL("DROP TABLE temp." + kept_children.tableName);
+		}
+	}
+
+	/**
+	 * Forget the collections whose temporary table was created in a savepoint that was rolled back.
+	 * The children that were recorded in the savepoint are rolled back with it.
+	 */
+	void forgetRolledBackTables() {
+		Iterator<KeptChildren> iterator = keptChildren.values().iterator();
+
+		while (iterator.hasNext()) {
+			KeptChildren kept_children = iterator.next();
+
+			if (!kept_children.exists()) {
+				kept_children.close();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Release the statements without cleaning up (e.g. when the transaction is rolled back).
+	 */
+	void close() {
+		for (KeptChildren kept_children : keptChildren.values()) {
+			kept_children.close();
+		}
+
+		keptChildren.clear();
+	}
+
+	private final class KeptChildren {
+		final ModelPlan targetPlan;
+		final String tableName;
+		private final String foreignColumnName;
+		private final FieldConverter parentIdConverter;
+		private final FieldConverter childIdConverter;
+		private SQLiteStatement insertStatement;
+		private SQLiteStatement deleteParentStatement;
+		// The parents that are recorded so far (as the IDs that are bound)
+		private final HashSet<Object> parentIds = new HashSet<>();
+
+		KeptChildren(CollectionPlan collectionPlan, String tableName) {
+			this.targetPlan = collectionPlan.getTargetPlan();
+			this.tableName = tableName;
+			this.foreignColumnName = collectionPlan.getForeignColumnName();
+			this.parentIdConverter = targetPlan.getFieldByColumnName(foreignColumnName).getConverter();
+			this.childIdConverter = targetPlan.getIdField().getConverter();
+
+			// No column types: values are compared with the affinity of the target table's columns
+			database.execSQL("CREATE TEMP TABLE " + tableName + " (poetry_parent_id, poetry_child_id)");
+			this.insertStatement = database.compileStatement("INSERT INTO " + tableName + " (poetry_parent_id, poetry_child_id) VALUES (?, ?)");
+		}
+
+		void add(Object parentId, IdList childIds) throws JSONException {
+			if (!parentIds.add(parentId)) {
+				// Unindexed, but this only happens when a parent occurs more than once
+				if (deleteParentStatement == null) {
+					deleteParentStatement = database.compileStatement("DELETE FROM " + tableName + " WHERE poetry_parent_id = ?");
+				}
+
+				parentIdConverter.bind(deleteParentStatement, 1, parentId);
+				deleteParentStatement.executeUpdateDelete();
+			}
+
+			insertStatement.clearBindings();
+			parentIdConverter.bind(insertStatement, 1, parentId);
+			insertStatement.executeInsert();
+
+			for (int i = 0; i < childIds.size(); ++i) {
+				childIdConverter.bind(insertStatement, 2, childIds.get(i));
+				insertStatement.executeInsert();
+			}
+		}
+
+		/**
+		 * @return the amount of deleted rows
+		 */
+		int deleteOrphans() {
+			database.execSQL("CREATE INDEX " + tableName + "_index ON " + tableName + " (poetry_parent_id, poetry_child_id)");
+
+			// Unqualified columns in the subquery refer to the target table, because the temporary table only has poetry_* columns
+			SQLiteStatement statement = database.compileStatement("DELETE FROM '" + targetPlan.getTableName() + "'"
+					+ " WHERE " + foreignColumnName + " IN (SELECT poetry_parent_id FROM " + tableName + ")"
+					+ " AND NOT EXISTS (SELECT 1 FROM " + tableName
+					+ " WHERE poetry_parent_id = " + foreignColumnName + " AND poetry_child_id = " + targetPlan.getIdField().getColumnName() + ")");
+
+			try {
+				return statement.executeUpdateDelete();
+			} finally {
+				statement.close();
+			}
+		}
+
+		boolean exists() {
+			SQLiteStatement statement = database.compileStatement("SELECT COUNT(*) FROM sqlite_temp_master WHERE type = 'table' AND name = ?");
+
+			try {
+				statement.bindString(1, tableName);
+				return statement.simpleQueryForLong() > 0;
+			} finally {
+				statement.close();
+			}
+		}
+
+		void close() {
+			if (insertStatement != null) {
+				insertStatement.close();
+				insertStatement = null;
+			}
+
+			if (deleteParentStatement != null) {
+				deleteParentStatement.close();
+				deleteParentStatement = null;
+			}
+		}
+	}
+}
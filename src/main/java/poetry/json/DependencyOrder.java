@@ -0,0 +1,136 @@
+package poetry.json;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import poetry.json.annotations.ManyToManyField;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.OrmliteReflection;
+
+/**
+ * Orders model types so that types which are referenced by other types are processed first.
+ * <p>
+ * A model type references all the model types that it can reach through foreign fields.
+ * Optionally, foreign collections and many-to-many target types are followed too: this orders
+ * object graphs (all the tables an import writes to), while following only foreign fields orders
+ * tables by their foreign keys.
+ */
+final class DependencyOrder {
+	private final AnnotationRetriever annotationRetriever;
+	private final boolean followCollections;
+	// Maps: model class -> all model classes that are reachable from it (it contains the class itself when it references itself)
+	private final HashMap<Class<?>, Set<Class<?>>> referencedTypesCache = new HashMap<>();
+
+	/**
+	 * @param annotationRetriever the annotation retriever that caches the annotations
+	 * @param followCollections   true to also follow foreign collections and many-to-many target types
+	 */
+	DependencyOrder(AnnotationRetriever annotationRetriever, boolean followCollections) {
+		this.annotationRetriever = annotationRetriever;
+		this.followCollections = followCollections;
+	}
+
+	/**
+	 * Sort the keys of a mapping so that the keys with referenced model types come first.
+	 * Keys that don't depend on each other (or depend on each other in a cycle) keep their original order.
+	 *
+	 * @param mapping the mapping to sort the keys for
+	 * @param <Key>   the key type
+	 * @return the sorted keys
+	 */
+	<Key> List<Key> sort(Map<Key, Class<?>> mapping) {
+		List<Key> remaining = new ArrayList<>(mapping.keySet());
+		List<Key> sorted = new ArrayList<>(remaining.size());
+
+		while (!remaining.isEmpty()) {
+			int next_index = 0;
+
+			for (int i = 0; i < remaining.size(); ++i) {
+				if (!dependsOnAny(mapping.get(remaining.get(i)), remaining, mapping)) {
+					next_index = i;
+					break;
+				}
+			}
+
+			sorted.add(remaining.remove(next_index));
+		}
+
+		return sorted;
+	}
+
+	private <Key> boolean dependsOnAny(Class<?> modelClass, List<Key> keys, Map<Key, Class<?>> mapping) {
+		Set<Class<?>> referenced_types = getReferencedTypes(modelClass);
+
+		for (Key key : keys) {
+			Class<?> other_class = mapping.get(key);
+
+			if (other_class != modelClass && referenced_types.contains(other_class)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param modelClass the model to inspect
+	 * @return true when the model can reach itself (e.g. through a foreign field of its own type)
+	 */
+	boolean isSelfReferencing(Class<?> modelClass) {
+		return getReferencedTypes(modelClass).contains(modelClass);
+	}
+
+	/**
+	 * @param modelClass the model to inspect
+	 * @return all the model types that are reachable from the given model
+	 */
+	private Set<Class<?>> getReferencedTypes(Class<?> modelClass) {
+		Set<Class<?>> referenced_types = referencedTypesCache.get(modelClass);
+
+		if (referenced_types == null) {
+			referenced_types = new HashSet<>();
+			collectReferencedTypes(modelClass, referenced_types);
+			referencedTypesCache.put(modelClass, referenced_types);
+		}
+
+		return referenced_types;
+	}
+
+	private void collectReferencedTypes(Class<?> modelClass, Set<Class<?>> output) {
+		for (Class<?> current = modelClass; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				DatabaseField database_field = annotationRetriever.getAnnotation(field, DatabaseField.class);
+
+				if (database_field != null) {
+					if (OrmliteReflection.isForeign(database_field) && output.add(field.getType())) {
+						collectReferencedTypes(field.getType(), output);
+					}
+
+					continue;
+				}
+
+				if (followCollections && annotationRetriever.getAnnotation(field, ForeignCollectionField.class) != null) {
+					Class<?> target_class = OrmliteReflection.getForeignCollectionParameterType(field);
+
+					if (output.add(target_class)) {
+						collectReferencedTypes(target_class, output);
+					}
+
+					ManyToManyField many_to_many_field = annotationRetriever.getAnnotation(field, ManyToManyField.class);
+
+					if (many_to_many_field != null && output.add(many_to_many_field.targetType())) {
+						collectReferencedTypes(many_to_many_field.targetType(), output);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteStatement;
+import android.util.Base64;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import poetry.annotations.Nullable;
+import poetry.reflection.ColumnTypes;
+
+/**
+ * Converts JSON values for a single model field type.
+ * <p>
+ * The conversion is resolved once per field (into a type code) so that binding a value
+ * only requires a switch instead of a chain of type checks. Values are bound directly to a
+ * {@link SQLiteStatement} as long, double, String or blob.
+ * <p>
+ * Storage formats follow the OrmLite {@link DataType} of the field so that DAOs can read the values back:
+ * <ul>
+ * <li>Date: epoch milliseconds for DATE_LONG, otherwise the OrmLite date string format (JSON numbers are interpreted as epoch milliseconds,
+ * strings in another format than the field's are parsed as ISO 8601)</li>
+ * <li>Enum: ordinal for ENUM_INTEGER, toString() for ENUM_TO_STRING, otherwise the name (JSON numbers are interpreted as ordinals)</li>
+ * <li>BigDecimal and UUID: their String representation</li>
+ * <li>byte[]: a blob from a Base64 string or an array of numbers</li>
+ * </ul>
+ */
+final class FieldConverter {
+	// Values of types with a custom converter are bound by the converter
+	private static final int TYPE_CUSTOM = ColumnTypes.FIRST_CUSTOM_TYPE;
+
+	// Date, optional time with optional seconds and fraction, optional zone
+	private static final Pattern ISO_DATE_PATTERN = Pattern.compile(
+			"(\\d{4})-(\\d{2})-(\\d{2})(?:[T ](\\d{2}):(\\d{2})(?::(\\d{2})(?:[.,](\\d+))?)?(Z|[+-]\\d{2}:?\\d{2})?)?");
+
+	private final int typeCode;
+	private final Class<?> type;
+	@Nullable
+	private final ValueConverter customConverter;
+	@Nullable
+	private final Enum<?>[] enumConstants;
+	@Nullable
+	private final SimpleDateFormat dateFormat;
+
+	private FieldConverter(int typeCode, Class<?> type, @Nullable ValueConverter customConverter, @Nullable String dateFormat) {
+		this.typeCode = typeCode;
+		this.type = type;
+		this.customConverter = customConverter;
+		this.enumConstants = type.isEnum() ? (Enum<?>[]) type.getEnumConstants() : null;
+		this.dateFormat = (dateFormat != null) ? new SimpleDateFormat(dateFormat, Locale.US) : null;
+
+		if (this.dateFormat != null) {
+			this.dateFormat.setLenient(false);
+		}
+	}
+
+	/**
+	 * Resolve the converter for a field.
+	 *
+	 * @param field            the field to convert values for
+	 * @param databaseField    the annotation of the field
+	 * @param customConverters custom converters by field type
+	 * @return the converter (never null: check {@link #isSupported()})
+	 */
+	static FieldConverter forField(Field field, DatabaseField databaseField, Map<Class<?>, ValueConverter> customConverters) {
+		Class<?> type = field.getType();
+		ValueConverter custom_converter = customConverters.get(type);
+
+		if (custom_converter != null) {
+			return new FieldConverter(TYPE_CUSTOM, type, custom_converter, null);
+		}
+
+		int type_code = ColumnTypes.getTypeCode(type, databaseField);
+		return new FieldConverter(type_code, type, null, ColumnTypes.getDateFormat(type_code, databaseField));
+	}
+
+	boolean isSupported() {
+		return typeCode != ColumnTypes.UNSUPPORTED;
+	}
+
+	Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * Bind a JSON value to a statement.
+	 *
+	 * @param statement the statement to bind to
+	 * @param index     the 1-based bind index
+	 * @param jsonValue the value as produced by org.json (or as returned by {@link #toIdValue(Object)}) which can be null or JSONObject.NULL
+	 * @throws JSONException when the value cannot be converted
+	 */
+	void bind(SQLiteStatement statement, int index, @Nullable Object jsonValue) throws JSONException {
+		if (jsonValue == null || jsonValue == org.json.JSONObject.NULL) {
+			statement.bindNull(index);
+			return;
+		}
+
+		switch (typeCode) {
+			case ColumnTypes.INT:
+			case ColumnTypes.LONG:
+			case ColumnTypes.SHORT:
+			case ColumnTypes.BYTE:
+				statement.bindLong(index, toLong(jsonValue));
+				break;
+
+			case ColumnTypes.BOOLEAN:
+				statement.bindLong(index, toBoolean(jsonValue) ? 1L : 0L);
+				break;
+
+			case ColumnTypes.FLOAT:
+			case ColumnTypes.DOUBLE:
+				statement.bindDouble(index, toDouble(jsonValue));
+				break;
+
+			case ColumnTypes.STRING:
+				statement.bindString(index, jsonValue.toString());
+				break;
+
+			case ColumnTypes.DATE_LONG:
+				statement.bindLong(index, toLong(jsonValue));
+				break;
+
+			case ColumnTypes.DATE_STRING:
+				statement.bindString(index, toDateString(jsonValue));
+				break;
+
+			case ColumnTypes.ENUM_NAME:
+				statement.bindString(index, toEnum(jsonValue).name());
+				break;
+
+			case ColumnTypes.ENUM_ORDINAL:
+				statement.bindLong(index, toEnum(jsonValue).ordinal());
+				break;
+
+			case ColumnTypes.ENUM_TO_STRING:
+				statement.bindString(index, toEnum(jsonValue).toString());
+				break;
+
+			case ColumnTypes.BIG_DECIMAL:
+				statement.bindString(index, toBigDecimal(jsonValue).toString());
+				break;
+
+			case ColumnTypes.UUID_STRING:
+				statement.bindString(index, toUuid(jsonValue).toString());
+				break;
+
+			case ColumnTypes.BYTE_ARRAY:
+				statement.bindBlob(index, toByteArray(jsonValue));
+				break;
+
+			case TYPE_CUSTOM:
+				customConverter.bind(statement, index, jsonValue);
+				break;
+
+			default:
+				throw new JSONException("unsupported type: " + type.getName());
+		}
+	}
+
+	/**
+	 * Convert the value of a model field into a value that {@link #bind(SQLiteStatement, int, Object)} accepts.
+	 * Values of custom converted types are passed on as they are.
+	 *
+	 * @param fieldValue the field value (can be null)
+	 * @return the value or JSONObject.NULL
+	 */
+	Object fromFieldValue(@Nullable Object fieldValue) {
+		if (fieldValue == null) {
+			return org.json.JSONObject.NULL;
+		}
+
+		switch (typeCode) {
+			case ColumnTypes.DATE_LONG:
+			case ColumnTypes.DATE_STRING:
+				// Numbers are formatted for date strings
+				return ((Date) fieldValue).getTime();
+
+			case ColumnTypes.ENUM_NAME:
+			case ColumnTypes.ENUM_ORDINAL:
+			case ColumnTypes.ENUM_TO_STRING:
+				// Numbers are interpreted as ordinals, which doesn't depend on toString()
+				return ((Enum<?>) fieldValue).ordinal();
+
+			default:
+				return fieldValue;
+		}
+	}
+
+	/**
+	 * Convert a JSON value into a value that can be returned as an object ID.
+	 * Integer types are converted into their boxed field type (e.g. Integer for an int field).
+	 *
+	 * @param jsonValue the JSON value (not null)
+	 * @return the ID value (never null)
+	 * @throws JSONException when the value cannot be converted
+	 */
+	Object toIdValue(Object jsonValue) throws JSONException {
+		switch (typeCode) {
+			case ColumnTypes.INT:
+				return (int) toLong(jsonValue);
+
+			case ColumnTypes.LONG:
+				return toLong(jsonValue);
+
+			case ColumnTypes.SHORT:
+				return (short) toLong(jsonValue);
+
+			case ColumnTypes.BYTE:
+				return (byte) toLong(jsonValue);
+
+			case ColumnTypes.STRING:
+				return jsonValue.toString();
+
+			case ColumnTypes.UUID_STRING:
+				return toUuid(jsonValue).toString();
+
+			default:
+				throw new JSONException("unsupported id type: " + type.getName() + " (only Integer, Long, Short, Byte, String and UUID are supported)");
+		}
+	}
+
+	private static long toLong(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof Number) {
+			return ((Number) jsonValue).longValue();
+		} else if (jsonValue instanceof String) {
+			try {
+				return Long.parseLong((String) jsonValue);
+			} catch (NumberFormatException e) {
+				return (long) toDouble(jsonValue);
+			}
+		} else {
+			throw new JSONException("failed to convert " + jsonValue.getClass().getName() + " to a number");
+		}
+	}
+
+	private static double toDouble(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof Number) {
+			return ((Number) jsonValue).doubleValue();
+		} else if (jsonValue instanceof String) {
+			try {
+				return Double.parseDouble((String) jsonValue);
+			} catch (NumberFormatException e) {
+				throw new JSONException("failed to convert \"" + jsonValue + "\" to a number");
+			}
+		} else {
+			throw new JSONException("failed to convert " + jsonValue.getClass().getName() + " to a number");
+		}
+	}
+
+	private static boolean toBoolean(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof Boolean) {
+			return (Boolean) jsonValue;
+		} else if (jsonValue instanceof Number) {
+			return ((Number) jsonValue).longValue() != 0L;
+		} else if ("true".equalsIgnoreCase(jsonValue.toString())) {
+			return true;
+		} else if ("false".equalsIgnoreCase(jsonValue.toString())) {
+			return false;
+		} else {
+			throw new JSONException("failed to convert \"" + jsonValue + "\" to a boolean");
+		}
+	}
+
+	private Enum<?> toEnum(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof Number) {
+			int ordinal = ((Number) jsonValue).intValue();
+
+			if (ordinal < 0 || ordinal >= enumConstants.length) {
+				throw new JSONException("ordinal " + ordinal + " is out of range for " + type.getName());
+			}
+
+			return enumConstants[ordinal];
+		}
+
+		String name = jsonValue.toString();
+
+		for (Enum<?> constant : enumConstants) {
+			if (constant.name().equals(name)) {
+				return constant;
+			}
+		}
+
+		throw new JSONException("\"" + name + "\" is not a constant of " + type.getName());
+	}
+
+	/**
+	 * @return the value in the field's date format: strings that are already in that format are kept as they are
+	 */
+	private String toDateString(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof Number) {
+			return dateFormat.format(new Date(((Number) jsonValue).longValue()));
+		}
+
+		String value = jsonValue.toString();
+		ParsePosition position = new ParsePosition(0);
+
+		if (dateFormat.parse(value, position) != null && position.getIndex() == value.length()) {
+			return value;
+		}
+
+		return dateFormat.format(parseIsoDate(value));
+	}
+
+	/**
+	 * Parse an ISO 8601 date, e.g. "2015-03-21", "2015-03-21T13:45:00Z" or "2015-03-21T13:45:00.123+01:00".
+	 * Dates without a zone are in the default time zone, like OrmLite's date strings.
+	 * Fractions of a second are truncated to milliseconds.
+	 */
+	private static Date parseIsoDate(String value) throws JSONException {
+		Matcher matcher = ISO_DATE_PATTERN.matcher(value);
+
+		if (!matcher.matches()) {
+			throw new JSONException("failed to convert \"" + value + "\" to a date");
+		}
+
+		String zone = matcher.group(8);
+		TimeZone time_zone;
+
+		if (zone == null) {
+			time_zone = TimeZone.getDefault();
+		} else if (zone.equals("Z")) {
+			time_zone = TimeZone.getTimeZone("GMT");
+		} else {
+			time_zone = TimeZone.getTimeZone("GMT" + zone.substring(0, 3) + ":" + zone.substring(zone.length() - 2));
+		}
+
+		String fraction = (matcher.group(7) != null) ? (matcher.group(7) + "00").substring(0, 3) : "0";
+
+		Calendar calendar = Calendar.getInstance(time_zone, Locale.US);
+		calendar.setLenient(false);
+		calendar.clear();
+		calendar.set(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) - 1, Integer.parseInt(matcher.group(3)),
+				parseOptionalInt(matcher.group(4)), parseOptionalInt(matcher.group(5)), parseOptionalInt(matcher.group(6)));
+		calendar.set(Calendar.MILLISECOND, Integer.parseInt(fraction));
+
+		try {
+			return calendar.getTime();
+		} catch (IllegalArgumentException e) {
+			throw new JSONException("failed to convert \"" + value + "\" to a date");
+		}
+	}
+
+	private static int parseOptionalInt(@Nullable String value) {
+		return (value != null) ? Integer.parseInt(value) : 0;
+	}
+
+	private static BigDecimal toBigDecimal(Object jsonValue) throws JSONException {
+		try {
+			return new BigDecimal(jsonValue.toString());
+		} catch (NumberFormatException e) {
+			throw new JSONException("failed to convert \"" + jsonValue + "\" to a BigDecimal");
+		}
+	}
+
+	private static UUID toUuid(Object jsonValue) throws JSONException {
+		try {
+			return UUID.fromString(jsonValue.toString());
+		} catch (IllegalArgumentException e) {
+			throw new JSONException("failed to convert \"" + jsonValue + "\" to a UUID");
+		}
+	}
+
+	private static byte[] toByteArray(Object jsonValue) throws JSONException {
+		if (jsonValue instanceof byte[]) {
+			return (byte[]) jsonValue;
+		}
+
+		if (jsonValue instanceof JSONArray) {
+			JSONArray json_array = (JSONArray) jsonValue;
+			byte[] bytes = new byte[json_array.length()];
+
+			for (int i = 0; i < bytes.length; ++i) {
+				bytes[i] = (byte) json_array.getInt(i);
+			}
+
+			return bytes;
+		}
+
+		try {
+			return Base64.decode(jsonValue.toString(), Base64.DEFAULT);
+		} catch (IllegalArgumentException e) {
+			throw new JSONException("failed to decode Base64 value");
+		}
+	}
+}
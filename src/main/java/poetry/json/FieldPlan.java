@@ -0,0 +1,102 @@
+package poetry.json;
+
+import java.lang.reflect.Field;
+
+import poetry.annotations.Nullable;
+import poetry.json.annotations.MergePolicy;
+
+/**
+ * Describes how a single model field is mapped from JSON and onto the database.
+ * It is created once per field by {@link ModelPlan}.
+ */
+final class FieldPlan {
+	/**
+	 * The object ID field.
+	 */
+	static final int KIND_ID = 0;
+	/**
+	 * A regular column value.
+	 */
+	static final int KIND_VALUE = 1;
+	/**
+	 * A foreign object (one-to-one or many-to-one): the JSON holds the object or its ID, the column holds the ID.
+	 */
+	static final int KIND_FOREIGN = 2;
+	/**
+	 * A foreign collection (one-to-many or many-to-many).
+	 */
+	static final int KIND_FOREIGN_COLLECTION = 3;
+
+	private final Field field;
+	private final int kind;
+	@Nullable
+	private final String columnName;
+	private final int columnIndex;
+	@Nullable
+	private final FieldConverter converter;
+	private final MergePolicy.Strategy mergeStrategy;
+
+	/**
+	 * @param field         the model field
+	 * @param kind          one of the KIND_* constants
+	 * @param columnName    the column name or null for foreign collections
+	 * @param columnIndex   the index within the updatable columns of the model or -1 when the field is not updatable
+	 * @param converter     the converter for the column value (for foreign fields: the converter of the foreign ID) or null for foreign collections
+	 * @param mergeStrategy how the column value is merged with an existing value
+	 */
+	FieldPlan(Field field, int kind, @Nullable String columnName, int columnIndex, @Nullable FieldConverter converter, MergePolicy.Strategy mergeStrategy) {
+		this.field = field;
+		this.kind = kind;
+		this.columnName = columnName;
+		this.columnIndex = columnIndex;
+		this.converter = converter;
+		this.mergeStrategy = mergeStrategy;
+		field.setAccessible(true);
+	}
+
+	Field getField() {
+		return field;
+	}
+
+	int getKind() {
+		return kind;
+	}
+
+	@Nullable
+	String getColumnName() {
+		return columnName;
+	}
+
+	int getColumnIndex() {
+		return columnIndex;
+	}
+
+	@Nullable
+	FieldConverter getConverter() {
+		return converter;
+	}
+
+	MergePolicy.Strategy getMergeStrategy() {
+		return mergeStrategy;
+	}
+
+	/**
+	 * @return the value of the field in a model object
+	 */
+	@Nullable
+	Object getValue(Object model) {
+		try {
+			return field.get(model);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	void setValue(Object model, @Nullable Object value) {
+		try {
+			field.set(model, value);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Deletes the rows of a model's table that are absent from a complete import of the table.
+ * <p>
+ * The IDs of the imported objects are recorded in a temporary table, so the absent rows are deleted with one statement.
+ * With cascading, the rows of the foreign collections of the deleted rows are deleted first:
+ * the children of one-to-many collections (recursively), the join rows of many-to-many collections
+ * (not the objects they refer to) and the values of base type collections.
+ * The temporary table is created in the import transaction, so a rollback removes it.
+ */
+final class FullTableSync {
+	private static final String TABLE_NAME = "poetry_synced_ids";
+
+	private final JsonPersister persister;
+	private final SQLiteDatabase database;
+	private final ModelPlan plan;
+	private SQLiteStatement insertStatement;
+
+	FullTableSync(JsonPersister persister, SQLiteDatabase database, ModelPlan plan) {
+		if (plan.getIdField() == null) {
+			throw new RuntimeException("class " + plan.getModelClass().getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		this.persister = persister;
+		this.database = database;
+		this.plan = plan;
+
+		// No column type: values are compared with the affinity of the ID column
+		database.execSQL("CREATE TEMP TABLE " + TABLE_NAME + " (poetry_id)");
+		this.insertStatement = database.compileStatement("INSERT INTO " + TABLE_NAME + " (poetry_id) VALUES (?)");
+	}
+
+	/**
+	 * Record the ID of an imported object.
+	 */
+	void add(Object id) throws JSONException {
+		plan.getIdField().getConverter().bind(insertStatement, 1, id);
+		insertStatement.executeInsert();
+	}
+
+	/**
+	 * Delete the rows that were not recorded and drop the temporary table.
+	 *
+	 * @param cascade true to delete the foreign collection rows of the deleted rows
+	 */
+	void deleteAbsentRows(boolean cascade) {
+		close();
+
+		String id_column_name = plan.getIdField().getColumnName();
+		String absent_condition = id_column_name + " NOT IN (SELECT poetry_id FROM " + TABLE_NAME + ")";
+
+		if (cascade) {
+			Set<Class<?>> path = new HashSet<>();
+			path.add(plan.getModelClass());
+			deleteCollectionRows(plan, "SELECT " + id_column_name + " FROM '" + plan.getTableName() + "' WHERE " + absent_condition, path);
+		}
+
+		int deleted_count = executeDelete("DELETE FROM '" + plan.getTableName() + "' WHERE " + absent_condition);
+
+		if (deleted_count > 0) {
+			// The IDs of deleted rows are not known
+			persister.addChangedTable(plan.getModelClass());
+		}
+
+		database.execSQL("DROP TABLE temp." + TABLE_NAME);
+		Log.i(FullTableSync.class.getName(), "deleted " + deleted_count + " absent rows from " + plan.getTableName());
+	}
+
+	/**
+	 * Drop the temporary table without deleting rows.
+	 */
+	void discard() {
+		close();
+		database.execSQL("DROP TABLE temp." + TABLE_NAME);
+	}
+
+	/**
+	 * Release the statement without deleting rows (e.g. when the transaction is rolled back).
+	 */
+	void close() {
+		if (insertStatement != null) {
+			insertStatement.close();
+			insertStatement = null;
+		}
+	}
+
+	/**
+	 * Delete the foreign collection rows of parents.
+	 *
+	 * @param parentPlan     the plan of the parents
+	 * @param parentIdsQuery a query that selects the IDs of the deleted parents
+	 * @param path           the model classes that are being deleted, which are skipped to stop at cyclic relations
+	 */
+	private void deleteCollectionRows(ModelPlan parentPlan, String parentIdsQuery, Set<Class<?>> path) {
+		for (FieldPlan field_plan : parentPlan.getCollectionFields()) {
+			CollectionPlan collection_plan = persister.getCollectionPlan(field_plan, parentPlan.getModelClass());
+			ModelPlan target_plan = collection_plan.getTargetPlan();
+			String condition = collection_plan.getForeignColumnName() + " IN (" + parentIdsQuery + ")";
+
+			if (collection_plan.getKind() == CollectionPlan.KIND_ONE_TO_MANY) {
+				if (!path.add(target_plan.getModelClass())) {
+					Log.w(FullTableSync.class.getName(), "not cascading into " + target_plan.getModelClass().getName() + " because it refers back to a deleted parent type");
+					continue;
+				}
+
+				deleteCollectionRows(target_plan, "SELECT " + target_plan.getIdField().getColumnName() + " FROM '" + target_plan.getTableName() + "' WHERE " + condition, path);
+				path.remove(target_plan.getModelClass());
+			}
+
+			if (executeDelete("DELETE FROM '" + target_plan.getTableName() + "' WHERE " + condition) > 0) {
+				persister.addChangedTable(target_plan.getModelClass());
+			}
+		}
+	}
+
+	private int executeDelete(String sql) {
+		SQLiteStatement statement = database.compileStatement(sql);
+
+		try {
+			return statement.executeUpdateDelete();
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import poetry.annotations.Nullable;
+import poetry.utils.QueryUtils;
+
+/**
+ * A list of row IDs that stores integer IDs (int, long, short and byte) in a long array instead of boxing them.
+ * <p>
+ * All the IDs in a list are expected to be of the same type: the first ID determines how long values are boxed
+ * when they are read. Other ID types (e.g. String or UUID) are kept in a generic list.
+ */
+final class IdList {
+	private long[] longIds;
+	private int size;
+	// The boxed type of the integer IDs (e.g. Integer.class)
+	private Class<?> longIdType;
+	// Non-null when the IDs are not integers
+	private List<Object> objectIds;
+
+	IdList(int capacity) {
+		longIds = new long[Math.max(capacity, 4)];
+	}
+
+	void add(Object id) {
+		if (objectIds == null && isIntegerType(id.getClass()) && (longIdType == null || longIdType == id.getClass())) {
+			if (size == longIds.length) {
+				long[] new_long_ids = new long[size * 2];
+				System.arraycopy(longIds, 0, new_long_ids, 0, size);
+				longIds = new_long_ids;
+			}
+
+			longIdType = id.getClass();
+			longIds[size++] = ((Number) id).longValue();
+			return;
+		}
+
+		if (objectIds == null) {
+			objectIds = new ArrayList<>(Math.max(size * 2, 4));
+
+			for (int i = 0; i < size; ++i) {
+				objectIds.add(box(longIds[i]));
+			}
+
+			longIds = null;
+		}
+
+		objectIds.add(id);
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the ID, boxed to its original type
+	 */
+	Object get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " for size " + size);
+		}
+
+		return (objectIds != null) ? objectIds.get(index) : box(longIds[index]);
+	}
+
+	@SuppressWarnings("unchecked")
+	<IdType> List<IdType> toList() {
+		List<IdType> ids = new ArrayList<>(size);
+
+		for (int i = 0; i < size; ++i) {
+			ids.add((IdType) get(i));
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @return the IDs as query arguments for {@link QueryUtils#getInClause(int)}
+	 */
+	String[] toQueryArgs() {
+		String[] args = new String[size];
+
+		for (int i = 0; i < size; ++i) {
+			args[i] = (objectIds != null) ? QueryUtils.parseAttribute(objectIds.get(i)) : Long.toString(longIds[i]);
+		}
+
+		return args;
+	}
+
+	/**
+	 * Bind the IDs to consecutive arguments of a statement, e.g. for an IN clause from {@link QueryUtils#getInClause(int)}.
+	 *
+	 * @param program    the statement
+	 * @param firstIndex the (1-based) index of the first ID argument
+	 */
+	void bind(SQLiteProgram program, int firstIndex) {
+		for (int i = 0; i < size; ++i) {
+			if (objectIds != null) {
+				program.bindString(firstIndex + i, QueryUtils.parseAttribute(objectIds.get(i)));
+			} else {
+				program.bindLong(firstIndex + i, longIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Run an UPDATE or DELETE statement with an IN clause for the IDs, in chunks of the maximum amount of bind arguments.
+	 *
+	 * @param database   the database
+	 * @param sqlPrefix  the statement up to the IN clause, e.g. "DELETE FROM 'table' WHERE id"
+	 * @param prefixArgs the arguments of the statement prefix or null
+	 * @return the amount of changed rows
+	 */
+	int executeUpdateDelete(SQLiteDatabase database, String sqlPrefix, @Nullable String[] prefixArgs) {
+		if (objectIds != null) {
+			return QueryUtils.executeUpdateDeleteInChunks(database, sqlPrefix, prefixArgs, toQueryArgs(), size);
+		}
+
+		return QueryUtils.executeUpdateDeleteInChunks(database, sqlPrefix, prefixArgs, longIds, size);
+	}
+
+	private Object box(long value) {
+		if (longIdType == Integer.class) {
+			return (int) value;
+		} else if (longIdType == Short.class) {
+			return (short) value;
+		} else if (longIdType == Byte.class) {
+			return (byte) value;
+		} else {
+			return value;
+		}
+	}
+
+	private static boolean isIntegerType(Class<?> type) {
+		return type == Long.class || type == Integer.class || type == Short.class || type == Byte.class;
+	}
+}
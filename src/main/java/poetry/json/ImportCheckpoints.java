@@ -0,0 +1,72 @@
+package poetry.json;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import poetry.annotations.Nullable;
+
+/**
+ * Stores the progress of resumable imports in a bookkeeping table.
+ * <p>
+ * A checkpoint is written in the same transaction as the chunk of data that it covers,
+ * so the data and the checkpoint are either both committed or both rolled back.
+ */
+final class ImportCheckpoints {
+	static final String TABLE_NAME = "poetry_import_checkpoints";
+
+	private final SQLiteDatabase database;
+
+	ImportCheckpoints(SQLiteDatabase database) {
+		this.database = database;
+	}
+
+	void createTable() {
+		database.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (source TEXT PRIMARY KEY, fingerprint TEXT NOT NULL,"
+				+ " byte_offset INTEGER NOT NULL, record_offset INTEGER NOT NULL, chunk INTEGER NOT NULL)");
+	}
+
+	/**
+	 * @param source      the identifier of the import
+	 * @param fingerprint identifies the version of the source data
+	 * @return the checkpoint or null when there is none for this version of the source
+	 */
+	@Nullable
+	Checkpoint load(String source, String fingerprint) {
+		Cursor cursor = database.rawQuery("SELECT byte_offset, record_offset, chunk FROM " + TABLE_NAME + " WHERE source = ? AND fingerprint = ?",
+				new String[]{source, fingerprint});
+
+		try {
+			if (!cursor.moveToFirst()) {
+				return null;
+			}
+
+			return new Checkpoint(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2));
+		} finally {
+			cursor.close();
+		}
+	}
+
+	void save(String source, String fingerprint, Checkpoint checkpoint) {
+		database.execSQL("INSERT OR REPLACE INTO " + TABLE_NAME + " (source, fingerprint, byte_offset, record_offset, chunk) VALUES (?, ?, ?, ?, ?)",
+				new Object[]{source, fingerprint, checkpoint.byteOffset, checkpoint.recordOffset, checkpoint.chunk});
+	}
+
+	void delete(String source) {
+		database.execSQL("DELETE FROM " + TABLE_NAME + " WHERE source = ?", new Object[]{source});
+	}
+
+	static final class Checkpoint {
+		// The position in the source right after the last committed record
+		final long byteOffset;
+		// The amount of committed records
+		final long recordOffset;
+		// The amount of committed chunks
+		final int chunk;
+
+		Checkpoint(long byteOffset, long recordOffset, int chunk) {
+			this.byteOffset = byteOffset;
+			this.recordOffset = recordOffset;
+			this.chunk = chunk;
+		}
+	}
+}
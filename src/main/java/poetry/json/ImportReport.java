@@ -0,0 +1,95 @@
+package poetry.json;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of a single import by {@link JsonPersister}.
+ */
+public final class ImportReport {
+	// Maps: model class -> amount of skipped objects
+	private final HashMap<Class<?>, Integer> skippedCounts = new HashMap<>();
+	private final List<Failure> failures = new ArrayList<>();
+
+	/**
+	 * @return the amount of objects that were not written because the stored row was kept
+	 * (a newer {@link poetry.json.annotations.VersionField} or a {@link poetry.json.annotations.MergePolicy})
+	 */
+	public int getSkippedCount() {
+		int count = 0;
+
+		for (Integer skipped_count : skippedCounts.values()) {
+			count += skipped_count;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return the amount of skipped objects of a specific model
+	 */
+	public int getSkippedCount(Class<?> modelClass) {
+		Integer count = skippedCounts.get(modelClass);
+
+		return (count != null) ? count : 0;
+	}
+
+	/**
+	 * @return the amount of skipped objects by model class
+	 */
+	public Map<Class<?>, Integer> getSkippedCounts() {
+		return Collections.unmodifiableMap(skippedCounts);
+	}
+
+	/**
+	 * @return the objects that failed and were rolled back (with {@link JsonPersister#OPTION_SKIP_FAILED_OBJECTS})
+	 */
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	void addSkipped(Class<?> modelClass) {
+		skippedCounts.put(modelClass, getSkippedCount(modelClass) + 1);
+	}
+
+	void addFailure(String jsonPath, Exception exception) {
+		failures.add(new Failure(jsonPath, exception));
+	}
+
+	@Override
+	public String toString() {
+		return "ImportReport{skipped=" + skippedCounts.toString() + ", failures=" + failures.size() + "}";
+	}
+
+	/**
+	 * A top-level object that failed to import.
+	 */
+	public static final class Failure {
+		private final String jsonPath;
+		private final Exception exception;
+
+		Failure(String jsonPath, Exception exception) {
+			this.jsonPath = jsonPath;
+			this.exception = exception;
+		}
+
+		/**
+		 * @return the path of the object in the imported JSON, e.g. "[12]" for the 13th object of an array
+		 */
+		public String getJsonPath() {
+			return jsonPath;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+
+		@Override
+		public String toString() {
+			return jsonPath + ": " + exception.getMessage();
+		}
+	}
+}
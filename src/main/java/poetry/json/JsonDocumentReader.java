@@ -0,0 +1,144 @@
+package poetry.json;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams through a JSON document and only materializes the values at the requested paths.
+ * All other subtrees are skipped without creating JSONObject or JSONArray instances for them.
+ * <p>
+ * Paths use the same notation as {@link JsonPathResolver}, e.g. "root.key".
+ */
+final class JsonDocumentReader {
+	private final Set<String> paths;
+	private final Set<String> parentPaths = new HashSet<>();
+
+	JsonDocumentReader(Collection<String> paths) {
+		this.paths = new HashSet<>(paths);
+
+		for (String path : paths) {
+			int dot_index = path.indexOf('.');
+
+			while (dot_index != -1) {
+				parentPaths.add(path.substring(0, dot_index));
+				dot_index = path.indexOf('.', dot_index + 1);
+			}
+		}
+	}
+
+	/**
+	 * Read the document and return the values for the paths that were found.
+	 *
+	 * @param inputStream a stream that contains a UTF-8 encoded JSON object
+	 * @return a map of path to JSONObject, JSONArray or primitive value (paths that were not found are not mapped)
+	 * @throws IOException   when reading fails or when the document is malformed
+	 * @throws JSONException when a materialized value cannot be converted
+	 */
+	Map<String, Object> read(InputStream inputStream) throws IOException, JSONException {
+		Map<String, Object> results = new HashMap<>();
+		JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+
+		try {
+			readObject(reader, null, results);
+		} finally {
+			reader.close();
+		}
+
+		return results;
+	}
+
+	private void readObject(JsonReader reader, String path, Map<String, Object> results) throws IOException, JSONException {
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			String child_path = (path == null) ? name : path + '.' + name;
+
+			if (paths.contains(child_path)) {
+				results.put(child_path, readValue(reader));
+			} else if (parentPaths.contains(child_path) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				readObject(reader, child_path, results);
+			} else {
+				reader.skipValue();
+			}
+		}
+
+		reader.endObject();
+	}
+
+	/**
+	 * Convert the next value of the reader into the same types that org.json would produce.
+	 */
+	static Object readValue(JsonReader reader) throws IOException, JSONException {
+		switch (reader.peek()) {
+			case BEGIN_OBJECT:
+				JSONObject json_object = new JSONObject();
+				reader.beginObject();
+
+				while (reader.hasNext()) {
+					json_object.put(reader.nextName(), readValue(reader));
+				}
+
+				reader.endObject();
+				return json_object;
+
+			case BEGIN_ARRAY:
+				JSONArray json_array = new JSONArray();
+				reader.beginArray();
+
+				while (reader.hasNext()) {
+					json_array.put(readValue(reader));
+				}
+
+				reader.endArray();
+				return json_array;
+
+			case NUMBER:
+				return parseNumber(reader.nextString());
+
+			case BOOLEAN:
+				return reader.nextBoolean();
+
+			case NULL:
+				reader.nextNull();
+				return JSONObject.NULL;
+
+			default:
+				return reader.nextString();
+		}
+	}
+
+	/**
+	 * Parse a number the same way org.json does: integers become Integer or Long, others become Double.
+	 */
+	private static Object parseNumber(String number) {
+		if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+			try {
+				long value = Long.parseLong(number);
+
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					return (int) value;
+				} else {
+					return value;
+				}
+			} catch (NumberFormatException e) {
+				// fall through to double parsing for numbers that don't fit in a long
+			}
+		}
+
+		return Double.valueOf(number);
+	}
+}
@@ -0,0 +1,201 @@
+package poetry.json;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import poetry.annotations.Nullable;
+
+/**
+ * Splits newline-delimited JSON (NDJSON / JSON lines) into batches of raw lines.
+ * <p>
+ * Lines are split on newline bytes only, so the JSON itself is not parsed here: batches can be decoded on other threads
+ * with {@link DecodeTask}. Empty lines are skipped. Gzip-compressed input is detected by its magic number and decompressed while reading.
+ */
+final class JsonLinesReader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int GZIP_MAGIC_1 = 0x1f;
+	private static final int GZIP_MAGIC_2 = 0x8b;
+
+	private final InputStream inputStream;
+	private final int batchSize;
+	private final byte[] readBuffer = new byte[64 * 1024];
+	private int readPosition;
+	private int readLimit;
+	// Holds the current line when it spans multiple reads
+	private byte[] lineBuffer = new byte[1024];
+	private int lineLength;
+	// The (1-based) number of the current line
+	private long lineNumber = 1;
+	// The number of the line that was returned last
+	private long returnedLineNumber;
+
+	/**
+	 * @param inputStream the UTF-8 encoded lines, optionally gzip-compressed
+	 * @param batchSize   the maximum amount of lines per batch
+	 */
+	JsonLinesReader(InputStream inputStream, int batchSize) throws IOException {
+		this.inputStream = decompress(inputStream);
+		this.batchSize = batchSize;
+	}
+
+	private static InputStream decompress(InputStream inputStream) throws IOException {
+		BufferedInputStream buffered_stream = new BufferedInputStream(inputStream);
+
+		buffered_stream.mark(2);
+		int byte_1 = buffered_stream.read();
+		int byte_2 = buffered_stream.read();
+		buffered_stream.reset();
+
+		if (byte_1 == GZIP_MAGIC_1 && byte_2 == GZIP_MAGIC_2) {
+			return new GZIPInputStream(buffered_stream, 64 * 1024);
+		} else {
+			return buffered_stream;
+		}
+	}
+
+	/**
+	 * @return the next lines or null when the input has ended
+	 */
+	@Nullable
+	Batch nextBatch() throws IOException {
+		List<byte[]> lines = new ArrayList<>(batchSize);
+		long[] line_numbers = new long[batchSize];
+
+		while (lines.size() < batchSize) {
+			byte[] line = nextLine();
+
+			if (line == null) {
+				break;
+			}
+
+			line_numbers[lines.size()] = returnedLineNumber;
+			lines.add(line);
+		}
+
+		return lines.isEmpty() ? null : new Batch(lines, line_numbers);
+	}
+
+	void close() throws IOException {
+		inputStream.close();
+	}
+
+	/**
+	 * @return the next non-empty line without its line terminator or null when the input has ended
+	 */
+	@Nullable
+	private byte[] nextLine() throws IOException {
+		while (true) {
+			if (readPosition == readLimit) {
+				readLimit = inputStream.read(readBuffer);
+				readPosition = 0;
+
+				if (readLimit == -1) {
+					readLimit = 0;
+
+					// The last line doesn't need a line terminator
+					returnedLineNumber = lineNumber;
+					return takeLine();
+				}
+			}
+
+			int newline_index = -1;
+
+			for (int i = readPosition; i < readLimit; ++i) {
+				if (readBuffer[i] == '\n') {
+					newline_index = i;
+					break;
+				}
+			}
+
+			if (newline_index == -1) {
+				appendToLine(readPosition, readLimit);
+				readPosition = readLimit;
+				continue;
+			}
+
+			appendToLine(readPosition, newline_index);
+			readPosition = newline_index + 1;
+
+			byte[] line = takeLine();
+			returnedLineNumber = lineNumber++;
+
+			if (line != null) {
+				return line;
+			}
+		}
+	}
+
+	private void appendToLine(int start, int end) {
+		int length = end - start;
+
+		if (lineLength + length > lineBuffer.length) {
+			lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + length));
+		}
+
+		System.arraycopy(readBuffer, start, lineBuffer, lineLength, length);
+		lineLength += length;
+	}
+
+	/**
+	 * @return the current line (without "\r") or null when it is blank
+	 */
+	@Nullable
+	private byte[] takeLine() {
+		int end = lineLength;
+
+		while (end > 0 && (lineBuffer[end - 1] == '\r' || lineBuffer[end - 1] == ' ' || lineBuffer[end - 1] == '\t')) {
+			end--;
+		}
+
+		lineLength = 0;
+
+		return (end == 0) ? null : Arrays.copyOf(lineBuffer, end);
+	}
+
+	static final class Batch {
+		final List<byte[]> lines;
+		// The (1-based) number of every line in the input (for error messages)
+		final long[] lineNumbers;
+
+		Batch(List<byte[]> lines, long[] lineNumbers) {
+			this.lines = lines;
+			this.lineNumbers = lineNumbers;
+		}
+	}
+
+	/**
+	 * Decodes the lines of a batch into JSONObjects. Decoding doesn't access shared state, so tasks can run in parallel.
+	 */
+	static final class DecodeTask implements Callable<List<JSONObject>> {
+		private final Batch batch;
+
+		DecodeTask(Batch batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public List<JSONObject> call() throws JSONException {
+			List<JSONObject> objects = new ArrayList<>(batch.lines.size());
+
+			for (int i = 0; i < batch.lines.size(); ++i) {
+				try {
+					objects.add(new JSONObject(new String(batch.lines.get(i), UTF_8)));
+				} catch (JSONException e) {
+					throw new JSONException("line " + batch.lineNumbers[i] + ": " + e.getMessage());
+				}
+			}
+
+			return objects;
+		}
+	}
+}
@@ -1,28 +1,43 @@
 package poetry.json;
 
-import android.content.ContentValues;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
-import android.os.Build;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Looper;
 import android.util.Log;
 
-import com.j256.ormlite.field.DatabaseField;
-import com.j256.ormlite.field.ForeignCollectionField;
-import com.j256.ormlite.table.DatabaseTable;
-
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import poetry.json.annotations.ForeignCollectionFieldSingleTarget;
-import poetry.json.annotations.ManyToManyField;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import poetry.annotations.Nullable;
+import poetry.database.ChangeEvent;
+import poetry.database.ChangeNotifier;
+import poetry.database.DatabaseHelper;
+import poetry.json.annotations.MergePolicy;
 import poetry.reflection.AnnotationRetriever;
 import poetry.reflection.FieldRetriever;
 import poetry.reflection.OrmliteReflection;
@@ -30,6 +45,8 @@ import poetry.utils.QueryUtils;
 
 /**
  * Persist a JSONObject or JSONArray to an SQLite database by parsing annotations (both from OrmLite and custom ones).
+ * <p>
+ * Foreign collections that are null in the JSON are left untouched: an empty array removes the stored children and references.
  */
 public class JsonPersister {
 	/**
@@ -42,11 +59,78 @@ public class JsonPersister {
 	 * Don't display warnings when JSON attributes are not annotated as a field in an object.
 	 */
 	public static final int OPTION_DISABLE_IGNORED_ATTRIBUTES_WARNING = 0x0002;
+	/**
+	 * Write the object graph table by table instead of object by object.
+	 * All objects are first buffered per table (without recursion) and then written in foreign key order,
+	 * grouping rows with the same columns. This is faster for large payloads, at the cost of buffering the whole graph.
+	 */
+	public static final int OPTION_TABLE_AT_A_TIME = 0x0004;
+	/**
+	 * For initial loads into empty (or small) tables: drop the non-unique indexes of the model's tables
+	 * (and the tables of its foreign collections) before the import, then rebuild them and run ANALYZE before the commit.
+	 * Applies to persistArray(), persistFile(), persistBuffer() and persistLines().
+	 */
+	public static final int OPTION_DEFER_INDEXES = 0x0008;
+	/**
+	 * Persist every top-level object in its own savepoint: when an object (or one of its children) fails,
+	 * only that object is rolled back and the failure is added to {@link #getLastImportReport()}.
+	 * Pending batched rows are written after every object, so this is slower than a regular import.
+	 * Applies to persistArray(), persistFile(), persistBuffer(), persistLines() and persistFileResumable().
+	 * Cannot be combined with {@link #OPTION_TABLE_AT_A_TIME}.
+	 */
+	public static final int OPTION_SKIP_FAILED_OBJECTS = 0x0010;
+	/**
+	 * Clean up the old children of one-to-many collections once at the end of the transaction, instead of once per parent:
+	 * the kept children are recorded in a temporary table and the orphans are deleted with one statement per collection.
+	 * Has no effect when {@link #OPTION_DISABLE_FOREIGN_COLLECTION_CLEANUP} is enabled.
+	 */
+	public static final int OPTION_DEFER_ORPHAN_CLEANUP = 0x0020;
+	/**
+	 * For arrays that hold all the records of a table: persistArray() deletes the rows of the model's table
+	 * that are absent from the array, in the import transaction.
+	 * Nothing is deleted when objects failed with {@link #OPTION_SKIP_FAILED_OBJECTS}, because their IDs are unknown.
+	 */
+	public static final int OPTION_DELETE_ABSENT_ROWS = 0x0040;
+	/**
+	 * In combination with {@link #OPTION_DELETE_ABSENT_ROWS}: also delete the foreign collection rows of the deleted rows
+	 * (recursively for one-to-many collections, only the join rows for many-to-many collections).
+	 */
+	public static final int OPTION_CASCADE_ABSENT_ROWS = 0x0080;
+
+	// Android treats statements that start with "ROLLBACK" as the end of its transaction, so the comment hides it
+	private static final String ROLLBACK_TO_OBJECT_SAVEPOINT_SQL = "/* */ ROLLBACK TO poetry_object";
+
+	// The amount of objects that are imported per transaction by replaceArray()
+	private static final int REPLACE_TRANSACTION_SIZE = 500;
+	// The amount of lines per decoding task of persistLines()
+	private static final int LINES_BATCH_SIZE = 256;
 
 	private final SQLiteDatabase database;
 	private final int options;
 	private final FieldRetriever fieldRetriever = new FieldRetriever();
 	private final AnnotationRetriever annotationRetriever = new AnnotationRetriever();
+	private final DependencyOrder documentOrder = new DependencyOrder(annotationRetriever, true);
+	private final DependencyOrder tableOrder = new DependencyOrder(annotationRetriever, false);
+	// Maps: collection plan -> inserter for batched rows (only valid during a transaction)
+	private final HashMap<CollectionPlan, MultiRowInserter> multiRowInserters = new HashMap<>();
+	// Compiled statements (only valid during a transaction)
+	private final StatementCache statementCache;
+	// The kept children of one-to-many collections (only valid during a transaction)
+	private final DeferredOrphans deferredOrphans;
+	private final HashMap<Class<?>, ModelPlan> modelPlans = new HashMap<>();
+	private final HashMap<Field, CollectionPlan> collectionPlans = new HashMap<>();
+	private final HashMap<Class<?>, ValueConverter> valueConverters = new HashMap<>();
+	// Maps: model class -> table name that is written to instead of the model's table (only valid during a table replacement)
+	private final HashMap<Class<?>, String> tableNameOverrides = new HashMap<>();
+	// Changes of the current transaction, which are published after it is committed
+	private final ChangeEvent.Builder changes = new ChangeEvent.Builder();
+	private ChangeNotifier changeNotifier = DatabaseHelper.getChangeNotifier();
+	private boolean transactionSuccessful;
+	// When true, committed changes are kept until they are published explicitly
+	private boolean changePublishingDeferred;
+	private ImportReport importReport = new ImportReport();
+	// Whether WAL is enabled or can't be enabled, so it doesn't have to be checked again
+	private boolean writeAheadLoggingChecked;
 
 	public JsonPersister(SQLiteDatabase writableDatabase) {
 		this(writableDatabase, 0);
@@ -59,8 +143,50 @@ public class JsonPersister {
 	 * @param options          0 or a combination of 1 or more options as defined by {@link JsonPersister}.OPTION_*
 	 */
 	public JsonPersister(SQLiteDatabase writableDatabase, int options) {
+		if (isOptionEnabled(options, OPTION_TABLE_AT_A_TIME | OPTION_SKIP_FAILED_OBJECTS)) {
+			throw new IllegalArgumentException("OPTION_SKIP_FAILED_OBJECTS cannot be combined with OPTION_TABLE_AT_A_TIME");
+		}
+
+		if (isOptionEnabled(options, OPTION_CASCADE_ABSENT_ROWS) && !isOptionEnabled(options, OPTION_DELETE_ABSENT_ROWS)) {
+			throw new IllegalArgumentException("OPTION_CASCADE_ABSENT_ROWS requires OPTION_DELETE_ABSENT_ROWS");
+		}
+
 		database = writableDatabase;
 		this.options = options;
+		statementCache = new StatementCache(writableDatabase);
+		deferredOrphans = new DeferredOrphans(writableDatabase);
+	}
+
+	/**
+	 * Set the notifier that receives the changes of every committed transaction.
+	 * By default, changes are published to {@link DatabaseHelper#getChangeNotifier()}.
+	 *
+	 * @param changeNotifier the notifier
+	 */
+	public void setChangeNotifier(ChangeNotifier changeNotifier) {
+		this.changeNotifier = changeNotifier;
+	}
+
+	/**
+	 * @return the statistics of the last import (or an empty report when nothing was imported yet)
+	 */
+	public ImportReport getLastImportReport() {
+		return importReport;
+	}
+
+	/**
+	 * Register a converter for all model fields of the specified type.
+	 * Custom converters take precedence over the built-in conversions.
+	 *
+	 * @param fieldType the model field type to convert values for
+	 * @param converter the converter
+	 */
+	public void registerValueConverter(Class<?> fieldType, ValueConverter converter) {
+		valueConverters.put(fieldType, converter);
+
+		// Plans hold resolved converters, so they have to be rebuilt
+		modelPlans.clear();
+		collectionPlans.clear();
 	}
 
 	/**
@@ -77,14 +203,25 @@ public class JsonPersister {
 			Log.w(getClass().getName(), "please call persistObject() on a background thread");
 		}
 
+		importReport = new ImportReport();
+
 		try {
 			enableWriteAheadLogging();
 
 			database.beginTransactionNonExclusive();
 
-			IdType id = persistObjectInternal(modelClass, jsonObject);
+			IdType id;
 
-			database.setTransactionSuccessful();
+			if (isOptionEnabled(options, OPTION_TABLE_AT_A_TIME)) {
+				TableGraphWriter writer = createTableGraphWriter();
+				TableGraphWriter.Row row = writer.add(modelClass, jsonObject);
+				writer.write();
+				id = (IdType) row.getId();
+			} else {
+				id = persistObjectInternal(modelClass, jsonObject);
+			}
+
+			setTransactionSuccessful();
 
 			return id;
 		} finally {
@@ -102,418 +239,1384 @@ public class JsonPersister {
 	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
 	 */
 	public <IdType> List<IdType> persistArray(Class<?> modelClass, JSONArray jsonArray) throws JSONException {
+		return persistArray(modelClass, jsonArray, true);
+	}
+
+	/**
+	 * Recursively persist the array and all its object's children.
+	 *
+	 * @param modelClass the type to persist
+	 * @param jsonArray  the json to process
+	 * @param collectIds false to skip collecting the IDs of the persisted objects (which saves memory for large arrays)
+	 * @param <IdType>   the ID type to return
+	 * @return the list of IDs of the persisted objects or an empty list when collectIds is false
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 */
+	public <IdType> List<IdType> persistArray(Class<?> modelClass, JSONArray jsonArray, boolean collectIds) throws JSONException {
 		if (Looper.myLooper() == Looper.getMainLooper()) {
 			Log.w(getClass().getName(), "please call persistArray() on a background thread");
 		}
 
+		importReport = new ImportReport();
+		FullTableSync full_table_sync = null;
+
 		try {
 			enableWriteAheadLogging();
 
 			database.beginTransactionNonExclusive();
 
-			List<IdType> id_list = persistArrayOfObjects(modelClass, jsonArray);
+			DeferredIndexes deferred_indexes = dropDeferredIndexes(modelClass);
+
+			if (isOptionEnabled(options, OPTION_DELETE_ABSENT_ROWS)) {
+				full_table_sync = new FullTableSync(this, database, getModelPlan(modelClass));
+			}
+
+			List<IdType> id_list;
+
+			if (isOptionEnabled(options, OPTION_TABLE_AT_A_TIME)) {
+				TableGraphWriter writer = createTableGraphWriter();
+				List<TableGraphWriter.Row> rows = writer.addAll(modelClass, jsonArray);
+				writer.write();
+				id_list = collectIds ? JsonPersister.<IdType>getRowIds(rows) : new ArrayList<IdType>(0);
+
+				if (full_table_sync != null) {
+					for (TableGraphWriter.Row row : rows) {
+						full_table_sync.add(row.getId());
+					}
+				}
+			} else {
+				IdList ids = collectIds ? new IdList(jsonArray.length()) : null;
+
+				for (int i = 0; i < jsonArray.length(); i++) {
+					Object object_id = persistPayloadObject(modelClass, jsonArray.getJSONObject(i), null, i);
+
+					if (ids != null && object_id != null) {
+						ids.add(object_id);
+					}
+
+					if (full_table_sync != null && object_id != null) {
+						full_table_sync.add(object_id);
+					}
+				}
+
+				id_list = collectIds ? ids.<IdType>toList() : new ArrayList<IdType>(0);
+			}
+
+			if (full_table_sync != null) {
+				if (importReport.getFailures().isEmpty()) {
+					full_table_sync.deleteAbsentRows(isOptionEnabled(options, OPTION_CASCADE_ABSENT_ROWS));
+				} else {
+					Log.w(getClass().getName(), "absent rows of " + modelClass.getName() + " are not deleted because objects failed");
+					full_table_sync.discard();
+				}
+			}
+
+			if (deferred_indexes != null) {
+				// Pending batched rows are written first, so they don't have to update the rebuilt indexes
+				flushMultiRowInserters();
+				deferred_indexes.rebuild();
+			}
 
-			database.setTransactionSuccessful();
+			setTransactionSuccessful();
 
 			return id_list;
 		} catch (JSONException e) {
 			throw e;
 		} finally {
+			if (full_table_sync != null) {
+				full_table_sync.close();
+			}
+
 			endTransaction();
 		}
 	}
 
-	private void enableWriteAheadLogging() {
-		try {
-			// Write Ahead Logging (WAL) mode cannot be enabled or disabled while there are transactions in progress.
-			if (!database.inTransaction()) {
-				database.enableWriteAheadLogging();
-			}
-		} catch (IllegalStateException e) {
-		    /*
-             * To catch: java.lang.IllegalStateException: Write Ahead Logging (WAL) mode cannot be enabled or disabled while there are transactions in progress.  Finish all transactions and release all active database connections first.
-             * This exception still gets triggered, possibly because the transaction is started right after inTransaction() is checked.
-             */
-			if (Build.VERSION.SDK_INT >= 16 && !database.isWriteAheadLoggingEnabled()) {
-				Log.w(getClass().getName(), "Write Ahead Logging is not enabled because a transaction was active");
+	/**
+	 * Persist multiple roots of a JSON document in a single transaction.
+	 * <p>
+	 * Each path (e.g. "users" or "data.groups") is mapped onto the model type that it holds.
+	 * The value at a path can be a JSONObject or a JSONArray of objects. Paths that are not found in the document are ignored.
+	 * Roots are persisted in dependency order: roots whose model type is referenced by the model type of another root are persisted first.
+	 *
+	 * @param jsonObject  the document to process
+	 * @param pathMapping maps a JSON path onto the model type that is found at that path
+	 * @return a map of JSON path to the list of persisted IDs for that path
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 */
+	public Map<String, List<Object>> persistDocument(JSONObject jsonObject, Map<String, Class<?>> pathMapping) throws JSONException {
+		Map<String, Object> values = new HashMap<>(pathMapping.size());
+
+		for (String path : pathMapping.keySet()) {
+			Object value = resolveDocumentValue(jsonObject, path);
+
+			if (value != null) {
+				values.put(path, value);
 			}
 		}
+
+		return persistDocumentValues(values, pathMapping);
 	}
 
-	private void endTransaction() {
-		if (database.inTransaction()) {
-			try {
-				database.endTransaction();
-			} catch (IllegalStateException e) {
-				Log.w(getClass().getName(), "endTransaction() failed - this does not mean there was a rollback, it just means that the transaction was closed earlier than expeced.");
-			}
-		}
+	/**
+	 * Persist multiple roots of a JSON document in a single transaction.
+	 * <p>
+	 * The document is streamed: subtrees that are not mapped are skipped without being materialized.
+	 * See {@link #persistDocument(JSONObject, Map)} for the mapping and ordering rules.
+	 *
+	 * @param inputStream a stream with a UTF-8 encoded JSON object (the stream is closed when this method returns)
+	 * @param pathMapping maps a JSON path onto the model type that is found at that path
+	 * @return a map of JSON path to the list of persisted IDs for that path
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 * @throws IOException   when the stream cannot be read or contains malformed JSON
+	 */
+	public Map<String, List<Object>> persistDocument(InputStream inputStream, Map<String, Class<?>> pathMapping) throws JSONException, IOException {
+		Map<String, Object> values = new JsonDocumentReader(pathMapping.keySet()).read(inputStream);
+
+		return persistDocumentValues(values, pathMapping);
 	}
 
 	/**
-	 * Main persistence method for persisting a single object
+	 * Persist a file that holds a JSON object or a JSON array of objects.
+	 * <p>
+	 * The file is memory-mapped and parsed directly from its UTF-8 bytes. Unlike {@link #persistArray(Class, JSONArray)},
+	 * the file is never loaded as a String and only the attributes that are mapped by the model are materialized.
+	 * Attributes that are not mapped are skipped without warnings.
 	 *
 	 * @param modelClass the type to persist
-	 * @param jsonObject the json data to persist
+	 * @param file       a UTF-8 encoded JSON file
 	 * @param <IdType>   the ID type to return
-	 * @return the object ID (never null)
-	 * @throws JSONException when json processing fails
+	 * @return the list of IDs of the persisted objects
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 * @throws IOException   when the file cannot be read or contains malformed JSON
 	 */
-	private <IdType> IdType persistObjectInternal(Class<?> modelClass, JSONObject jsonObject) throws JSONException {
-		DatabaseTable table_annotation = modelClass.getAnnotation(DatabaseTable.class);
+	public <IdType> List<IdType> persistFile(Class<?> modelClass, File file) throws JSONException, IOException {
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = random_access_file.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
 
-		if (table_annotation == null) {
-			throw new RuntimeException("DatabaseTable annotation not found for " + modelClass.getName());
+			return persistBuffer(modelClass, buffer);
+		} finally {
+			random_access_file.close();
 		}
+	}
 
-		ContentValues values = new ContentValues();
-		Iterator<?> json_keys = jsonObject.keys();
-		List<ForeignCollectionMapping> foreign_collection_mappings = new ArrayList<>();
+	/**
+	 * Persist a buffer that holds a UTF-8 encoded JSON object or a JSON array of objects.
+	 * The buffer can wrap a (pooled) byte array. See {@link #persistFile(Class, File)} for details.
+	 *
+	 * @param modelClass the type to persist
+	 * @param buffer     the JSON from the buffer's position up to its limit (the position is not changed)
+	 * @param <IdType>   the ID type to return
+	 * @return the list of IDs of the persisted objects
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 * @throws IOException   when the buffer contains malformed JSON
+	 */
+	public <IdType> List<IdType> persistBuffer(Class<?> modelClass, ByteBuffer buffer) throws JSONException, IOException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call persistBuffer() on a background thread");
+		}
 
-		String table_name = OrmliteReflection.getTableName(modelClass, table_annotation);
+		importReport = new ImportReport();
 
-		// We want to know the object ID because we need it to resolve one-to-many relationships (foreign collection fields)
-		String id_field_name = null;
-		Object object_id = null;
+		Utf8JsonReader reader = new Utf8JsonReader(buffer);
+		PayloadReader payload_reader = new PayloadReader(this, reader);
+		ModelPlan plan = getModelPlan(modelClass);
+		TableGraphWriter writer = isOptionEnabled(options, OPTION_TABLE_AT_A_TIME) ? createTableGraphWriter() : null;
+		// Holds IDs or, when the table graph writer is used, rows
+		List<Object> results = new ArrayList<>();
 
-		// Process all JSON keys and map them to the database
-		while (json_keys.hasNext()) {
-			// Get the next key
-			String json_key = (String) json_keys.next();
+		try {
+			enableWriteAheadLogging();
 
-			// Find a Field with the same name as the key
-			// TODO: use JsonProperty annotation to get an optional name override
+			database.beginTransactionNonExclusive();
 
-			Field field = fieldRetriever.getField(modelClass, json_key);
+			DeferredIndexes deferred_indexes = dropDeferredIndexes(modelClass);
 
-			if (field == null) {
-				if (!isOptionEnabled(options, OPTION_DISABLE_IGNORED_ATTRIBUTES_WARNING)) {
-					Log.w(getClass().getName(), String.format("ignored attribute %s because it wasn't found in %s as a DatabaseField", json_key, modelClass.getSimpleName()));
-				}
+			// Objects are persisted while reading, so only one object is in memory at a time (unless they are buffered by the writer)
+			if (reader.peek() == Utf8JsonReader.TOKEN_ARRAY) {
+				reader.beginArray();
 
-				continue;
+				for (int i = 0; reader.hasNext(); ++i) {
+					addResult(results, persistPayloadObject(modelClass, payload_reader.readObject(plan), writer, i));
+				}
+			} else {
+				addResult(results, persistPayloadObject(modelClass, payload_reader.readObject(plan), writer, -1));
 			}
 
-			DatabaseField database_field = annotationRetriever.getAnnotation(field, DatabaseField.class);
-
-			// DatabaseField is used for: object IDs, simple key-values and one-to-one relationships
-			if (database_field != null) {
-				// Object IDs are a special case because we need to insert a new object if the object doesn't exist yet
-				// and we also want to retrieve the value to return it in this method and to resolve one-to-many relationships for child objects
-				if (OrmliteReflection.isId(database_field)) {
-					object_id = processIdField(database_field, field, jsonObject, json_key, table_name);
-					id_field_name = OrmliteReflection.getFieldName(field, database_field);
-				} else // object exists, so process its value or reference
-				{
-					processDatabaseField(database_field, field, jsonObject, json_key, modelClass, values);
-				}
-			} else { // check if we have a ForeignCollectionField (which is used for one-to-many relationships)
-				ForeignCollectionField foreign_collection_field = annotationRetriever.getAnnotation(field, ForeignCollectionField.class);
+			reader.endDocument();
 
-				if (foreign_collection_field != null) {
-					JSONArray json_array = !jsonObject.isNull(json_key) ? jsonObject.getJSONArray(json_key) : null;
+			List<IdType> id_list = new ArrayList<>(results.size());
 
-					ForeignCollectionMapping foreign_collection_mapping = new ForeignCollectionMapping(field, json_array);
-					foreign_collection_mappings.add(foreign_collection_mapping);
-				}
+			if (writer != null) {
+				writer.write();
 			}
-		}
 
-		// Determine the object ID
-		if (object_id == null || id_field_name == null) {
-			Field id_field = OrmliteReflection.findIdField(annotationRetriever, modelClass);
-
-			if (id_field == null) {
-				throw new SQLiteException("class " + modelClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+			for (Object result : results) {
+				id_list.add((IdType) (writer != null ? ((TableGraphWriter.Row) result).getId() : result));
 			}
 
-			// we don't have to check for id_database_field being null because OrmliteReflection.findIdField implied it is there
-			DatabaseField id_database_field = annotationRetriever.getAnnotation(id_field, DatabaseField.class);
-
-			id_field_name = OrmliteReflection.getFieldName(id_field, id_database_field);
-
-			long inserted_id = database.insert("'" + table_name + "'", id_field_name, new ContentValues());
-
-			if (inserted_id == -1) {
-				throw new SQLiteException("failed to insert " + modelClass.getName() + " with id field " + id_field_name);
+			if (deferred_indexes != null) {
+				// Pending batched rows are written first, so they don't have to update the rebuilt indexes
+				flushMultiRowInserters();
+				deferred_indexes.rebuild();
 			}
 
-			object_id = inserted_id;
-		}
-
-		// Process regular fields
-		if (values.size() > 0) {
-			database.update("'" + table_name + "'", values, id_field_name + " = ?", new String[]{object_id.toString()});
-		}
-
-		Log.i(getClass().getName(), String.format("imported %s (%s=%s)", modelClass.getSimpleName(), id_field_name, object_id.toString()));
+			setTransactionSuccessful();
 
-		// Process foreign collection fields for inserted object
-		for (ForeignCollectionMapping foreign_collection_mapping : foreign_collection_mappings) {
-			ManyToManyField many_to_many_field = annotationRetriever.getAnnotation(foreign_collection_mapping.getField(), ManyToManyField.class);
-
-			if (many_to_many_field != null) {
-				processManyToMany(many_to_many_field, foreign_collection_mapping, object_id, modelClass);
-			} else {
-				processManyToOne(foreign_collection_mapping, object_id, modelClass);
-			}
+			return id_list;
+		} finally {
+			endTransaction();
 		}
-
-		return (IdType) object_id;
 	}
 
-	private <IdType> List<IdType> persistArrayOfObjects(Class<?> modelClass, JSONArray jsonArray) throws JSONException {
-		List<IdType> results = new ArrayList<>(jsonArray.length());
+	/**
+	 * Persist model objects (e.g. created on the device) in a single transaction, instead of a DAO call per object.
+	 * <p>
+	 * The objects are written like an imported JSON array, with the same merge policies, options and foreign collection handling:
+	 * foreign objects are referred to by their ID and null foreign collections are left untouched.
+	 * Objects with a generated ID that is not set yet (0 or null) are inserted and receive the generated ID.
+	 * Fields with a custom {@link ValueConverter} pass the field value to the converter instead of a JSON value.
+	 *
+	 * @param modelClass the type to persist
+	 * @param models     the objects to persist
+	 * @param <IdType>   the ID type to return
+	 * @return the list of IDs of the persisted objects
+	 * @throws JSONException when a value cannot be converted, this also fails the database transaction and results in no data changes
+	 */
+	public <T, IdType> List<IdType> persistModels(Class<T> modelClass, Collection<T> models) throws JSONException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call persistModels() on a background thread");
+		}
 
-		for (int i = 0; i < jsonArray.length(); i++) {
-			JSONObject json_object = jsonArray.getJSONObject(i);
+		importReport = new ImportReport();
 
-			IdType object_id = persistObjectInternal(modelClass, json_object);
+		ModelReader model_reader = new ModelReader(this);
+		ModelPlan plan = getModelPlan(modelClass);
+		TableGraphWriter writer = isOptionEnabled(options, OPTION_TABLE_AT_A_TIME) ? createTableGraphWriter() : null;
+		// Holds IDs or, when the table graph writer is used, rows
+		List<Object> results = new ArrayList<>(models.size());
+		List<T> persisted_models = new ArrayList<>(models.size());
+		int index = 0;
 
-			results.add(object_id);
-		}
+		try {
+			enableWriteAheadLogging();
 
-		return results;
-	}
+			database.beginTransactionNonExclusive();
 
-	private List<Object> persistArrayOfBaseTypes(Class<?> modelClass, JSONArray jsonArray, ForeignCollectionFieldSingleTarget singleTargetField) throws JSONException {
-		DatabaseTable table_annotation = modelClass.getAnnotation(DatabaseTable.class);
+			DeferredIndexes deferred_indexes = dropDeferredIndexes(modelClass);
 
-		if (table_annotation == null) {
-			throw new RuntimeException("DatabaseTable annotation not found for " + modelClass.getName());
-		}
+			for (T model : models) {
+				Object result = persistPayloadObject(modelClass, model_reader.readObject(plan, model, true, null), writer, index++);
 
-		String table_name = OrmliteReflection.getTableName(modelClass, table_annotation);
+				if (result != null) {
+					results.add(result);
+					persisted_models.add(model);
+				}
+			}
 
-		List<Object> results = new ArrayList<>(jsonArray.length());
+			if (writer != null) {
+				writer.write();
+			}
 
-		for (int i = 0; i < jsonArray.length(); i++) {
-			Object value_object = jsonArray.get(i);
+			List<IdType> id_list = new ArrayList<>(results.size());
+			FieldPlan id_field = plan.getIdField();
 
-			ContentValues content_values = new ContentValues();
-			content_values.put(singleTargetField.targetField(), value_object.toString());
+			for (int i = 0; i < results.size(); ++i) {
+				Object result = results.get(i);
+				Object id = (writer != null) ? ((TableGraphWriter.Row) result).getId() : result;
+				id_list.add((IdType) id);
 
-			long inserted_id = database.insert("'" + table_name + "'", singleTargetField.targetField(), content_values);
+				// Set generated IDs, which are returned as long (while the field type might be int or another type)
+				if (id instanceof Number) {
+					id_field.setValue(persisted_models.get(i), id_field.getConverter().toIdValue(id));
+				}
+			}
 
-			if (inserted_id == -1) {
-				throw new SQLiteException("failed to insert " + modelClass.getName());
+			if (deferred_indexes != null) {
+				// Pending batched rows are written first, so they don't have to update the rebuilt indexes
+				flushMultiRowInserters();
+				deferred_indexes.rebuild();
 			}
 
-			results.add(inserted_id);
-		}
+			setTransactionSuccessful();
 
-		return results;
+			return id_list;
+		} finally {
+			endTransaction();
+		}
 	}
 
 	/**
-	 * Process an ID field giving JSON input and serialization information.
-	 * If no object is found in the database, a new one is inserted and its ID is returned.
+	 * Persist newline-delimited JSON (NDJSON / JSON lines): every line holds one JSON object.
+	 * Lines are decoded on one thread per extra processor core and written in input order.
 	 *
-	 * @param databaseField the Ormlite annotation
-	 * @param field         the field that is annotated by databaseField
-	 * @param jsonObject    the object that is being mapped
-	 * @param jsonKey       the key where the value of the id field can be found within the jsonObject
-	 * @param tableName     the table to insert a new row in case the ID is not found in the database
-	 * @return the ID field value of this object (never null)
-	 * @throws JSONException when the ID field value cannot be determined
+	 * @see #persistLines(Class, InputStream, int)
 	 */
-	private Object processIdField(DatabaseField databaseField, Field field, JSONObject jsonObject, String jsonKey, String tableName) throws JSONException {
-		String db_field_name = OrmliteReflection.getFieldName(field, databaseField);
-
-		Object object_id = JsonUtils.getValue(jsonObject, jsonKey, field.getType());
+	public long persistLines(Class<?> modelClass, InputStream inputStream) throws JSONException, IOException {
+		return persistLines(modelClass, inputStream, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	}
 
-		if (object_id == null) {
-			throw new RuntimeException(String.format("failed to get a value from JSON with key %s and type %s", jsonKey, field.getType().getName()));
+	/**
+	 * Persist newline-delimited JSON (NDJSON / JSON lines): every line holds one JSON object.
+	 * <p>
+	 * The input is split into lines without parsing it as a whole. Batches of lines are decoded in parallel,
+	 * while the objects are written on the calling thread in input order (so the result doesn't depend on the thread timing).
+	 * Gzip-compressed input is detected and decompressed while reading. Empty lines are ignored.
+	 * All objects are persisted in a single transaction.
+	 *
+	 * @param modelClass    the type to persist
+	 * @param inputStream   the UTF-8 encoded lines, optionally gzip-compressed (the stream is closed)
+	 * @param decodeThreads the amount of threads that decode lines
+	 * @return the amount of persisted objects
+	 * @throws JSONException when something went wrong through parsing, this also fails the database transaction and results in no data changes
+	 * @throws IOException   when the input cannot be read
+	 */
+	public long persistLines(Class<?> modelClass, InputStream inputStream, int decodeThreads) throws JSONException, IOException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call persistLines() on a background thread");
 		}
 
-		String sql = String.format("SELECT * FROM '%s' WHERE %s = ? LIMIT 1", tableName, db_field_name);
-		String[] selection_args = new String[]{object_id.toString()};
-		Cursor cursor = database.rawQuery(sql, selection_args);
-		boolean object_exists = (cursor.getCount() > 0);
-		cursor.close();
-
-		if (object_exists) {
-			// return existing object id
-			return object_id;
-		} else { // create object
-			ContentValues values = new ContentValues(1);
-
-			if (!JsonUtils.copyValue(object_id, db_field_name, values)) {
-				throw new JSONException(String.format("failed to process id field %s for table %s and jsonKey %s", field.getName(), tableName, jsonKey));
-			}
-
-			long inserted_id = database.insert("'" + tableName + "'", null, values);
+		importReport = new ImportReport();
 
-			if (inserted_id == -1) {
-				throw new SQLiteException(String.format("failed to insert %s with id %s=%s", field.getType().getName(), db_field_name, object_id.toString()));
+		JsonLinesReader lines_reader = new JsonLinesReader(inputStream, LINES_BATCH_SIZE);
+		ExecutorService executor = Executors.newFixedThreadPool(decodeThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable, "poetry-decode-lines");
 			}
+		});
+		// Decoded batches in input order, limited to keep the memory usage bounded when writing is slower than decoding
+		ArrayDeque<Future<List<JSONObject>>> pending_batches = new ArrayDeque<>();
+		int max_pending_batches = decodeThreads * 2;
+		TableGraphWriter writer = isOptionEnabled(options, OPTION_TABLE_AT_A_TIME) ? createTableGraphWriter() : null;
+		long count = 0;
+		int index = 0;
 
-			Log.i(getClass().getName(), String.format("prepared %s row (id=%s/%s)", tableName, object_id.toString(), Long.toString(inserted_id)));
+		try {
+			enableWriteAheadLogging();
 
-			return object_id; // don't return inserted_id, because it's always long (while the target type might be int or another type)
-		}
-	}
+			database.beginTransactionNonExclusive();
 
-	private void processDatabaseField(DatabaseField databaseField, Field field, JSONObject jsonParentObject, String jsonKey, Class<?> modelClass, ContentValues values) throws JSONException {
-		String db_field_name = OrmliteReflection.getFieldName(field, databaseField);
+			DeferredIndexes deferred_indexes = dropDeferredIndexes(modelClass);
 
-		if (jsonParentObject.isNull(jsonKey)) {
-			values.putNull(db_field_name);
-		} else if (OrmliteReflection.isForeign(databaseField)) {
-			JSONObject foreign_object = jsonParentObject.optJSONObject(jsonKey);
+			boolean input_ended = false;
 
-			if (foreign_object != null) {
-				//If the JSON includes the forein object, try to persist it
+			while (!input_ended || !pending_batches.isEmpty()) {
+				while (!input_ended && pending_batches.size() < max_pending_batches) {
+					JsonLinesReader.Batch batch = lines_reader.nextBatch();
 
-				Object foreign_object_id = persistObjectInternal(field.getType(), foreign_object);
+					if (batch == null) {
+						input_ended = true;
+					} else {
+						pending_batches.add(executor.submit(new JsonLinesReader.DecodeTask(batch)));
+					}
+				}
 
-				if (!JsonUtils.copyValue(foreign_object_id, db_field_name, values)) {
-					throw new RuntimeException("failed to copy values for key " + jsonKey + " in " + modelClass.getName() + ": key type " + foreign_object_id.getClass() + " is not supported");
+				if (!pending_batches.isEmpty()) {
+					for (JSONObject json_object : getDecodedLines(pending_batches.poll())) {
+						if (persistPayloadObject(modelClass, json_object, writer, index++) != null) {
+							count++;
+						}
+					}
 				}
-			} else {
-				//The JSON does not include the foreign object, see if it is a valid key for the foreign object
+			}
 
-				Field foreign_object_id_field = OrmliteReflection.findIdField(annotationRetriever, field.getType());
+			if (writer != null) {
+				writer.write();
+			}
 
-				if (foreign_object_id_field == null) {
-					throw new RuntimeException("failed to find id field for foreign object " + field.getType().getName() + " in " + modelClass.getName());
-				}
+			if (deferred_indexes != null) {
+				// Pending batched rows are written first, so they don't have to update the rebuilt indexes
+				flushMultiRowInserters();
+				deferred_indexes.rebuild();
+			}
 
-				Object foreign_object_id = JsonUtils.getValue(jsonParentObject, jsonKey, foreign_object_id_field.getType());
+			setTransactionSuccessful();
 
-				if (foreign_object_id == null) {
-					throw new RuntimeException("incompatible id type for foreign object " + field.getType().getName() + " in " + modelClass.getName() + " (expected " + foreign_object_id_field.getType().getName() + ")");
-				}
+			return count;
+		} finally {
+			executor.shutdownNow();
 
-				if (!JsonUtils.copyValue(foreign_object_id, db_field_name, values)) {
-					throw new RuntimeException("failed to copy values for key " + jsonKey + " in " + modelClass.getName() + ": key type " + foreign_object_id.getClass() + " is not supported");
-				}
-			}
-		} else // non-foreign
-		{
-			if (!JsonUtils.copyContentValue(jsonParentObject, jsonKey, values, db_field_name)) {
-				Log.w(getClass().getName(), String.format("attribute type %s has an unsupported type while parsing %s", jsonKey, modelClass.getSimpleName()));
+			try {
+				endTransaction();
+			} finally {
+				lines_reader.close();
 			}
 		}
 	}
 
-	private void processManyToMany(ManyToManyField manyToManyField, ForeignCollectionMapping foreignCollectionMapping, Object parentId, Class<?> parentClass) throws JSONException {
-		if (foreignCollectionMapping.getJsonArray() == null) {
-			// TODO: Delete mapping
-			Log.w(getClass().getName(), String.format("Mapping %s for type %s was null. Ignored it, but it should be deleted!", foreignCollectionMapping.getField().getName(), foreignCollectionMapping.getField().getType().getName()));
-			return;
-		}
-
-		Field foreign_collection_field = foreignCollectionMapping.getField();
-
-		Class<?> target_class = OrmliteReflection.getForeignCollectionParameterType(foreign_collection_field);
-		Field target_id_field = OrmliteReflection.findIdField(annotationRetriever, target_class);
+	private static List<JSONObject> getDecodedLines(Future<List<JSONObject>> batch) throws JSONException {
+		try {
+			return batch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while decoding lines", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof JSONException) {
+				throw (JSONException) e.getCause();
+			}
 
-		if (target_id_field == null) {
-			throw new RuntimeException("no id field found while processing foreign collection relation for " + target_class.getName());
+			throw new RuntimeException(e.getCause());
 		}
+	}
 
-		Field target_foreign_field = OrmliteReflection.findForeignField(annotationRetriever, target_class, parentClass);
-
-		if (target_foreign_field == null) {
-			throw new RuntimeException("no foreign field found while processing foreign collection relation for " + target_class.getName());
+	/**
+	 * Persist a file that holds a JSON array of objects in chunks that are committed separately, so an interrupted import can be resumed.
+	 * <p>
+	 * Every chunk is committed together with a checkpoint (the byte and record offset after the chunk) in a bookkeeping table.
+	 * When an import of the same source is started again, it continues after the last committed chunk,
+	 * unless the file was changed (by size or modification time) since the checkpoint was written.
+	 * The checkpoint is removed when the import completes.
+	 * <p>
+	 * Unlike {@link #persistFile(Class, File)}, other readers can see the committed chunks of an incomplete import.
+	 *
+	 * @param modelClass the type to persist
+	 * @param file       a UTF-8 encoded JSON array
+	 * @param sourceId   identifies the import (e.g. the URL that the file was downloaded from)
+	 * @param chunkSize  the amount of objects per transaction
+	 * @return the amount of objects that were persisted by this call
+	 * @throws JSONException when something went wrong through parsing, this rolls back the current chunk only
+	 * @throws IOException   when the file cannot be read or contains malformed JSON
+	 */
+	public long persistFileResumable(Class<?> modelClass, File file, String sourceId, int chunkSize) throws JSONException, IOException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call persistFileResumable() on a background thread");
 		}
 
-		Field target_target_field = fieldRetriever.getFirstFieldOfType(target_class, manyToManyField.targetType());
-
-		if (target_target_field == null) {
-			throw new RuntimeException("ManyToMany problem: no ID field found for type " + manyToManyField.targetType().getName());
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
 		}
 
-		List<Object> target_target_ids = persistArrayOfObjects(target_target_field.getType(), foreignCollectionMapping.getJsonArray());
+		importReport = new ImportReport();
 
-		// TODO: cache table name
-		String target_table_name = OrmliteReflection.getTableName(annotationRetriever, target_class);
-		DatabaseField target_foreign_db_field = annotationRetriever.getAnnotation(target_foreign_field, DatabaseField.class);
-		String target_foreign_field_name = OrmliteReflection.getFieldName(target_foreign_field, target_foreign_db_field);
+		ImportCheckpoints checkpoints = new ImportCheckpoints(database);
+		String fingerprint = file.length() + ":" + file.lastModified();
+		RandomAccessFile random_access_file = new RandomAccessFile(file, "r");
+		long persisted_count = 0;
 
-		String delete_select_clause = target_foreign_field_name + " = " + QueryUtils.parseAttribute(parentId);
-		database.delete("'" + target_table_name + "'", delete_select_clause, new String[]{});
+		try {
+			FileChannel channel = random_access_file.getChannel();
+			Utf8JsonReader reader = new Utf8JsonReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			PayloadReader payload_reader = new PayloadReader(this, reader);
+			ModelPlan plan = getModelPlan(modelClass);
 
-		DatabaseField target_target_database_field = annotationRetriever.getAnnotation(target_target_field, DatabaseField.class);
-		String target_target_field_name = OrmliteReflection.getFieldName(target_target_field, target_target_database_field);
+			enableWriteAheadLogging();
+			checkpoints.createTable();
+
+			ImportCheckpoints.Checkpoint checkpoint = checkpoints.load(sourceId, fingerprint);
+			long record_offset = 0;
+			int chunk = 0;
+
+			if (checkpoint != null) {
+				Log.i(getClass().getName(), String.format("resuming import of %s at record %d (chunk %d)", sourceId, checkpoint.recordOffset, checkpoint.chunk));
+				reader.resumeArray((int) checkpoint.byteOffset);
+				record_offset = checkpoint.recordOffset;
+				chunk = checkpoint.chunk;
+			} else if (reader.peek() == Utf8JsonReader.TOKEN_ARRAY) {
+				reader.beginArray();
+			} else {
+				throw new JSONException("resumable imports require a JSON array");
+			}
 
-		// Insert new references
-		for (int i = 0; i < target_target_ids.size(); ++i) {
-			ContentValues values = new ContentValues(2);
+			boolean completed = false;
 
-			if (!JsonUtils.copyValue(parentId, target_foreign_field_name, values)) {
-				throw new RuntimeException("parent id copy failed");
-			}
+			while (!completed) {
+				try {
+					database.beginTransactionNonExclusive();
 
-			if (!JsonUtils.copyValue(target_target_ids.get(i), target_target_field_name, values)) {
-				throw new RuntimeException("target id copy failed");
-			}
+					TableGraphWriter writer = isOptionEnabled(options, OPTION_TABLE_AT_A_TIME) ? createTableGraphWriter() : null;
+					int count = 0;
+					int chunk_persisted_count = 0;
 
-			if (database.insert("'" + target_table_name + "'", null, values) == -1) {
-				throw new RuntimeException("failed to insert item in " + target_table_name);
-			}
-		}
-	}
+					while (count < chunkSize) {
+						if (!reader.hasNext()) {
+							completed = true;
+							break;
+						}
 
-	private void processManyToOne(ForeignCollectionMapping foreignCollectionMapping, Object parentId, Class<?> parentClass) throws JSONException {
-		if (foreignCollectionMapping.getJsonArray() == null) {
-			// TODO: Delete mapping
-			Log.w(getClass().getName(), String.format("Mapping %s for type %s was null. Ignored it, but it should be deleted!", foreignCollectionMapping.getField().getName(), foreignCollectionMapping.getField().getType().getName()));
-			return;
-		}
+						if (persistPayloadObject(modelClass, payload_reader.readObject(plan), writer, (int) (record_offset + count)) != null) {
+							chunk_persisted_count++;
+						}
 
-		Field foreign_collection_field = foreignCollectionMapping.getField();
+						count++;
+					}
 
-		Class<?> target_class = OrmliteReflection.getForeignCollectionParameterType(foreign_collection_field);
-		Field target_id_field = OrmliteReflection.findIdField(annotationRetriever, target_class);
+					if (writer != null) {
+						writer.write();
+					}
 
-		if (target_id_field == null) {
-			throw new RuntimeException("no id field found while processing foreign collection relation for " + target_class.getName());
-		}
+					if (completed) {
+						reader.endDocument();
+						checkpoints.delete(sourceId);
+					} else {
+						checkpoints.save(sourceId, fingerprint, new ImportCheckpoints.Checkpoint(reader.getPosition(), record_offset + count, chunk + 1));
+					}
 
-		Field target_foreign_field = OrmliteReflection.findForeignField(annotationRetriever, target_class, parentClass);
+					setTransactionSuccessful();
 
-		if (target_foreign_field == null) {
-			throw new RuntimeException("no foreign field found while processing foreign collection relation for " + target_class.getName());
+					record_offset += count;
+					chunk++;
+					persisted_count += chunk_persisted_count;
+				} finally {
+					endTransaction();
+				}
+			}
+		} finally {
+			random_access_file.close();
 		}
 
-		ForeignCollectionFieldSingleTarget single_target_field = annotationRetriever.getAnnotation(foreignCollectionMapping.getField(), ForeignCollectionFieldSingleTarget.class);
+		return persisted_count;
+	}
 
-		List<Object> target_ids;
+	/**
+	 * Remove the checkpoint of an interrupted {@link #persistFileResumable(Class, File, String, int)} import,
+	 * so the next import of the source starts from the beginning.
+	 *
+	 * @param sourceId identifies the import
+	 */
+	public void discardCheckpoint(String sourceId) {
+		ImportCheckpoints checkpoints = new ImportCheckpoints(database);
+		checkpoints.createTable();
+		checkpoints.delete(sourceId);
+	}
+
+	/**
+	 * Replace all the data of a model with the objects of an array (a full refresh).
+	 * <p>
+	 * The objects are imported into shadow copies of the model's table and of the tables that are owned by its foreign collections
+	 * (child tables, join tables and base type tables). After the import, the indexes of the copies are built
+	 * and the copies replace the live tables in a single short transaction. Readers never see a partial import
+	 * and the import itself runs in chunks, so other writers don't have to wait for the whole import.
+	 * The replaced tables are dropped in the background.
+	 * <p>
+	 * Writes that other code makes to the replaced live tables during the import (e.g. through DAOs) are discarded by the swap,
+	 * so pause those writers or repeat their writes afterwards.
+	 * Foreign objects and many-to-many targets are persisted into their live tables as usual.
+	 *
+	 * @param modelClass the type to persist
+	 * @param jsonArray  the json to process
+	 * @param <IdType>   the ID type to return
+	 * @return the list of IDs of the persisted objects
+	 * @throws JSONException when something went wrong through parsing, the live tables are not changed in that case
+	 */
+	public <IdType> List<IdType> replaceArray(Class<?> modelClass, JSONArray jsonArray) throws JSONException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call replaceArray() on a background thread");
+		}
+
+		importReport = new ImportReport();
+
+		LinkedHashMap<Class<?>, String> table_names = new LinkedHashMap<>();
+		collectOwnedTables(getModelPlan(modelClass), table_names);
+
+		ShadowTables shadow_tables = new ShadowTables(database, table_names);
+		List<IdType> id_list = new ArrayList<>(jsonArray.length());
+		boolean swapped = false;
+
+		enableWriteAheadLogging();
+		shadow_tables.create();
+
+		try {
+			for (Map.Entry<Class<?>, String> entry : table_names.entrySet()) {
+				tableNameOverrides.put(entry.getKey(), ShadowTables.getShadowTableName(entry.getValue()));
+			}
+
+			modelPlans.clear();
+			collectionPlans.clear();
+			// Changes are published once, after the swap
+			changePublishingDeferred = true;
+
+			for (int offset = 0; offset < jsonArray.length(); offset += REPLACE_TRANSACTION_SIZE) {
+				try {
+					database.beginTransactionNonExclusive();
+
+					int end = Math.min(offset + REPLACE_TRANSACTION_SIZE, jsonArray.length());
+
+					if (isOptionEnabled(options, OPTION_TABLE_AT_A_TIME)) {
+						TableGraphWriter writer = createTableGraphWriter();
+						List<TableGraphWriter.Row> rows = new ArrayList<>(end - offset);
+
+						for (int i = offset; i < end; ++i) {
+							rows.add(writer.add(modelClass, jsonArray.getJSONObject(i)));
+						}
+
+						writer.write();
+						id_list.addAll(JsonPersister.<IdType>getRowIds(rows));
+					} else {
+						for (int i = offset; i < end; ++i) {
+							id_list.add(this.<IdType>persistObjectInternal(modelClass, jsonArray.getJSONObject(i)));
+						}
+					}
+
+					setTransactionSuccessful();
+				} finally {
+					endTransaction();
+				}
+			}
+
+			shadow_tables.createIndexes();
+			shadow_tables.swap();
+			swapped = true;
+		} finally {
+			tableNameOverrides.clear();
+			modelPlans.clear();
+			collectionPlans.clear();
+			changePublishingDeferred = false;
+
+			if (!swapped) {
+				shadow_tables.drop();
+				changes.clear();
+			}
+		}
+
+		for (Class<?> model_class : table_names.keySet()) {
+			addChangedTable(model_class);
+		}
+
+		publishChanges();
+		shadow_tables.dropOldTablesInBackground();
+
+		return id_list;
+	}
+
+	/**
+	 * Drop the secondary indexes of the model's tables when {@link #OPTION_DEFER_INDEXES} is enabled.
+	 *
+	 * @return the indexes to rebuild before the transaction is committed or null
+	 */
+	@Nullable
+	private DeferredIndexes dropDeferredIndexes(Class<?> modelClass) {
+		if (!isOptionEnabled(options, OPTION_DEFER_INDEXES)) {
+			return null;
+		}
+
+		LinkedHashMap<Class<?>, String> table_names = new LinkedHashMap<>();
+		collectOwnedTables(getModelPlan(modelClass), table_names);
+
+		DeferredIndexes deferred_indexes = new DeferredIndexes(database, table_names);
+		deferred_indexes.drop();
+		return deferred_indexes;
+	}
+
+	/**
+	 * Collect the table of a model and the tables that are owned by its foreign collections (recursively for one-to-many).
+	 */
+	private void collectOwnedTables(ModelPlan plan, LinkedHashMap<Class<?>, String> tableNames) {
+		if (tableNames.containsKey(plan.getModelClass())) {
+			return;
+		}
+
+		tableNames.put(plan.getModelClass(), plan.getTableName());
+
+		for (FieldPlan field_plan : plan.getCollectionFields()) {
+			CollectionPlan collection_plan = getCollectionPlan(field_plan, plan.getModelClass());
+
+			if (collection_plan.getKind() == CollectionPlan.KIND_ONE_TO_MANY) {
+				collectOwnedTables(collection_plan.getTargetPlan(), tableNames);
+			} else {
+				tableNames.put(collection_plan.getTargetPlan().getModelClass(), collection_plan.getTargetPlan().getTableName());
+			}
+		}
+	}
+
+	/**
+	 * Persist a top-level object.
+	 *
+	 * @param index the index of the object in the top-level array or -1 when the object is the root
+	 * @return the ID, the buffered row when a writer is specified or null when the object failed with {@link #OPTION_SKIP_FAILED_OBJECTS}
+	 */
+	@Nullable
+	private Object persistPayloadObject(Class<?> modelClass, JSONObject jsonObject, @Nullable TableGraphWriter writer, int index) throws JSONException {
+		if (writer != null) {
+			return writer.add(modelClass, jsonObject);
+		} else if (!isOptionEnabled(options, OPTION_SKIP_FAILED_OBJECTS)) {
+			return persistObjectInternal(modelClass, jsonObject);
+		}
+
+		database.execSQL("SAVEPOINT poetry_object");
+
+		try {
+			Object object_id = persistObjectInternal(modelClass, jsonObject);
+			// Batched rows of this object must be written inside its savepoint
+			flushMultiRowInserters();
+			database.execSQL("RELEASE poetry_object");
+			return object_id;
+		} catch (JSONException e) {
+			rollbackObject(index, e);
+		} catch (RuntimeException e) {
+			rollbackObject(index, e);
+		}
+
+		return null;
+	}
+
+	private void rollbackObject(int index, Exception exception) {
+		String json_path = (index >= 0) ? "[" + index + "]" : "";
+
+		database.execSQL(ROLLBACK_TO_OBJECT_SAVEPOINT_SQL);
+		database.execSQL("RELEASE poetry_object");
+
+		for (MultiRowInserter inserter : multiRowInserters.values()) {
+			inserter.clearPending();
+		}
+
+		deferredOrphans.forgetRolledBackTables();
+		importReport.addFailure(json_path, exception);
+		Log.w(getClass().getName(), "rolled back object " + json_path + " because it failed", exception);
+	}
+
+	private static void addResult(List<Object> results, @Nullable Object result) {
+		if (result != null) {
+			results.add(result);
+		}
+	}
+
+	private Map<String, List<Object>> persistDocumentValues(Map<String, Object> values, Map<String, Class<?>> pathMapping) throws JSONException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(getClass().getName(), "please call persistDocument() on a background thread");
+		}
+
+		importReport = new ImportReport();
+
+		List<String> sorted_paths = documentOrder.sort(pathMapping);
+		Map<String, List<Object>> results = new HashMap<>(sorted_paths.size());
+		TableGraphWriter writer = isOptionEnabled(options, OPTION_TABLE_AT_A_TIME) ? createTableGraphWriter() : null;
+		Map<String, List<TableGraphWriter.Row>> rows_by_path = new HashMap<>(sorted_paths.size());
+
+		try {
+			enableWriteAheadLogging();
+
+			database.beginTransactionNonExclusive();
+
+			for (String path : sorted_paths) {
+				Object value = values.get(path);
+
+				if (value == null || value == JSONObject.NULL) {
+					Log.w(getClass().getName(), String.format("ignored document path %s because it wasn't found", path));
+					continue;
+				}
+
+				Class<?> model_class = pathMapping.get(path);
+
+				if (writer != null && value instanceof JSONArray) {
+					rows_by_path.put(path, writer.addAll(model_class, (JSONArray) value));
+				} else if (writer != null && value instanceof JSONObject) {
+					List<TableGraphWriter.Row> rows = new ArrayList<>(1);
+					rows.add(writer.add(model_class, (JSONObject) value));
+					rows_by_path.put(path, rows);
+				} else if (value instanceof JSONArray) {
+					IdList ids = new IdList(((JSONArray) value).length());
+					persistArrayOfObjects(model_class, (JSONArray) value, ids);
+					results.put(path, ids.toList());
+				} else if (value instanceof JSONObject) {
+					List<Object> ids = new ArrayList<>(1);
+					ids.add(persistObjectInternal(model_class, (JSONObject) value));
+					results.put(path, ids);
+				} else {
+					throw new JSONException("document path " + path + " holds a " + value.getClass().getName() + " instead of an object or array");
+				}
+			}
+
+			if (writer != null) {
+				writer.write();
+
+				for (Map.Entry<String, List<TableGraphWriter.Row>> entry : rows_by_path.entrySet()) {
+					results.put(entry.getKey(), JsonPersister.<Object>getRowIds(entry.getValue()));
+				}
+			}
+
+			setTransactionSuccessful();
+
+			return results;
+		} finally {
+			endTransaction();
+		}
+	}
+
+	/**
+	 * @return the value at the given path or null when the path doesn't exist
+	 */
+	private static Object resolveDocumentValue(JSONObject jsonObject, String path) {
+		String[] elements = path.split("\\.");
+		Object current = jsonObject;
+
+		for (String element : elements) {
+			if (!(current instanceof JSONObject)) {
+				return null;
+			}
+
+			current = ((JSONObject) current).opt(element);
+		}
+
+		return current;
+	}
+
+	/**
+	 * Enable Write Ahead Logging (WAL) once. WAL is a persistent setting of the database file,
+	 * so it is only enabled when it isn't already (enabling it fails while other connections are in use).
+	 */
+	private void enableWriteAheadLogging() {
+		if (writeAheadLoggingChecked) {
+			return;
+		}
+
+		if (database.isWriteAheadLoggingEnabled()) {
+			writeAheadLoggingChecked = true;
+			return;
+		}
+
+		// WAL mode cannot be enabled or disabled while there are transactions in progress: try again on the next call
+		if (database.inTransaction()) {
+			return;
+		}
+
+		try {
+			// Returns false when WAL is not supported (e.g. for in-memory databases), which doesn't change on retries
+			database.enableWriteAheadLogging();
+			writeAheadLoggingChecked = true;
+		} catch (IllegalStateException e) {
+			// Another thread started a transaction or holds a connection
+			Log.w(getClass().getName(), "Write Ahead Logging is not enabled yet because the database is in use");
+		}
+	}
+
+	private void setTransactionSuccessful() throws JSONException {
+		flushMultiRowInserters();
+
+		for (Class<?> changed_class : deferredOrphans.deleteOrphans()) {
+			// The IDs of deleted rows are not known
+			addChangedTable(changed_class);
+		}
 
-		if (single_target_field == null) {
-			target_ids = persistArrayOfObjects(target_class, foreignCollectionMapping.getJsonArray());
+		database.setTransactionSuccessful();
+
+		transactionSuccessful = true;
+	}
+
+	private void endTransaction() {
+		closeMultiRowInserters();
+		deferredOrphans.close();
+		statementCache.close();
+
+		if (database.inTransaction()) {
+			try {
+				database.endTransaction();
+			} catch (IllegalStateException e) {
+				Log.w(getClass().getName(), "endTransaction() failed - this does not mean there was a rollback, it just means that the transaction was closed earlier than expeced.");
+			}
+		}
+
+		if (!transactionSuccessful) {
+			// Rolled back: nothing changed
+			changes.clear();
+		} else if (!changePublishingDeferred) {
+			if (database.inTransaction() && !changeNotifier.isInListenerTransaction() && !changes.isEmpty()) {
+				Log.w(getClass().getName(), "changes are published before the outer transaction commits: begin it with a listener from ChangeNotifier.createTransactionListener()");
+			}
+
+			publishChanges();
+		}
+
+		transactionSuccessful = false;
+	}
+
+	private void publishChanges() {
+		if (!changes.isEmpty()) {
+			changeNotifier.publish(changes.build());
+			changes.clear();
+		}
+	}
+
+	/**
+	 * Mark a row as changed for the change event of the current transaction.
+	 * Without observers, only the table is marked: boxing the IDs of every row would cost memory for nothing.
+	 */
+	void addChangedRow(Class<?> modelClass, Object id) {
+		if (changeNotifier.hasObservers()) {
+			changes.addRow(modelClass, id);
 		} else {
-			target_ids = persistArrayOfBaseTypes(target_class, foreignCollectionMapping.getJsonArray(), single_target_field);
+			changes.addTable(modelClass);
 		}
+	}
 
-		DatabaseField target_foreign_field_db_annotation = annotationRetriever.getAnnotation(target_foreign_field, DatabaseField.class);
-		String target_foreign_field_name = OrmliteReflection.getFieldName(target_foreign_field, target_foreign_field_db_annotation);
+	/**
+	 * Count an object that was not written because the stored row is kept.
+	 */
+	void addSkippedObject(Class<?> modelClass) {
+		importReport.addSkipped(modelClass);
+	}
 
-		ContentValues values = new ContentValues(1);
+	/**
+	 * Mark all rows of a table as (possibly) changed for the change event of the current transaction.
+	 */
+	void addChangedTable(Class<?> modelClass) {
+		changes.addTable(modelClass);
+	}
+
+	private TableGraphWriter createTableGraphWriter() {
+		return new TableGraphWriter(this, statementCache, tableOrder, !isOptionEnabled(options, OPTION_DISABLE_IGNORED_ATTRIBUTES_WARNING));
+	}
 
-		if (!JsonUtils.copyValue(parentId, target_foreign_field_name, values)) {
-			throw new RuntimeException("failed to copy foreign key " + target_foreign_field_name + " in " + parentClass.getName() + ": key type " + parentId.getClass() + " is not supported");
+	@SuppressWarnings("unchecked")
+	private static <IdType> List<IdType> getRowIds(List<TableGraphWriter.Row> rows) {
+		List<IdType> ids = new ArrayList<>(rows.size());
+
+		for (TableGraphWriter.Row row : rows) {
+			ids.add((IdType) row.getId());
 		}
 
-		String[] target_id_args = new String[target_ids.size()];
-		String in_clause = QueryUtils.createInClause(target_ids, target_id_args);
+		return ids;
+	}
 
-		// update references to all target objects
-		String target_table_name = OrmliteReflection.getTableName(annotationRetriever, target_class);
-		String target_id_field_name = OrmliteReflection.getFieldName(annotationRetriever, target_id_field);
+	ModelPlan getModelPlan(Class<?> modelClass) {
+		ModelPlan plan = modelPlans.get(modelClass);
+
+		if (plan == null) {
+			String table_name_override = tableNameOverrides.get(modelClass);
+			plan = (table_name_override != null)
+					? new ModelPlan(modelClass, table_name_override, annotationRetriever, valueConverters)
+					: new ModelPlan(modelClass, annotationRetriever, valueConverters);
+			modelPlans.put(modelClass, plan);
+		}
+
+		return plan;
+	}
+
+	CollectionPlan getCollectionPlan(FieldPlan fieldPlan, Class<?> parentClass) {
+		CollectionPlan plan = collectionPlans.get(fieldPlan.getField());
+
+		if (plan == null) {
+			Class<?> target_class = OrmliteReflection.getForeignCollectionParameterType(fieldPlan.getField());
+			plan = new CollectionPlan(fieldPlan.getField(), parentClass, getModelPlan(target_class), annotationRetriever, fieldRetriever);
+			collectionPlans.put(fieldPlan.getField(), plan);
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Get the inserter that batches the rows of a many-to-many or base types collection.
+	 * The first column is the foreign key to the parent and the second column holds the target ID or value.
+	 * Every collection has its own inserter, because two collections can share a join table from opposite sides.
+	 */
+	private MultiRowInserter getMultiRowInserter(CollectionPlan collectionPlan) {
+		ModelPlan target_plan = collectionPlan.getTargetPlan();
+		MultiRowInserter inserter = multiRowInserters.get(collectionPlan);
+
+		if (inserter == null) {
+			String second_column_name = (collectionPlan.getKind() == CollectionPlan.KIND_MANY_TO_MANY)
+					? collectionPlan.getManyToManyTargetColumnName()
+					: collectionPlan.getValueColumnName();
+
+			String[] column_names = new String[]{collectionPlan.getForeignColumnName(), second_column_name};
+			FieldConverter[] converters = new FieldConverter[column_names.length];
+
+			for (int i = 0; i < column_names.length; ++i) {
+				FieldPlan field_plan = target_plan.getFieldByColumnName(column_names[i]);
+
+				if (field_plan == null) {
+					throw new RuntimeException("column " + column_names[i] + " not found in " + target_plan.getModelClass().getName());
+				}
 
-		String update_select_clause = target_id_field_name + " " + in_clause;
-		database.update("'" + target_table_name + "'", values, update_select_clause, target_id_args);
+				converters[i] = field_plan.getConverter();
+			}
+
+			inserter = new MultiRowInserter(database, target_plan.getTableName(), column_names, converters);
+			multiRowInserters.put(collectionPlan, inserter);
+		}
+
+		return inserter;
+	}
+
+	/**
+	 * Write the pending rows that must be in the table before the old collection rows of a parent are deleted:
+	 * the rows of the parent and the rows of other collections that share the table (e.g. the other side of a join table).
+	 */
+	private void flushBeforeDelete(CollectionPlan collectionPlan, MultiRowInserter inserter, Object parentId) throws JSONException {
+		inserter.flushIfPending(parentId);
+
+		String table_name = collectionPlan.getTargetPlan().getTableName();
+
+		for (Map.Entry<CollectionPlan, MultiRowInserter> entry : multiRowInserters.entrySet()) {
+			if (entry.getValue() != inserter && entry.getKey().getTargetPlan().getTableName().equals(table_name)) {
+				entry.getValue().flush();
+			}
+		}
+	}
+
+	private void flushMultiRowInserters() throws JSONException {
+		for (MultiRowInserter inserter : multiRowInserters.values()) {
+			inserter.flush();
+		}
+	}
+
+	private void closeMultiRowInserters() {
+		for (MultiRowInserter inserter : multiRowInserters.values()) {
+			inserter.close();
+		}
+
+		multiRowInserters.clear();
+	}
+
+	/**
+	 * Main persistence method for persisting a single object
+	 *
+	 * @param modelClass the type to persist
+	 * @param jsonObject the json data to persist
+	 * @param <IdType>   the ID type to return
+	 * @return the object ID (never null)
+	 * @throws JSONException when json processing fails
+	 */
+	private <IdType> IdType persistObjectInternal(Class<?> modelClass, JSONObject jsonObject) throws JSONException {
+		ModelPlan plan = getModelPlan(modelClass);
+		FieldPlan id_field = plan.getIdField();
+
+		// We want to know the object ID because we need it to resolve one-to-many relationships (foreign collection fields)
+		if (id_field == null) {
+			throw new SQLiteException("class " + modelClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		Object object_id = null;
+		BitSet columns = new BitSet(plan.getColumnFieldCount());
+		Object[] column_values = new Object[plan.getColumnFieldCount()];
+		List<ForeignCollectionMapping> foreign_collection_mappings = new ArrayList<>();
+		Iterator<?> json_keys = jsonObject.keys();
+
+		// Process all JSON keys and map them to the database
+		while (json_keys.hasNext()) {
+			// Get the next key
+			String json_key = (String) json_keys.next();
+
+			// Find a Field that is mapped from the key
+			FieldPlan field_plan = plan.getField(json_key);
+
+			if (field_plan == null) {
+				if (!isOptionEnabled(options, OPTION_DISABLE_IGNORED_ATTRIBUTES_WARNING)) {
+					Log.w(getClass().getName(), String.format("ignored attribute %s because it wasn't found in %s as a DatabaseField", json_key, modelClass.getSimpleName()));
+				}
+
+				continue;
+			}
+
+			switch (field_plan.getKind()) {
+				// Object IDs are a special case because we need to insert a new object if the object doesn't exist yet
+				// and we also want to retrieve the value to return it in this method and to resolve one-to-many relationships for child objects
+				case FieldPlan.KIND_ID:
+					object_id = (plan.getMergeStrategy() == MergePolicy.Strategy.INSERT_ONLY)
+							? getIdValue(plan, jsonObject, json_key)
+							: processIdField(plan, jsonObject, json_key);
+					break;
+
+				case FieldPlan.KIND_VALUE:
+					if (field_plan.getConverter().isSupported()) {
+						columns.set(field_plan.getColumnIndex());
+						column_values[field_plan.getColumnIndex()] = jsonObject.opt(json_key);
+					} else {
+						Log.w(getClass().getName(), String.format("attribute type %s has an unsupported type while parsing %s", json_key, modelClass.getSimpleName()));
+					}
+					break;
+
+				case FieldPlan.KIND_FOREIGN:
+					columns.set(field_plan.getColumnIndex());
+					column_values[field_plan.getColumnIndex()] = processForeignField(field_plan, jsonObject, json_key);
+					break;
+
+				case FieldPlan.KIND_FOREIGN_COLLECTION:
+					JSONArray json_array = !jsonObject.isNull(json_key) ? jsonObject.getJSONArray(json_key) : null;
+					foreign_collection_mappings.add(new ForeignCollectionMapping(getCollectionPlan(field_plan, modelClass), json_array));
+					break;
+			}
+		}
+
+		boolean is_skipped = false;
+
+		if (object_id == null) {
+			// The JSON doesn't specify the ID: a single INSERT with all values generates it (new rows can't be guarded)
+			SQLiteStatement statement = statementCache.get(plan.getInsertSql(columns, false));
+			int bind_index = 1;
+
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+				plan.getColumnField(i).getConverter().bind(statement, bind_index++, column_values[i]);
+			}
+
+			long inserted_id = statement.executeInsert();
+
+			if (inserted_id == -1) {
+				throw new SQLiteException("failed to insert " + modelClass.getName() + " with id field " + id_field.getColumnName());
+			}
+
+			object_id = inserted_id;
+		} else if (plan.getMergeStrategy() == MergePolicy.Strategy.INSERT_ONLY) {
+			// Insert only: a single INSERT OR IGNORE leaves existing rows untouched
+			SQLiteStatement statement = statementCache.get(plan.getInsertSql(columns, true));
+			id_field.getConverter().bind(statement, 1, object_id);
+			int bind_index = 2;
+
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+				plan.getColumnField(i).getConverter().bind(statement, bind_index++, column_values[i]);
+			}
+
+			is_skipped = (statement.executeInsert() == -1);
+		} else if (!columns.isEmpty()) {
+			SQLiteStatement statement = statementCache.get(plan.getUpdateSql(columns));
+			int bind_index = 1;
+
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+				plan.getColumnField(i).getConverter().bind(statement, bind_index++, column_values[i]);
+			}
+
+			id_field.getConverter().bind(statement, bind_index, object_id);
+
+			if (plan.hasVersionGuard(columns)) {
+				FieldPlan version_field = plan.getVersionField();
+				version_field.getConverter().bind(statement, bind_index + 1, column_values[version_field.getColumnIndex()]);
+			}
+
+			// The row exists at this point, so no changes means that the row was guarded
+			is_skipped = (statement.executeUpdateDelete() == 0 && plan.hasUpdateGuard(columns));
+		}
+
+		if (is_skipped) {
+			// The stored row is kept, including its collections
+			Log.i(getClass().getName(), String.format("skipped %s (%s=%s)", modelClass.getSimpleName(), id_field.getColumnName(), object_id.toString()));
+			addSkippedObject(modelClass);
+			return (IdType) object_id;
+		}
+
+		Log.i(getClass().getName(), String.format("imported %s (%s=%s)", modelClass.getSimpleName(), id_field.getColumnName(), object_id.toString()));
+		addChangedRow(modelClass, object_id);
+
+		// Process foreign collection fields for inserted object
+		for (ForeignCollectionMapping foreign_collection_mapping : foreign_collection_mappings) {
+			processForeignCollection(foreign_collection_mapping.getCollectionPlan(), foreign_collection_mapping.getJsonArray(), object_id);
+		}
+
+		return (IdType) object_id;
+	}
+
+	/**
+	 * @param ids the list to add the IDs of the persisted objects to or null when the IDs are not needed
+	 */
+	private void persistArrayOfObjects(Class<?> modelClass, JSONArray jsonArray, @Nullable IdList ids) throws JSONException {
+		for (int i = 0; i < jsonArray.length(); i++) {
+			JSONObject json_object = jsonArray.getJSONObject(i);
+
+			Object object_id = persistObjectInternal(modelClass, json_object);
+
+			if (ids != null) {
+				ids.add(object_id);
+			}
+		}
+	}
+
+	/**
+	 * Process an ID field giving JSON input and serialization information.
+	 * If no object is found in the database, a new one is inserted and its ID is returned.
+	 *
+	 * @param plan       the plan of the model that is being mapped
+	 * @param jsonObject the object that is being mapped
+	 * @param jsonKey    the key where the value of the id field can be found within the jsonObject
+	 * @return the ID field value of this object (never null)
+	 * @throws JSONException when the ID field value cannot be determined
+	 */
+	private Object processIdField(ModelPlan plan, JSONObject jsonObject, String jsonKey) throws JSONException {
+		FieldPlan id_field = plan.getIdField();
+		FieldConverter id_converter = id_field.getConverter();
+		Object object_id = getIdValue(plan, jsonObject, jsonKey);
+
+		SQLiteStatement count_statement = statementCache.get(plan.getCountByIdSql());
+		id_converter.bind(count_statement, 1, object_id);
+		boolean object_exists = (count_statement.simpleQueryForLong() > 0);
+
+		if (object_exists) {
+			// return existing object id
+			return object_id;
+		} else { // create object
+			SQLiteStatement insert_statement = statementCache.get(plan.getInsertIdSql());
+			id_converter.bind(insert_statement, 1, object_id);
+			long inserted_id = insert_statement.executeInsert();
+
+			if (inserted_id == -1) {
+				throw new SQLiteException(String.format("failed to insert %s with id %s=%s", plan.getModelClass().getName(), id_field.getColumnName(), object_id.toString()));
+			}
+
+			Log.i(getClass().getName(), String.format("prepared %s row (id=%s/%s)", plan.getTableName(), object_id.toString(), Long.toString(inserted_id)));
+
+			return object_id; // don't return inserted_id, because it's always long (while the target type might be int or another type)
+		}
+	}
+
+	/**
+	 * @return the ID field value of the object (never null)
+	 * @throws JSONException when the ID field value cannot be determined
+	 */
+	private static Object getIdValue(ModelPlan plan, JSONObject jsonObject, String jsonKey) throws JSONException {
+		FieldConverter id_converter = plan.getIdField().getConverter();
+		Object json_value = jsonObject.opt(jsonKey);
+
+		if (json_value == null || json_value == JSONObject.NULL) {
+			throw new RuntimeException(String.format("failed to get a value from JSON with key %s and type %s", jsonKey, id_converter.getType().getName()));
+		}
+
+		return id_converter.toIdValue(json_value);
+	}
+
+	/**
+	 * Process a foreign field: the JSON holds either the foreign object or its ID.
+	 *
+	 * @return the foreign object ID or JSONObject.NULL
+	 */
+	private Object processForeignField(FieldPlan fieldPlan, JSONObject jsonParentObject, String jsonKey) throws JSONException {
+		if (jsonParentObject.isNull(jsonKey)) {
+			return JSONObject.NULL;
+		}
+
+		JSONObject foreign_object = jsonParentObject.optJSONObject(jsonKey);
+
+		if (foreign_object != null) {
+			// If the JSON includes the foreign object, try to persist it
+			return persistObjectInternal(fieldPlan.getField().getType(), foreign_object);
+		} else {
+			// The JSON does not include the foreign object, so it must be a valid key for the foreign object
+			return fieldPlan.getConverter().toIdValue(jsonParentObject.get(jsonKey));
+		}
+	}
+
+	private void processForeignCollection(CollectionPlan collectionPlan, JSONArray jsonArray, Object parentId) throws JSONException {
+		if (jsonArray == null) {
+			// Null means "unknown" rather than "empty", so the stored collection is kept
+			Field field = collectionPlan.getField();
+			Log.i(getClass().getName(), String.format("mapping %s for type %s was null: kept the stored collection", field.getName(), field.getType().getName()));
+			return;
+		}
+
+		switch (collectionPlan.getKind()) {
+			case CollectionPlan.KIND_MANY_TO_MANY:
+				processManyToMany(collectionPlan, jsonArray, parentId);
+				break;
+
+			case CollectionPlan.KIND_BASE_TYPES:
+				writeBaseTypes(collectionPlan, jsonArray, parentId);
+				break;
+
+			default:
+				processManyToOne(collectionPlan, jsonArray, parentId);
+				break;
+		}
+	}
+
+	private void processManyToMany(CollectionPlan collectionPlan, JSONArray jsonArray, Object parentId) throws JSONException {
+		IdList target_target_ids = new IdList(jsonArray.length());
+		persistArrayOfObjects(collectionPlan.getManyToManyTargetClass(), jsonArray, target_target_ids);
+
+		writeManyToManyReferences(collectionPlan, parentId, target_target_ids);
+	}
+
+	/**
+	 * Replace the references of the parent in a join table.
+	 * Rows are batched: they are written when the batch is full or when the transaction is about to finish.
+	 */
+	void writeManyToManyReferences(CollectionPlan collectionPlan, Object parentId, IdList targetIds) throws JSONException {
+		MultiRowInserter inserter = getMultiRowInserter(collectionPlan);
+
+		// Pending rows for this parent must be written before the old references are deleted
+		flushBeforeDelete(collectionPlan, inserter, parentId);
+		deleteCollectionRows(collectionPlan, parentId);
+		addChangedTable(collectionPlan.getTargetPlan().getModelClass());
+
+		// Insert new references
+		for (int i = 0; i < targetIds.size(); ++i) {
+			inserter.add(parentId);
+			inserter.add(targetIds.get(i));
+		}
+	}
+
+	/**
+	 * Insert an array of base types (e.g. Strings) into a table that holds a foreign key to the parent and a value column.
+	 * Rows are batched: they are written when the batch is full or when the transaction is about to finish.
+	 */
+	void writeBaseTypes(CollectionPlan collectionPlan, JSONArray jsonArray, Object parentId) throws JSONException {
+		MultiRowInserter inserter = getMultiRowInserter(collectionPlan);
 
 		if (!isOptionEnabled(options, OPTION_DISABLE_FOREIGN_COLLECTION_CLEANUP)) {
-			// remove all objects that are not referenced to the parent anymore
-			String delete_select_clause = target_id_field_name + " NOT " + in_clause + " AND " + target_foreign_field_name + " = " + QueryUtils.parseAttribute(parentId);
-			database.delete("'" + target_table_name + "'", delete_select_clause, target_id_args);
+			// Base types have no identity: replace all the old values of the parent (pending values must be written first)
+			flushBeforeDelete(collectionPlan, inserter, parentId);
+			deleteCollectionRows(collectionPlan, parentId);
+		}
+
+		addChangedTable(collectionPlan.getTargetPlan().getModelClass());
+
+		for (int i = 0; i < jsonArray.length(); i++) {
+			inserter.add(parentId);
+			inserter.add(jsonArray.get(i));
 		}
 	}
 
+	private void processManyToOne(CollectionPlan collectionPlan, JSONArray jsonArray, Object parentId) throws JSONException {
+		ModelPlan target_plan = collectionPlan.getTargetPlan();
+		IdList target_ids = new IdList(jsonArray.length());
+		persistArrayOfObjects(target_plan.getModelClass(), jsonArray, target_ids);
+
+		// update references to all target objects
+		String target_foreign_field_name = collectionPlan.getForeignColumnName();
+		String update_sql = "UPDATE '" + target_plan.getTableName() + "' SET " + target_foreign_field_name + " = ? WHERE " + target_plan.getIdField().getColumnName();
+
+		if (target_ids.size() < QueryUtils.SQLITE_MAX_VARIABLE_NUMBER) {
+			SQLiteStatement update_statement = statementCache.get(update_sql + " " + QueryUtils.getInClause(target_ids.size()));
+			target_plan.getFieldByColumnName(target_foreign_field_name).getConverter().bind(update_statement, 1, parentId);
+			target_ids.bind(update_statement, 2);
+			update_statement.executeUpdateDelete();
+		} else {
+			target_ids.executeUpdateDelete(database, update_sql, new String[]{QueryUtils.parseAttribute(parentId)});
+		}
+
+		deleteOrphans(collectionPlan, parentId, target_ids);
+	}
+
+	/**
+	 * Remove all objects that are not referenced to the parent anymore (unless cleanup is disabled),
+	 * or record the kept children when the cleanup is deferred to the end of the transaction.
+	 *
+	 * @param collectionPlan the one-to-many collection
+	 * @param parentId       the parent ID
+	 * @param childIds       the IDs of the children that are kept
+	 */
+	void deleteOrphans(CollectionPlan collectionPlan, Object parentId, IdList childIds) throws JSONException {
+		if (isOptionEnabled(options, OPTION_DISABLE_FOREIGN_COLLECTION_CLEANUP)) {
+			return;
+		}
+
+		if (isOptionEnabled(options, OPTION_DEFER_ORPHAN_CLEANUP)) {
+			deferredOrphans.add(collectionPlan, parentId, childIds);
+		} else {
+			ModelPlan target_plan = collectionPlan.getTargetPlan();
+			int deleted_count;
+
+			if (childIds.size() < QueryUtils.SQLITE_MAX_VARIABLE_NUMBER) {
+				String delete_select_clause = target_plan.getIdField().getColumnName() + " NOT " + QueryUtils.getInClause(childIds.size()) + " AND " + collectionPlan.getForeignColumnName() + " = " + QueryUtils.parseAttribute(parentId);
+				deleted_count = database.delete("'" + target_plan.getTableName() + "'", delete_select_clause, childIds.toQueryArgs());
+			} else {
+				// A NOT IN clause can't be split in chunks: compare with a temporary table of the kept children instead
+				deleted_count = deferredOrphans.deleteOrphansNow(collectionPlan, parentId, childIds);
+			}
+
+			if (deleted_count > 0) {
+				// The IDs of deleted rows are not known
+				addChangedTable(target_plan.getModelClass());
+			}
+		}
+	}
+
+	/**
+	 * Delete all the rows of a collection's target table that refer to the parent.
+	 */
+	private void deleteCollectionRows(CollectionPlan collectionPlan, Object parentId) {
+		String delete_select_clause = collectionPlan.getForeignColumnName() + " = " + QueryUtils.parseAttribute(parentId);
+		database.delete("'" + collectionPlan.getTargetPlan().getTableName() + "'", delete_select_clause, new String[]{});
+	}
+
 	/**
 	 * Check if an option is enabled
 	 *
@@ -529,20 +1632,20 @@ public class JsonPersister {
 	 * All necessary data to map an array of objects onto the provided parent field.
 	 */
 	private static class ForeignCollectionMapping {
-		private final Field field;
+		private final CollectionPlan collectionPlan;
 		private final JSONArray jsonArray;
 
 		/**
-		 * @param field
-		 * @param jsonArray or null
+		 * @param collectionPlan the plan of the collection field
+		 * @param jsonArray      the array to map or null
 		 */
-		ForeignCollectionMapping(Field field, JSONArray jsonArray) {
-			this.field = field;
+		ForeignCollectionMapping(CollectionPlan collectionPlan, JSONArray jsonArray) {
+			this.collectionPlan = collectionPlan;
 			this.jsonArray = jsonArray;
 		}
 
-		Field getField() {
-			return field;
+		CollectionPlan getCollectionPlan() {
+			return collectionPlan;
 		}
 
 		JSONArray getJsonArray() {
@@ -0,0 +1,120 @@
+package poetry.json;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import poetry.annotations.Nullable;
+
+/**
+ * An immutable lookup table of JSON keys that can be matched against the raw UTF-8 bytes of a document,
+ * so no String has to be created for a key while parsing.
+ *
+ * @param <Value> the type of the values that keys are mapped onto
+ */
+final class KeyTable<Value> {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final String[] keys;
+	private final byte[][] keyBytes;
+	private final Object[] values;
+	// Open addressing table: holds (key index + 1) or 0 for empty slots
+	private final int[] slots;
+
+	KeyTable(Map<String, Value> mapping) {
+		int size = mapping.size();
+		int slot_count = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+
+		keys = new String[size];
+		keyBytes = new byte[size][];
+		values = new Object[size];
+		slots = new int[slot_count];
+
+		int index = 0;
+
+		for (Map.Entry<String, Value> entry : mapping.entrySet()) {
+			keys[index] = entry.getKey();
+			keyBytes[index] = entry.getKey().getBytes(UTF_8);
+			values[index] = entry.getValue();
+
+			int slot = hash(ByteBuffer.wrap(keyBytes[index]), 0, keyBytes[index].length) & (slot_count - 1);
+
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (slot_count - 1);
+			}
+
+			slots[slot] = index + 1;
+			index++;
+		}
+	}
+
+	/**
+	 * Find a key by its UTF-8 bytes.
+	 *
+	 * @param buffer the buffer that holds the key bytes
+	 * @param start  the absolute index of the first key byte
+	 * @param end    the absolute index after the last key byte
+	 * @return the key index or -1 when the key is not in the table
+	 */
+	int find(ByteBuffer buffer, int start, int end) {
+		int mask = slots.length - 1;
+
+		for (int slot = hash(buffer, start, end) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			int index = slots[slot] - 1;
+
+			if (equals(keyBytes[index], buffer, start, end)) {
+				return index;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Find a key by its decoded value (used for keys that contain escape sequences).
+	 *
+	 * @return the key index or -1 when the key is not in the table
+	 */
+	int find(String key) {
+		byte[] bytes = key.getBytes(UTF_8);
+
+		return find(ByteBuffer.wrap(bytes), 0, bytes.length);
+	}
+
+	String getKey(int index) {
+		return keys[index];
+	}
+
+	@Nullable
+	@SuppressWarnings("unchecked")
+	Value getValue(int index) {
+		return (Value) values[index];
+	}
+
+	/**
+	 * FNV-1a hash
+	 */
+	private static int hash(ByteBuffer buffer, int start, int end) {
+		int hash = 0x811c9dc5;
+
+		for (int i = start; i < end; ++i) {
+			hash = (hash ^ (buffer.get(i) & 0xff)) * 0x01000193;
+		}
+
+		return hash;
+	}
+
+	private static boolean equals(byte[] bytes, ByteBuffer buffer, int start, int end) {
+		if (bytes.length != end - start) {
+			return false;
+		}
+
+		for (int i = 0; i < bytes.length; ++i) {
+			if (bytes[i] != buffer.get(start + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,399 @@
+package poetry.json;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.field.ForeignCollectionField;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import poetry.annotations.Nullable;
+import poetry.json.annotations.MapFrom;
+import poetry.json.annotations.MergePolicy;
+import poetry.json.annotations.VersionField;
+import poetry.reflection.AnnotationRetriever;
+import poetry.reflection.OrmliteReflection;
+
+/**
+ * The persistence plan for a model class: it is built once per class and holds everything that
+ * {@link JsonPersister} needs to map JSON keys onto columns, including the value converter of every field.
+ * <p>
+ * JSON keys are mapped the same way as {@link poetry.reflection.FieldRetriever} does: by field name or by {@link MapFrom} value.
+ */
+final class ModelPlan {
+	private final Class<?> modelClass;
+	private final String tableName;
+	@Nullable
+	private final FieldPlan idField;
+	// Updatable fields (values and foreign objects) by column index
+	private final FieldPlan[] columnFields;
+	private final List<FieldPlan> collectionFields = new ArrayList<>();
+	private final HashMap<String, FieldPlan> fieldsByJsonKey = new HashMap<>();
+	private final HashMap<String, FieldPlan> fieldsByColumnName = new HashMap<>();
+	// Maps: set of column indices -> UPDATE statement
+	private final HashMap<BitSet, String> updateSqlCache = new HashMap<>();
+	// Maps: set of column indices -> INSERT statement (with and without ID column)
+	private final HashMap<BitSet, String> insertWithIdSqlCache = new HashMap<>();
+	private final HashMap<BitSet, String> insertSqlCache = new HashMap<>();
+	@Nullable
+	private KeyTable<FieldPlan> keyTable;
+	private final MergePolicy.Strategy mergeStrategy;
+	@Nullable
+	private final String dirtyColumnName;
+	@Nullable
+	private final FieldPlan versionField;
+
+	ModelPlan(Class<?> modelClass, AnnotationRetriever annotationRetriever, Map<Class<?>, ValueConverter> customConverters) {
+		this(modelClass, OrmliteReflection.getTableName(annotationRetriever, modelClass), annotationRetriever, customConverters);
+	}
+
+	/**
+	 * @param tableName the table to write to (e.g. a shadow copy of the model's table)
+	 */
+	ModelPlan(Class<?> modelClass, String tableName, AnnotationRetriever annotationRetriever, Map<Class<?>, ValueConverter> customConverters) {
+		this.modelClass = modelClass;
+		this.tableName = tableName;
+
+		MergePolicy merge_policy = annotationRetriever.getAnnotation(modelClass, MergePolicy.class);
+		this.mergeStrategy = (merge_policy != null) ? merge_policy.value() : MergePolicy.Strategy.OVERWRITE;
+
+		if (mergeStrategy == MergePolicy.Strategy.KEEP_DIRTY) {
+			if (merge_policy.dirtyColumn().isEmpty()) {
+				throw new RuntimeException("MergePolicy KEEP_DIRTY requires a dirtyColumn for " + modelClass.getName());
+			}
+
+			this.dirtyColumnName = merge_policy.dirtyColumn();
+		} else {
+			this.dirtyColumnName = null;
+		}
+
+		FieldPlan id_field = null;
+		FieldPlan version_field = null;
+		List<FieldPlan> column_fields = new ArrayList<>();
+
+		for (Class<?> current = modelClass; current != null; current = current.getSuperclass()) {
+			for (Field field : current.getDeclaredFields()) {
+				FieldPlan field_plan = createFieldPlan(field, column_fields.size(), getMergeStrategy(field, annotationRetriever), annotationRetriever, customConverters);
+
+				if (field_plan == null) {
+					continue;
+				}
+
+				if (field_plan.getKind() == FieldPlan.KIND_ID) {
+					if (id_field == null) {
+						id_field = field_plan;
+					}
+				} else if (field_plan.getColumnIndex() != -1) {
+					column_fields.add(field_plan);
+				} else if (field_plan.getKind() == FieldPlan.KIND_FOREIGN_COLLECTION) {
+					collectionFields.add(field_plan);
+				}
+
+				if (version_field == null && annotationRetriever.getAnnotation(field, VersionField.class) != null) {
+					if (field_plan.getKind() != FieldPlan.KIND_VALUE) {
+						throw new RuntimeException("VersionField " + field.getName() + " of " + modelClass.getName() + " must be a regular DatabaseField");
+					}
+
+					version_field = field_plan;
+				}
+
+				if (field_plan.getColumnName() != null && !fieldsByColumnName.containsKey(field_plan.getColumnName())) {
+					fieldsByColumnName.put(field_plan.getColumnName(), field_plan);
+				}
+
+				// The first field that matches a key wins (subclass fields come before superclass fields)
+				if (!fieldsByJsonKey.containsKey(field.getName())) {
+					fieldsByJsonKey.put(field.getName(), field_plan);
+				}
+
+				MapFrom map_from = annotationRetriever.getAnnotation(field, MapFrom.class);
+
+				if (map_from != null && !fieldsByJsonKey.containsKey(map_from.value())) {
+					fieldsByJsonKey.put(map_from.value(), field_plan);
+				}
+			}
+		}
+
+		this.idField = id_field;
+		this.versionField = version_field;
+		this.columnFields = column_fields.toArray(new FieldPlan[column_fields.size()]);
+	}
+
+	/**
+	 * @return the merge strategy of a field: its own policy, or the value based policy of the model
+	 */
+	private MergePolicy.Strategy getMergeStrategy(Field field, AnnotationRetriever annotationRetriever) {
+		MergePolicy merge_policy = annotationRetriever.getAnnotation(field, MergePolicy.class);
+
+		if (merge_policy != null) {
+			if (merge_policy.value() == MergePolicy.Strategy.KEEP_DIRTY) {
+				throw new RuntimeException("MergePolicy KEEP_DIRTY can only be used on a model class, not on field " + field.getName() + " of " + modelClass.getName());
+			}
+
+			return merge_policy.value();
+		} else if (mergeStrategy == MergePolicy.Strategy.NON_NULL) {
+			return MergePolicy.Strategy.NON_NULL;
+		} else {
+			// Row based strategies (insert only and keep dirty) are applied to the statement as a whole
+			return MergePolicy.Strategy.OVERWRITE;
+		}
+	}
+
+	@Nullable
+	private static FieldPlan createFieldPlan(Field field, int nextColumnIndex, MergePolicy.Strategy mergeStrategy, AnnotationRetriever annotationRetriever, Map<Class<?>, ValueConverter> customConverters) {
+		DatabaseField database_field = annotationRetriever.getAnnotation(field, DatabaseField.class);
+
+		if (database_field != null) {
+			String column_name = OrmliteReflection.getFieldName(field, database_field);
+
+			if (OrmliteReflection.isId(database_field)) {
+				FieldConverter converter = FieldConverter.forField(field, database_field, customConverters);
+				return new FieldPlan(field, FieldPlan.KIND_ID, column_name, -1, converter, mergeStrategy);
+			} else if (OrmliteReflection.isForeign(database_field)) {
+				Field foreign_id_field = OrmliteReflection.findIdField(annotationRetriever, field.getType());
+
+				if (foreign_id_field == null) {
+					throw new RuntimeException("failed to find id field for foreign object " + field.getType().getName() + " in " + field.getDeclaringClass().getName());
+				}
+
+				DatabaseField foreign_id_database_field = annotationRetriever.getAnnotation(foreign_id_field, DatabaseField.class);
+				FieldConverter converter = FieldConverter.forField(foreign_id_field, foreign_id_database_field, customConverters);
+				return new FieldPlan(field, FieldPlan.KIND_FOREIGN, column_name, nextColumnIndex, converter, mergeStrategy);
+			} else {
+				FieldConverter converter = FieldConverter.forField(field, database_field, customConverters);
+				return new FieldPlan(field, FieldPlan.KIND_VALUE, column_name, nextColumnIndex, converter, mergeStrategy);
+			}
+		} else if (annotationRetriever.getAnnotation(field, ForeignCollectionField.class) != null) {
+			return new FieldPlan(field, FieldPlan.KIND_FOREIGN_COLLECTION, null, -1, null, mergeStrategy);
+		} else {
+			return null;
+		}
+	}
+
+	Class<?> getModelClass() {
+		return modelClass;
+	}
+
+	String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * @return the merge strategy for rows (field strategies are part of the UPDATE statements)
+	 */
+	MergePolicy.Strategy getMergeStrategy() {
+		return mergeStrategy;
+	}
+
+	/**
+	 * @return the version field or null when the model doesn't have one
+	 */
+	@Nullable
+	FieldPlan getVersionField() {
+		return versionField;
+	}
+
+	/**
+	 * @param columns the column indices that are updated
+	 * @return true when the UPDATE statement for the columns compares the version (the version is bound after the ID)
+	 */
+	boolean hasVersionGuard(BitSet columns) {
+		return versionField != null && columns.get(versionField.getColumnIndex());
+	}
+
+	/**
+	 * @param columns the column indices that are updated
+	 * @return true when an UPDATE statement for the columns can leave an existing row unchanged
+	 */
+	boolean hasUpdateGuard(BitSet columns) {
+		return dirtyColumnName != null || hasVersionGuard(columns);
+	}
+
+	/**
+	 * @return the ID field or null when the model doesn't have one
+	 */
+	@Nullable
+	FieldPlan getIdField() {
+		return idField;
+	}
+
+	/**
+	 * @param jsonKey the JSON key
+	 * @return the field that is mapped from the key or null
+	 */
+	@Nullable
+	FieldPlan getField(String jsonKey) {
+		return fieldsByJsonKey.get(jsonKey);
+	}
+
+	/**
+	 * @return the foreign collection fields
+	 */
+	List<FieldPlan> getCollectionFields() {
+		return collectionFields;
+	}
+
+	/**
+	 * @return the JSON keys of this model for matching against raw UTF-8 bytes
+	 */
+	KeyTable<FieldPlan> getKeyTable() {
+		if (keyTable == null) {
+			keyTable = new KeyTable<>(fieldsByJsonKey);
+		}
+
+		return keyTable;
+	}
+
+	/**
+	 * @param columnName the database column name
+	 * @return the field (ID, value or foreign) that is stored in the column or null
+	 */
+	@Nullable
+	FieldPlan getFieldByColumnName(String columnName) {
+		return fieldsByColumnName.get(columnName);
+	}
+
+	/**
+	 * @return the amount of updatable columns (value fields and foreign fields)
+	 */
+	int getColumnFieldCount() {
+		return columnFields.length;
+	}
+
+	FieldPlan getColumnField(int columnIndex) {
+		return columnFields[columnIndex];
+	}
+
+	/**
+	 * @return a query with one bind argument (the ID) that returns the amount of rows with that ID
+	 */
+	String getCountByIdSql() {
+		return "SELECT COUNT(*) FROM '" + tableName + "' WHERE " + getIdColumnName() + " = ?";
+	}
+
+	/**
+	 * @return an INSERT statement with one bind argument (the ID)
+	 */
+	String getInsertIdSql() {
+		return "INSERT INTO '" + tableName + "' (" + getIdColumnName() + ") VALUES (?)";
+	}
+
+	/**
+	 * Get an UPDATE statement that binds the specified columns (in column index order) followed by the ID
+	 * and the version (see {@link #hasVersionGuard(BitSet)}).
+	 *
+	 * @param columns the column indices to update (must not be modified after this call)
+	 * @return the SQL statement
+	 */
+	String getUpdateSql(BitSet columns) {
+		String sql = updateSqlCache.get(columns);
+
+		if (sql == null) {
+			StringBuilder builder = new StringBuilder("UPDATE '").append(tableName).append("' SET ");
+			boolean is_first_column = true;
+
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+				if (!is_first_column) {
+					builder.append(", ");
+				}
+
+				String column_name = columnFields[i].getColumnName();
+				builder.append(column_name);
+
+				switch (columnFields[i].getMergeStrategy()) {
+					case NON_NULL:
+						builder.append(" = COALESCE(?, ").append(column_name).append(')');
+						break;
+					case INSERT_ONLY:
+						builder.append(" = COALESCE(").append(column_name).append(", ?)");
+						break;
+					default:
+						builder.append(" = ?");
+						break;
+				}
+
+				is_first_column = false;
+			}
+
+			builder.append(" WHERE ").append(getIdColumnName()).append(" = ?");
+
+			if (dirtyColumnName != null) {
+				// Rows with local changes are kept
+				builder.append(" AND (").append(dirtyColumnName).append(" IS NULL OR ").append(dirtyColumnName).append(" = 0)");
+			}
+
+			if (hasVersionGuard(columns)) {
+				// Rows with a newer version are kept
+				String version_column_name = versionField.getColumnName();
+				builder.append(" AND (").append(version_column_name).append(" IS NULL OR ").append(version_column_name).append(" <= ?)");
+			}
+
+			sql = builder.toString();
+			updateSqlCache.put(columns, sql);
+		}
+
+		return sql;
+	}
+
+	/**
+	 * Get an INSERT statement that binds the ID (optionally) followed by the specified columns (in column index order).
+	 *
+	 * @param columns   the column indices to insert (must not be modified after this call)
+	 * @param includeId true to bind the ID as first argument, false to let SQLite generate it
+	 * @return the SQL statement
+	 */
+	String getInsertSql(BitSet columns, boolean includeId) {
+		HashMap<BitSet, String> cache = includeId ? insertWithIdSqlCache : insertSqlCache;
+		String sql = cache.get(columns);
+
+		if (sql == null) {
+			// Insert only: existing rows are ignored (generated IDs never conflict, so errors are not hidden for those)
+			String insert = (includeId && mergeStrategy == MergePolicy.Strategy.INSERT_ONLY) ? "INSERT OR IGNORE INTO '" : "INSERT INTO '";
+			StringBuilder builder = new StringBuilder(insert).append(tableName).append("' (");
+			int column_count = 0;
+
+			if (includeId) {
+				builder.append(getIdColumnName());
+				column_count++;
+			}
+
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1)) {
+				if (column_count > 0) {
+					builder.append(", ");
+				}
+
+				builder.append(columnFields[i].getColumnName());
+				column_count++;
+			}
+
+			if (column_count == 0) {
+				// A row with only a generated ID and default values
+				builder.append(getIdColumnName()).append(") VALUES (NULL)");
+			} else {
+				builder.append(") VALUES (?");
+
+				for (int i = 1; i < column_count; ++i) {
+					builder.append(", ?");
+				}
+
+				builder.append(')');
+			}
+
+			sql = builder.toString();
+			cache.put(columns, sql);
+		}
+
+		return sql;
+	}
+
+	private String getIdColumnName() {
+		if (idField == null) {
+			throw new RuntimeException("class " + modelClass.getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		return idField.getColumnName();
+	}
+}
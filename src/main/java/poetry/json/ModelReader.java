@@ -0,0 +1,128 @@
+package poetry.json;
+
+import com.j256.ormlite.field.DatabaseField;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+
+import poetry.annotations.Nullable;
+import poetry.reflection.AnnotationRetriever;
+
+/**
+ * Reads model objects into JSONObjects with the same structure as an imported payload,
+ * so in-memory objects are persisted by the same code as JSON.
+ * <p>
+ * Field values are read through the fields of the {@link ModelPlan}s (which are made accessible once).
+ * Foreign objects are written as their ID, like OrmLite does without foreignAutoCreate.
+ * Foreign collections that are null are left out, so the stored collection is kept.
+ * The targets of many-to-many collections are read without their own collections, which prevents cycles.
+ */
+final class ModelReader {
+	private final JsonPersister persister;
+	private final AnnotationRetriever annotationRetriever = new AnnotationRetriever();
+
+	ModelReader(JsonPersister persister) {
+		this.persister = persister;
+	}
+
+	/**
+	 * @param plan               the plan of the object's type
+	 * @param model              the object to read
+	 * @param includeCollections false to leave out all foreign collections
+	 * @param parentColumnName   the column that refers to the parent of a one-to-many collection (which is set by the persister) or null
+	 */
+	JSONObject readObject(ModelPlan plan, Object model, boolean includeCollections, @Nullable String parentColumnName) throws JSONException {
+		JSONObject json_object = new JSONObject();
+
+		if (plan.getIdField() != null) {
+			FieldPlan id_field = plan.getIdField();
+			Object id = id_field.getValue(model);
+
+			// Leave out IDs that the database generates, so the object is inserted
+			if (id != null && !isGeneratedIdPlaceholder(id_field, id)) {
+				json_object.put(id_field.getField().getName(), id);
+			}
+		}
+
+		for (int i = 0; i < plan.getColumnFieldCount(); ++i) {
+			FieldPlan field_plan = plan.getColumnField(i);
+
+			if (field_plan.getColumnName().equals(parentColumnName)) {
+				continue;
+			}
+
+			Object value = field_plan.getValue(model);
+
+			if (field_plan.getKind() == FieldPlan.KIND_FOREIGN) {
+				FieldPlan foreign_id_field = persister.getModelPlan(field_plan.getField().getType()).getIdField();
+				json_object.put(field_plan.getField().getName(), (value != null) ? foreign_id_field.getValue(value) : JSONObject.NULL);
+			} else {
+				json_object.put(field_plan.getField().getName(), field_plan.getConverter().fromFieldValue(value));
+			}
+		}
+
+		if (includeCollections) {
+			for (FieldPlan field_plan : plan.getCollectionFields()) {
+				Collection<?> elements = (Collection<?>) field_plan.getValue(model);
+
+				if (elements != null) {
+					json_object.put(field_plan.getField().getName(), readCollection(persister.getCollectionPlan(field_plan, plan.getModelClass()), elements));
+				}
+			}
+		}
+
+		return json_object;
+	}
+
+	private JSONArray readCollection(CollectionPlan collectionPlan, Collection<?> elements) throws JSONException {
+		ModelPlan target_plan = collectionPlan.getTargetPlan();
+		JSONArray json_array = new JSONArray();
+
+		switch (collectionPlan.getKind()) {
+			case CollectionPlan.KIND_MANY_TO_MANY:
+				// The payload holds the objects that the join objects refer to
+				FieldPlan join_target_field = target_plan.getFieldByColumnName(collectionPlan.getManyToManyTargetColumnName());
+				ModelPlan many_to_many_target_plan = persister.getModelPlan(collectionPlan.getManyToManyTargetClass());
+
+				for (Object element : elements) {
+					Object target = (element != null) ? join_target_field.getValue(element) : null;
+
+					if (target != null) {
+						json_array.put(readObject(many_to_many_target_plan, target, false, null));
+					}
+				}
+				break;
+
+			case CollectionPlan.KIND_BASE_TYPES:
+				FieldPlan value_field = target_plan.getFieldByColumnName(collectionPlan.getValueColumnName());
+
+				for (Object element : elements) {
+					if (element != null) {
+						json_array.put(value_field.getConverter().fromFieldValue(value_field.getValue(element)));
+					}
+				}
+				break;
+
+			default:
+				for (Object element : elements) {
+					if (element != null) {
+						json_array.put(readObject(target_plan, element, true, collectionPlan.getForeignColumnName()));
+					}
+				}
+				break;
+		}
+
+		return json_array;
+	}
+
+	/**
+	 * @return true when the ID is the default value of a generated ID (e.g. 0), which means that the object has no ID yet
+	 */
+	private boolean isGeneratedIdPlaceholder(FieldPlan idField, Object id) {
+		DatabaseField database_field = annotationRetriever.getAnnotation(idField.getField(), DatabaseField.class);
+		return database_field.generatedId() && id instanceof Number && ((Number) id).longValue() == 0L;
+	}
+}
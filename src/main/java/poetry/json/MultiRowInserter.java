@@ -0,0 +1,191 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import poetry.utils.QueryUtils;
+
+/**
+ * Buffers rows for a single table and inserts them with multi-row "INSERT INTO t (a, b) VALUES (?, ?), (?, ?), ..." statements.
+ * <p>
+ * The amount of rows per statement is limited by the maximum amount of bind arguments and the maximum amount of rows
+ * in a compound VALUES clause. Compiled statements are reused for every flush with the same amount of rows.
+ * <p>
+ * The first column is considered the key column (e.g. the foreign key to a parent row): {@link #flushIfPending(Object)}
+ * allows callers to write pending rows for a key before they modify or delete existing rows for that key.
+ */
+final class MultiRowInserter {
+	/**
+	 * SQLite versions before 3.8.8 implement multi-row VALUES as a compound SELECT, which is limited to 500 terms.
+	 */
+	private static final int MAX_ROWS_PER_STATEMENT = 500;
+
+	private final SQLiteDatabase database;
+	private final String tableName;
+	private final String[] columnNames;
+	private final FieldConverter[] converters;
+	private final int rowsPerStatement;
+	private final Object[] pendingValues;
+	private final HashSet<Object> pendingKeys = new HashSet<>();
+	// Maps: row count -> compiled statement
+	private final HashMap<Integer, SQLiteStatement> statements = new HashMap<>();
+	private int pendingValueCount;
+
+	/**
+	 * @param database    the database to insert into
+	 * @param tableName   the table to insert into
+	 * @param columnNames the columns to insert for every row
+	 * @param converters  the value converter for every column
+	 */
+	MultiRowInserter(SQLiteDatabase database, String tableName, String[] columnNames, FieldConverter[] converters) {
+		if (columnNames.length != converters.length) {
+			throw new IllegalArgumentException("columnNames and converters must be the same size");
+		}
+
+		this.database = database;
+		this.tableName = tableName;
+		this.columnNames = columnNames;
+		this.converters = converters;
+		this.rowsPerStatement = Math.min(MAX_ROWS_PER_STATEMENT, QueryUtils.SQLITE_MAX_VARIABLE_NUMBER / columnNames.length);
+		this.pendingValues = new Object[rowsPerStatement * columnNames.length];
+	}
+
+	/**
+	 * Add the next column value. A row is complete when a value was added for every column.
+	 * Full batches are written automatically.
+	 *
+	 * @param value the JSON value to convert with the column's converter
+	 * @throws JSONException when a full batch is written and a value fails to convert
+	 */
+	void add(Object value) throws JSONException {
+		if (pendingValueCount % columnNames.length == 0) {
+			pendingKeys.add(value);
+		}
+
+		pendingValues[pendingValueCount++] = value;
+
+		if (pendingValueCount == pendingValues.length) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write all pending rows if any of them has the specified key column value.
+	 *
+	 * @param key the key column value
+	 * @throws JSONException when a value fails to convert
+	 */
+	void flushIfPending(Object key) throws JSONException {
+		if (pendingKeys.contains(key)) {
+			flush();
+		}
+	}
+
+	/**
+	 * Write all pending rows.
+	 *
+	 * @throws JSONException when a value fails to convert
+	 */
+	void flush() throws JSONException {
+		int row_count = pendingValueCount / columnNames.length;
+
+		if (row_count == 0) {
+			return;
+		}
+
+		if (pendingValueCount % columnNames.length != 0) {
+			throw new IllegalStateException("incomplete row pending for " + tableName);
+		}
+
+		SQLiteStatement statement = getStatement(row_count);
+
+		for (int i = 0; i < pendingValueCount; ++i) {
+			converters[i % converters.length].bind(statement, i + 1, pendingValues[i]);
+			pendingValues[i] = null;
+		}
+
+		statement.executeInsert();
+		statement.clearBindings();
+
+		pendingValueCount = 0;
+		pendingKeys.clear();
+	}
+
+	/**
+	 * Drop all pending rows without writing them (e.g. after their changes were rolled back).
+	 */
+	void clearPending() {
+		for (int i = 0; i < pendingValueCount; ++i) {
+			pendingValues[i] = null;
+		}
+
+		pendingKeys.clear();
+		pendingValueCount = 0;
+	}
+
+	/**
+	 * Drop all pending rows and release the compiled statements.
+	 * Pending rows are not written: call {@link #flush()} first to write them.
+	 */
+	void close() {
+		for (SQLiteStatement statement : statements.values()) {
+			statement.close();
+		}
+
+		statements.clear();
+		pendingKeys.clear();
+		pendingValueCount = 0;
+	}
+
+	private SQLiteStatement getStatement(int rowCount) {
+		SQLiteStatement statement = statements.get(rowCount);
+
+		if (statement == null) {
+			statement = database.compileStatement(createSql(rowCount));
+			statements.put(rowCount, statement);
+		}
+
+		return statement;
+	}
+
+	private String createSql(int rowCount) {
+		StringBuilder builder = new StringBuilder(32 + rowCount * (columnNames.length * 2 + 3));
+
+		builder.append("INSERT INTO '").append(tableName).append("' (");
+
+		for (int i = 0; i < columnNames.length; ++i) {
+			if (i > 0) {
+				builder.append(',');
+			}
+
+			builder.append(columnNames[i]);
+		}
+
+		builder.append(") VALUES ");
+
+		for (int row = 0; row < rowCount; ++row) {
+			if (row > 0) {
+				builder.append(',');
+			}
+
+			builder.append('(');
+
+			for (int i = 0; i < columnNames.length; ++i) {
+				if (i > 0) {
+					builder.append(',');
+				}
+
+				builder.append('?');
+			}
+
+			builder.append(')');
+		}
+
+		return builder.toString();
+	}
+}
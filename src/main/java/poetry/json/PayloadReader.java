@@ -0,0 +1,87 @@
+package poetry.json;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Reads model objects from a {@link Utf8JsonReader} into JSONObjects that only contain the keys that the model maps.
+ * <p>
+ * Keys are matched against the {@link ModelPlan} key tables and unknown keys are skipped without being decoded,
+ * so the allocations per object are limited to the values that are actually persisted.
+ * The resulting JSONObjects reuse the key Strings of the key tables.
+ */
+final class PayloadReader {
+	private final JsonPersister persister;
+	private final Utf8JsonReader reader;
+
+	PayloadReader(JsonPersister persister, Utf8JsonReader reader) {
+		this.persister = persister;
+		this.reader = reader;
+	}
+
+	JSONObject readObject(ModelPlan plan) throws IOException, JSONException {
+		JSONObject json_object = new JSONObject();
+		KeyTable<FieldPlan> key_table = plan.getKeyTable();
+
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			int key_index = reader.nextKey(key_table);
+
+			if (key_index == -1) {
+				reader.skipValue();
+				continue;
+			}
+
+			FieldPlan field_plan = key_table.getValue(key_index);
+			Object value;
+
+			if (field_plan.getKind() == FieldPlan.KIND_FOREIGN && reader.peek() == Utf8JsonReader.TOKEN_OBJECT) {
+				value = readObject(persister.getModelPlan(field_plan.getField().getType()));
+			} else if (field_plan.getKind() == FieldPlan.KIND_FOREIGN_COLLECTION && reader.peek() == Utf8JsonReader.TOKEN_ARRAY) {
+				value = readCollection(persister.getCollectionPlan(field_plan, plan.getModelClass()));
+			} else {
+				value = reader.readValue();
+			}
+
+			json_object.put(key_table.getKey(key_index), value);
+		}
+
+		return json_object;
+	}
+
+	private JSONArray readCollection(CollectionPlan collectionPlan) throws IOException, JSONException {
+		ModelPlan element_plan;
+
+		switch (collectionPlan.getKind()) {
+			case CollectionPlan.KIND_MANY_TO_MANY:
+				element_plan = persister.getModelPlan(collectionPlan.getManyToManyTargetClass());
+				break;
+
+			case CollectionPlan.KIND_ONE_TO_MANY:
+				element_plan = collectionPlan.getTargetPlan();
+				break;
+
+			default:
+				element_plan = null;
+				break;
+		}
+
+		JSONArray json_array = new JSONArray();
+
+		reader.beginArray();
+
+		while (reader.hasNext()) {
+			if (element_plan != null && reader.peek() == Utf8JsonReader.TOKEN_OBJECT) {
+				json_array.put(readObject(element_plan));
+			} else {
+				json_array.put(reader.readValue());
+			}
+		}
+
+		return json_array;
+	}
+}
@@ -0,0 +1,214 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import poetry.database.FullTextIndex;
+import poetry.reflection.AnnotationRetriever;
+
+/**
+ * Manages shadow copies of model tables for a full refresh:
+ * <ol>
+ * <li>{@link #create()} creates empty copies (without indexes) from the OrmLite table definitions</li>
+ * <li>the data is imported into the copies while the live tables stay untouched</li>
+ * <li>{@link #createIndexes()} builds the indexes of the loaded copies</li>
+ * <li>{@link #swap()} renames the copies to the live table names in a single short transaction</li>
+ * <li>{@link #dropOldTablesInBackground()} drops the previous live tables</li>
+ * </ol>
+ * Indexes keep their name when a table is renamed, so index names alternate between the OrmLite name and the same name with a suffix.
+ * Full-text indexes refer to the live table by name: their triggers are moved to the new table and they are rebuilt in the swap transaction.
+ */
+final class ShadowTables {
+	private static final String SHADOW_TABLE_SUFFIX = "_poetry_shadow";
+	private static final String OLD_TABLE_SUFFIX = "_poetry_old";
+	private static final String INDEX_SUFFIX = "_poetry";
+
+	// Drops replaced tables one refresh at a time: its thread ends when it has been idle for a while
+	private static final ThreadPoolExecutor dropExecutor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "poetry-drop-tables");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		dropExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private final SQLiteDatabase database;
+	private final TableIndexes tableIndexes;
+	// Maps: model class -> live table name
+	private final LinkedHashMap<Class<?>, String> tableNames;
+	private final List<FullTextIndex> fullTextIndexes;
+
+	/**
+	 * @param database   the writable database
+	 * @param tableNames maps the model classes onto their live table names
+	 */
+	ShadowTables(SQLiteDatabase database, LinkedHashMap<Class<?>, String> tableNames) {
+		this.database = database;
+		this.tableIndexes = new TableIndexes(database);
+		this.tableNames = tableNames;
+		this.fullTextIndexes = getFullTextIndexes(tableNames.keySet());
+	}
+
+	static List<FullTextIndex> getFullTextIndexes(Collection<Class<?>> modelClasses) {
+		AnnotationRetriever annotation_retriever = new AnnotationRetriever();
+		List<FullTextIndex> full_text_indexes = new ArrayList<>();
+
+		for (Class<?> model_class : modelClasses) {
+			FullTextIndex full_text_index = new FullTextIndex(annotation_retriever, model_class);
+
+			if (full_text_index.hasColumns()) {
+				full_text_indexes.add(full_text_index);
+			}
+		}
+
+		return full_text_indexes;
+	}
+
+	static String getShadowTableName(String tableName) {
+		return tableName + SHADOW_TABLE_SUFFIX;
+	}
+
+	/**
+	 * Create empty shadow tables. Leftovers from earlier (failed) refreshes are dropped first.
+	 */
+	void create() {
+		for (Map.Entry<Class<?>, String> entry : tableNames.entrySet()) {
+			String shadow_table_name = getShadowTableName(entry.getValue());
+
+			database.execSQL("DROP TABLE IF EXISTS '" + shadow_table_name + "'");
+			database.execSQL("DROP TABLE IF EXISTS '" + entry.getValue() + OLD_TABLE_SUFFIX + "'");
+
+			for (String statement : tableIndexes.getCreateTableStatements(entry.getKey(), shadow_table_name)) {
+				// Indexes are built after the import
+				if (statement.startsWith("CREATE TABLE")) {
+					database.execSQL(statement);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build the indexes of the shadow tables as OrmLite would for the live tables.
+	 */
+	void createIndexes() {
+		for (Map.Entry<Class<?>, String> entry : tableNames.entrySet()) {
+			String shadow_table_name = getShadowTableName(entry.getValue());
+
+			for (TableIndexes.Index index : tableIndexes.getIndexes(entry.getKey())) {
+				database.execSQL(index.getCreateSql(getAvailableIndexName(index.getName()), shadow_table_name));
+			}
+		}
+	}
+
+	/**
+	 * Replace the live tables with the shadow tables in a single transaction.
+	 */
+	void swap() {
+		database.beginTransactionNonExclusive();
+
+		try {
+			// The triggers would move with the replaced tables
+			for (FullTextIndex full_text_index : fullTextIndexes) {
+				execSQL(full_text_index.getDropTriggerStatements());
+			}
+
+			for (String table_name : tableNames.values()) {
+				if (exists("table", table_name)) {
+					database.execSQL("ALTER TABLE '" + table_name + "' RENAME TO '" + table_name + OLD_TABLE_SUFFIX + "'");
+				}
+
+				database.execSQL("ALTER TABLE '" + getShadowTableName(table_name) + "' RENAME TO '" + table_name + "'");
+			}
+
+			for (FullTextIndex full_text_index : fullTextIndexes) {
+				execSQL(full_text_index.getCreateTriggerStatements());
+				database.execSQL(full_text_index.getRebuildSql());
+			}
+
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+		}
+	}
+
+	/**
+	 * Drop the shadow tables when the import failed. The live tables are not affected.
+	 */
+	void drop() {
+		for (String table_name : tableNames.values()) {
+			database.execSQL("DROP TABLE IF EXISTS '" + getShadowTableName(table_name) + "'");
+		}
+	}
+
+	/**
+	 * Drop the tables that were replaced by {@link #swap()}, so the caller doesn't have to wait for it.
+	 */
+	void dropOldTablesInBackground() {
+		final List<String> old_table_names = new ArrayList<>(tableNames.size());
+
+		for (String table_name : tableNames.values()) {
+			old_table_names.add(table_name + OLD_TABLE_SUFFIX);
+		}
+
+		dropExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String old_table_name : old_table_names) {
+						database.execSQL("DROP TABLE IF EXISTS '" + old_table_name + "'");
+					}
+				} catch (RuntimeException e) {
+					// The tables are dropped before the next refresh anyway (e.g. when the database was closed in the meantime)
+					Log.w(ShadowTables.class.getName(), "failed to drop replaced tables", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the OrmLite index name or the alternative name when the live table already uses it
+	 */
+	static String getAlternativeIndexName(String indexName) {
+		return indexName + INDEX_SUFFIX;
+	}
+
+	private String getAvailableIndexName(String indexName) {
+		String base_name = indexName.endsWith(INDEX_SUFFIX) ? indexName.substring(0, indexName.length() - INDEX_SUFFIX.length()) : indexName;
+
+		return exists("index", base_name) ? getAlternativeIndexName(base_name) : base_name;
+	}
+
+	private void execSQL(List<String> statements) {
+		for (String statement : statements) {
+			database.execSQL(statement);
+		}
+	}
+
+	private boolean exists(String type, String name) {
+		SQLiteStatement statement = database.compileStatement("SELECT COUNT(*) FROM sqlite_master WHERE type = ? AND name = ?");
+
+		try {
+			statement.bindString(1, type);
+			statement.bindString(2, name);
+			return statement.simpleQueryForLong() > 0;
+		} finally {
+			statement.close();
+		}
+	}
+}
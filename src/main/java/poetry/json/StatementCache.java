@@ -0,0 +1,46 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+
+/**
+ * Keeps compiled statements by their SQL so they can be reused within a transaction.
+ */
+final class StatementCache {
+	private final SQLiteDatabase database;
+	private final HashMap<String, SQLiteStatement> statements = new HashMap<>();
+
+	StatementCache(SQLiteDatabase database) {
+		this.database = database;
+	}
+
+	/**
+	 * @param sql the statement to compile
+	 * @return a cached or newly compiled statement (bindings are cleared)
+	 */
+	SQLiteStatement get(String sql) {
+		SQLiteStatement statement = statements.get(sql);
+
+		if (statement == null) {
+			statement = database.compileStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearBindings();
+		}
+
+		return statement;
+	}
+
+	/**
+	 * Release all compiled statements.
+	 */
+	void close() {
+		for (SQLiteStatement statement : statements.values()) {
+			statement.close();
+		}
+
+		statements.clear();
+	}
+}
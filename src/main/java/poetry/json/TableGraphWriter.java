@@ -0,0 +1,496 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import poetry.json.annotations.MergePolicy;
+
+/**
+ * An alternative persistence engine that writes an object graph table by table.
+ * <p>
+ * First, JSON objects are flattened into per-table row buffers. This uses an explicit work stack instead of recursion,
+ * so deeply nested payloads can't overflow the call stack. Then the tables are written in foreign key order
+ * (referenced tables first) and rows of the same shape (same set of columns) are written consecutively,
+ * so compiled statements and B-tree pages stay hot. Collection changes (join tables, base types and orphan cleanup)
+ * are applied after all tables are written.
+ * <p>
+ * The end result is the same as with the recursive engine of {@link JsonPersister}, except for rows that are
+ * skipped by their version or merge policy. Both engines then skip the one-to-many children and the collection
+ * changes (join rows, base types) of the row and both write its foreign objects, but this engine also writes the
+ * targets of its many-to-many collections and the foreign objects of its children: their tables can be written
+ * before it is known that the row is skipped.
+ */
+final class TableGraphWriter {
+	private final JsonPersister persister;
+	private final StatementCache statementCache;
+	private final DependencyOrder tableOrder;
+	private final boolean showIgnoredAttributeWarnings;
+	// Maps: model plan -> rows in the order they were flattened
+	private final LinkedHashMap<ModelPlan, List<Row>> rowsByPlan = new LinkedHashMap<>();
+	private final List<CollectionChange> collectionChanges = new ArrayList<>();
+	private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+
+	TableGraphWriter(JsonPersister persister, StatementCache statementCache, DependencyOrder tableOrder, boolean showIgnoredAttributeWarnings) {
+		this.persister = persister;
+		this.statementCache = statementCache;
+		this.tableOrder = tableOrder;
+		this.showIgnoredAttributeWarnings = showIgnoredAttributeWarnings;
+	}
+
+	/**
+	 * Flatten an object and all its children into row buffers. Nothing is written until {@link #write()} is called.
+	 *
+	 * @param modelClass the type to persist
+	 * @param jsonObject the json to process
+	 * @return the row of the object (its ID is available after {@link #write()})
+	 * @throws JSONException when json processing fails
+	 */
+	Row add(Class<?> modelClass, JSONObject jsonObject) throws JSONException {
+		Row root = new Row(persister.getModelPlan(modelClass));
+		stack.push(new Frame(root, jsonObject));
+
+		while (!stack.isEmpty()) {
+			Frame frame = stack.pop();
+
+			if (frame.jsonObject == null) {
+				getRows(frame.row.plan).add(frame.row);
+			} else {
+				expand(frame.row, frame.jsonObject);
+			}
+		}
+
+		return root;
+	}
+
+	/**
+	 * Flatten all the objects of an array.
+	 *
+	 * @return the rows of the objects (their IDs are available after {@link #write()})
+	 */
+	List<Row> addAll(Class<?> modelClass, JSONArray jsonArray) throws JSONException {
+		List<Row> rows = new ArrayList<>(jsonArray.length());
+
+		for (int i = 0; i < jsonArray.length(); ++i) {
+			rows.add(add(modelClass, jsonArray.getJSONObject(i)));
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Write all flattened rows and collection changes. The buffers are empty afterwards.
+	 *
+	 * @throws JSONException when a value cannot be converted
+	 */
+	void write() throws JSONException {
+		Map<ModelPlan, Class<?>> plan_classes = new LinkedHashMap<>(rowsByPlan.size());
+
+		for (ModelPlan plan : rowsByPlan.keySet()) {
+			plan_classes.put(plan, plan.getModelClass());
+		}
+
+		for (ModelPlan plan : tableOrder.sort(plan_classes)) {
+			writeRows(plan, rowsByPlan.get(plan));
+		}
+
+		for (CollectionChange change : collectionChanges) {
+			change.write();
+		}
+
+		rowsByPlan.clear();
+		collectionChanges.clear();
+	}
+
+	private List<Row> getRows(ModelPlan plan) {
+		List<Row> rows = rowsByPlan.get(plan);
+
+		if (rows == null) {
+			rows = new ArrayList<>();
+			rowsByPlan.put(plan, rows);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Map the JSON keys of an object onto its row and push the related objects onto the work stack.
+	 * The stack is ordered so that foreign objects are emitted before the row and children are emitted after it.
+	 */
+	private void expand(Row row, JSONObject jsonObject) throws JSONException {
+		ModelPlan plan = row.plan;
+		List<Frame> foreign_frames = null;
+		List<Frame> child_frames = null;
+		Iterator<?> json_keys = jsonObject.keys();
+
+		while (json_keys.hasNext()) {
+			String json_key = (String) json_keys.next();
+			FieldPlan field_plan = plan.getField(json_key);
+
+			if (field_plan == null) {
+				if (showIgnoredAttributeWarnings) {
+					Log.w(getClass().getName(), String.format("ignored attribute %s because it wasn't found in %s as a DatabaseField", json_key, plan.getModelClass().getSimpleName()));
+				}
+
+				continue;
+			}
+
+			switch (field_plan.getKind()) {
+				case FieldPlan.KIND_ID:
+					Object id_value = jsonObject.opt(json_key);
+
+					if (id_value == null || id_value == JSONObject.NULL) {
+						throw new RuntimeException(String.format("failed to get a value from JSON with key %s and type %s", json_key, field_plan.getConverter().getType().getName()));
+					}
+
+					row.id = field_plan.getConverter().toIdValue(id_value);
+					break;
+
+				case FieldPlan.KIND_VALUE:
+					if (field_plan.getConverter().isSupported()) {
+						row.set(field_plan.getColumnIndex(), jsonObject.opt(json_key));
+					} else {
+						Log.w(getClass().getName(), String.format("attribute type %s has an unsupported type while parsing %s", json_key, plan.getModelClass().getSimpleName()));
+					}
+					break;
+
+				case FieldPlan.KIND_FOREIGN:
+					JSONObject foreign_object = jsonObject.optJSONObject(json_key);
+
+					if (jsonObject.isNull(json_key)) {
+						row.set(field_plan.getColumnIndex(), JSONObject.NULL);
+					} else if (foreign_object != null) {
+						Row foreign_row = new Row(persister.getModelPlan(field_plan.getField().getType()));
+						row.set(field_plan.getColumnIndex(), foreign_row);
+						foreign_frames = addFrame(foreign_frames, new Frame(foreign_row, foreign_object));
+					} else {
+						row.set(field_plan.getColumnIndex(), field_plan.getConverter().toIdValue(jsonObject.get(json_key)));
+					}
+					break;
+
+				case FieldPlan.KIND_FOREIGN_COLLECTION:
+					CollectionPlan collection_plan = persister.getCollectionPlan(field_plan, plan.getModelClass());
+					JSONArray json_array = !jsonObject.isNull(json_key) ? jsonObject.getJSONArray(json_key) : null;
+
+					if (json_array == null) {
+						// Ignored like in the recursive writer: the stored collection is kept
+						Log.i(getClass().getName(), String.format("mapping %s for type %s was null: kept the stored collection", field_plan.getField().getName(), field_plan.getField().getType().getName()));
+					} else if (collection_plan.getKind() == CollectionPlan.KIND_BASE_TYPES) {
+						collectionChanges.add(new CollectionChange(collection_plan, row, null, json_array));
+					} else {
+						boolean is_many_to_many = (collection_plan.getKind() == CollectionPlan.KIND_MANY_TO_MANY);
+						ModelPlan target_plan = is_many_to_many
+								? persister.getModelPlan(collection_plan.getManyToManyTargetClass())
+								: collection_plan.getTargetPlan();
+						List<Row> target_rows = new ArrayList<>(json_array.length());
+
+						for (int i = 0; i < json_array.length(); ++i) {
+							Row target_row = new Row(target_plan);
+
+							if (!is_many_to_many) {
+								// The parent reference always wins over a value in the child's JSON
+								target_row.parentColumnIndex = collection_plan.getTargetPlan().getFieldByColumnName(collection_plan.getForeignColumnName()).getColumnIndex();
+								target_row.parent = row;
+							}
+
+							target_rows.add(target_row);
+							child_frames = addFrame(child_frames, new Frame(target_row, json_array.getJSONObject(i)));
+						}
+
+						collectionChanges.add(new CollectionChange(collection_plan, row, target_rows, null));
+					}
+					break;
+			}
+		}
+
+		if (row.parentColumnIndex != -1) {
+			row.set(row.parentColumnIndex, row.parent);
+		}
+
+		// Pushed in reverse: the last pushed frame is processed first
+		pushReversed(child_frames);
+		stack.push(new Frame(row, null));
+		pushReversed(foreign_frames);
+	}
+
+	private static List<Frame> addFrame(List<Frame> frames, Frame frame) {
+		if (frames == null) {
+			frames = new ArrayList<>();
+		}
+
+		frames.add(frame);
+
+		return frames;
+	}
+
+	private void pushReversed(List<Frame> frames) {
+		if (frames != null) {
+			for (int i = frames.size() - 1; i >= 0; --i) {
+				stack.push(frames.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Write all the rows of a table. Rows of the same shape are grouped, unless that could change the outcome:
+	 * when the table references itself or when the same ID occurs more than once.
+	 */
+	private void writeRows(ModelPlan plan, List<Row> rows) throws JSONException {
+		if (plan.getIdField() == null) {
+			throw new SQLiteException("class " + plan.getModelClass().getName() + " doesn't have a DatabaseField that is marked as being an ID");
+		}
+
+		List<Row> ordered_rows = tableOrder.isSelfReferencing(plan.getModelClass()) ? rows : groupByShape(rows);
+
+		for (Row row : ordered_rows) {
+			// The children of a skipped object are skipped as well
+			row.skipped = (row.parent != null && row.parent.skipped) || !writeRow(plan, row);
+
+			if (row.skipped) {
+				persister.addSkippedObject(plan.getModelClass());
+			} else {
+				persister.addChangedRow(plan.getModelClass(), row.id);
+			}
+		}
+
+		Log.i(getClass().getName(), String.format("imported %d %s rows", rows.size(), plan.getModelClass().getSimpleName()));
+	}
+
+	private static List<Row> groupByShape(List<Row> rows) {
+		LinkedHashMap<BitSet, List<Row>> rows_by_shape = new LinkedHashMap<>();
+		HashSet<Object> ids = new HashSet<>(rows.size());
+
+		for (Row row : rows) {
+			if (row.id != null && !ids.add(row.id)) {
+				return rows;
+			}
+
+			List<Row> shape_rows = rows_by_shape.get(row.columns);
+
+			if (shape_rows == null) {
+				shape_rows = new ArrayList<>();
+				rows_by_shape.put(row.columns, shape_rows);
+			}
+
+			shape_rows.add(row);
+		}
+
+		List<Row> grouped_rows = new ArrayList<>(rows.size());
+
+		for (List<Row> shape_rows : rows_by_shape.values()) {
+			grouped_rows.addAll(shape_rows);
+		}
+
+		return grouped_rows;
+	}
+
+	/**
+	 * @return false when the row was skipped because the stored row is kept
+	 */
+	private boolean writeRow(ModelPlan plan, Row row) throws JSONException {
+		FieldConverter id_converter = plan.getIdField().getConverter();
+
+		if (row.id == null) {
+			// Generated ID: a single insert with all the columns
+			SQLiteStatement statement = statementCache.get(plan.getInsertSql(row.columns, false));
+			bindColumns(plan, row, statement, 1);
+			long inserted_id = statement.executeInsert();
+
+			if (inserted_id == -1) {
+				throw new SQLiteException("failed to insert " + plan.getModelClass().getName() + " with id field " + plan.getIdField().getColumnName());
+			}
+
+			row.id = inserted_id;
+		} else if (plan.getMergeStrategy() == MergePolicy.Strategy.INSERT_ONLY) {
+			// Existing rows are ignored
+			SQLiteStatement insert_statement = statementCache.get(plan.getInsertSql(row.columns, true));
+			id_converter.bind(insert_statement, 1, row.id);
+			bindColumns(plan, row, insert_statement, 2);
+
+			return insert_statement.executeInsert() != -1;
+		} else if (!row.columns.isEmpty()) {
+			// Update the existing row and insert it when it doesn't exist yet
+			SQLiteStatement update_statement = statementCache.get(plan.getUpdateSql(row.columns));
+			int bind_index = bindColumns(plan, row, update_statement, 1);
+			id_converter.bind(update_statement, bind_index, row.id);
+
+			if (plan.hasVersionGuard(row.columns)) {
+				int version_index = plan.getVersionField().getColumnIndex();
+				plan.getVersionField().getConverter().bind(update_statement, bind_index + 1, row.values[version_index]);
+			}
+
+			if (update_statement.executeUpdateDelete() == 0) {
+				// Without changes the row is absent, unless it was guarded by its version or merge policy
+				if (plan.hasUpdateGuard(row.columns) && exists(plan, row.id)) {
+					return false;
+				}
+
+				SQLiteStatement insert_statement = statementCache.get(plan.getInsertSql(row.columns, true));
+				id_converter.bind(insert_statement, 1, row.id);
+				bindColumns(plan, row, insert_statement, 2);
+
+				if (insert_statement.executeInsert() == -1) {
+					throw new SQLiteException(String.format("failed to insert %s with id %s=%s", plan.getModelClass().getName(), plan.getIdField().getColumnName(), row.id.toString()));
+				}
+			}
+		} else {
+			// Only an ID: make sure the row exists
+			if (!exists(plan, row.id)) {
+				SQLiteStatement insert_statement = statementCache.get(plan.getInsertIdSql());
+				id_converter.bind(insert_statement, 1, row.id);
+
+				if (insert_statement.executeInsert() == -1) {
+					throw new SQLiteException(String.format("failed to insert %s with id %s=%s", plan.getModelClass().getName(), plan.getIdField().getColumnName(), row.id.toString()));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private boolean exists(ModelPlan plan, Object id) throws JSONException {
+		SQLiteStatement count_statement = statementCache.get(plan.getCountByIdSql());
+		plan.getIdField().getConverter().bind(count_statement, 1, id);
+
+		return count_statement.simpleQueryForLong() > 0;
+	}
+
+	/**
+	 * @return the next bind index
+	 */
+	private static int bindColumns(ModelPlan plan, Row row, SQLiteStatement statement, int firstBindIndex) throws JSONException {
+		int bind_index = firstBindIndex;
+
+		for (int i = row.columns.nextSetBit(0); i >= 0; i = row.columns.nextSetBit(i + 1)) {
+			plan.getColumnField(i).getConverter().bind(statement, bind_index++, resolveValue(row.values[i]));
+		}
+
+		return bind_index;
+	}
+
+	/**
+	 * @return the value itself or the ID of the row that the value refers to
+	 */
+	private static Object resolveValue(Object value) {
+		if (value instanceof Row) {
+			Object id = ((Row) value).id;
+
+			if (id == null) {
+				throw new IllegalStateException("row for " + ((Row) value).plan.getModelClass().getName() + " was referenced before its generated ID was available");
+			}
+
+			return id;
+		} else {
+			return value;
+		}
+	}
+
+	/**
+	 * A buffered row: the column values are JSON values, ID values or references to other rows.
+	 */
+	static final class Row {
+		private final ModelPlan plan;
+		private final BitSet columns;
+		private final Object[] values;
+		// The ID from JSON or the generated ID (after writing)
+		private Object id;
+		private int parentColumnIndex = -1;
+		private Row parent;
+		// True when the row was not written because the stored row is kept
+		private boolean skipped;
+
+		Row(ModelPlan plan) {
+			this.plan = plan;
+			this.columns = new BitSet(plan.getColumnFieldCount());
+			this.values = new Object[plan.getColumnFieldCount()];
+		}
+
+		void set(int columnIndex, Object value) {
+			columns.set(columnIndex);
+			values[columnIndex] = value;
+		}
+
+		/**
+		 * @return the ID (never null after the row is written)
+		 */
+		Object getId() {
+			return id;
+		}
+	}
+
+	/**
+	 * A unit of work: an object to expand (when jsonObject is set) or a row to emit into its table buffer.
+	 */
+	private static final class Frame {
+		private final Row row;
+		private final JSONObject jsonObject;
+
+		Frame(Row row, JSONObject jsonObject) {
+			this.row = row;
+			this.jsonObject = jsonObject;
+		}
+	}
+
+	/**
+	 * A collection of a parent row that is written after all the rows are written.
+	 */
+	private final class CollectionChange {
+		private final CollectionPlan collectionPlan;
+		private final Row parent;
+		private final List<Row> targetRows;
+		private final JSONArray baseTypes;
+
+		CollectionChange(CollectionPlan collectionPlan, Row parent, List<Row> targetRows, JSONArray baseTypes) {
+			this.collectionPlan = collectionPlan;
+			this.parent = parent;
+			this.targetRows = targetRows;
+			this.baseTypes = baseTypes;
+		}
+
+		void write() throws JSONException {
+			if (parent.skipped) {
+				return;
+			}
+
+			Object parent_id = resolveValue(parent);
+
+			switch (collectionPlan.getKind()) {
+				case CollectionPlan.KIND_BASE_TYPES:
+					persister.writeBaseTypes(collectionPlan, baseTypes, parent_id);
+					break;
+
+				case CollectionPlan.KIND_MANY_TO_MANY:
+					persister.writeManyToManyReferences(collectionPlan, parent_id, getTargetIds());
+					break;
+
+				default:
+					// The children were written with a reference to the parent, so only the cleanup remains
+					persister.deleteOrphans(collectionPlan, parent_id, getTargetIds());
+					break;
+			}
+		}
+
+		private IdList getTargetIds() {
+			IdList target_ids = new IdList(targetRows.size());
+
+			for (Row target_row : targetRows) {
+				target_ids.add(resolveValue(target_row));
+			}
+
+			return target_ids;
+		}
+	}
+}
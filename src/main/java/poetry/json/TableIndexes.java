@@ -0,0 +1,97 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.j256.ormlite.android.AndroidConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTableConfig;
+import com.j256.ormlite.table.TableUtils;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import poetry.annotations.Nullable;
+
+/**
+ * Derives table and index definitions from the OrmLite annotations of a model,
+ * so they match the tables that {@link TableUtils} (and DatabaseHelper) creates.
+ */
+final class TableIndexes {
+	// OrmLite index statements, e.g.: CREATE INDEX `table_column_idx` ON `table` ( `column` )
+	private static final Pattern INDEX_STATEMENT_PATTERN = Pattern.compile("^(CREATE (UNIQUE )?INDEX (?:IF NOT EXISTS )?)`([^`]+)` ON `[^`]+`(.*)$", Pattern.DOTALL);
+
+	private final ConnectionSource connectionSource;
+
+	TableIndexes(SQLiteDatabase database) {
+		this.connectionSource = new AndroidConnectionSource(database);
+	}
+
+	/**
+	 * @param tableName the table name to use or null for the default table name
+	 */
+	List<String> getCreateTableStatements(Class<?> modelClass, @Nullable String tableName) {
+		try {
+			if (tableName == null) {
+				return TableUtils.getCreateTableStatements(connectionSource, modelClass);
+			} else {
+				DatabaseTableConfig<?> table_config = DatabaseTableConfig.fromClass(connectionSource, modelClass);
+				table_config.setTableName(tableName);
+				return TableUtils.getCreateTableStatements(connectionSource, table_config);
+			}
+		} catch (SQLException e) {
+			Log.e(TableIndexes.class.getName(), "can't create table statements for " + modelClass.getName(), e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the indexes that OrmLite creates for the model's table
+	 */
+	List<Index> getIndexes(Class<?> modelClass) {
+		List<Index> indexes = new ArrayList<>();
+
+		for (String statement : getCreateTableStatements(modelClass, null)) {
+			Matcher matcher = INDEX_STATEMENT_PATTERN.matcher(statement);
+
+			if (matcher.matches()) {
+				indexes.add(new Index(matcher.group(3), matcher.group(2) != null, matcher.group(1), matcher.group(4)));
+			}
+		}
+
+		return indexes;
+	}
+
+	static final class Index {
+		private final String name;
+		private final boolean unique;
+		// The statement parts before the index name and after the table name
+		private final String statementPrefix;
+		private final String statementSuffix;
+
+		private Index(String name, boolean unique, String statementPrefix, String statementSuffix) {
+			this.name = name;
+			this.unique = unique;
+			this.statementPrefix = statementPrefix;
+			this.statementSuffix = statementSuffix;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		boolean isUnique() {
+			return unique;
+		}
+
+		/**
+		 * @return the statement that creates this index with the specified name for the specified table
+		 */
+		String getCreateSql(String indexName, String tableName) {
+			return statementPrefix + "`" + indexName + "` ON `" + tableName + "`" + statementSuffix;
+		}
+	}
+}
@@ -0,0 +1,565 @@
+package poetry.json;
+
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A JSON tokenizer that works directly on UTF-8 bytes, e.g. from a memory-mapped file or a pooled byte array.
+ * <p>
+ * Unlike org.json, the document is never copied into a String: object keys are matched against a {@link KeyTable}
+ * while they are still bytes and values are only materialized when they are requested.
+ * Skipped values are only checked for matching brackets.
+ * <p>
+ * Malformed JSON throws a {@link MalformedJsonException}.
+ * <p>
+ * Usage of objects and arrays: call begin*(), then call {@link #hasNext()} before every member or element.
+ * {@link #hasNext()} consumes the closing bracket when it returns false.
+ */
+final class Utf8JsonReader {
+	static final int TOKEN_OBJECT = 1;
+	static final int TOKEN_ARRAY = 2;
+	static final int TOKEN_STRING = 3;
+	static final int TOKEN_NUMBER = 4;
+	static final int TOKEN_BOOLEAN = 5;
+	static final int TOKEN_NULL = 6;
+
+	private final ByteBuffer buffer;
+	private final int limit;
+	private int position;
+	// Whether the object or array at a nesting depth already has members (to validate commas)
+	private boolean[] hasMembers = new boolean[32];
+	// The closing bracket of the object or array at a nesting depth
+	private byte[] closingBrackets = new byte[32];
+	private int depth;
+	// Reused for decoding strings
+	private char[] chars = new char[64];
+
+	/**
+	 * @param buffer the document, from its position up to its limit (the position of the buffer is not changed)
+	 */
+	Utf8JsonReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.position = buffer.position();
+		this.limit = buffer.limit();
+
+		skipByteOrderMark();
+	}
+
+	/**
+	 * @return one of the TOKEN_* values
+	 */
+	int peek() throws MalformedJsonException {
+		switch (peekByte()) {
+			case '{':
+				return TOKEN_OBJECT;
+			case '[':
+				return TOKEN_ARRAY;
+			case '"':
+				return TOKEN_STRING;
+			case 't':
+			case 'f':
+				return TOKEN_BOOLEAN;
+			case 'n':
+				return TOKEN_NULL;
+			case '-':
+			case '0':
+			case '1':
+			case '2':
+			case '3':
+			case '4':
+			case '5':
+			case '6':
+			case '7':
+			case '8':
+			case '9':
+				return TOKEN_NUMBER;
+			default:
+				throw syntaxError("unexpected character");
+		}
+	}
+
+	void beginObject() throws MalformedJsonException {
+		expect('{');
+		push('}');
+	}
+
+	void beginArray() throws MalformedJsonException {
+		expect('[');
+		push(']');
+	}
+
+	/**
+	 * @return true when the current object or array has another member (the comma is consumed),
+	 * false when it ended (the closing bracket is consumed)
+	 */
+	boolean hasNext() throws MalformedJsonException {
+		int next = peekByte();
+
+		if (next == '}' || next == ']') {
+			pop(next);
+			position++;
+			return false;
+		}
+
+		if (hasMembers[depth]) {
+			expect(',');
+		} else {
+			hasMembers[depth] = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Read an object key (and the colon after it) without materializing it.
+	 *
+	 * @param keyTable the keys to match
+	 * @return the index of the key in the table or -1 when it is not in the table
+	 */
+	int nextKey(KeyTable<?> keyTable) throws MalformedJsonException {
+		expect('"');
+
+		int start = position;
+
+		while (position < limit) {
+			byte b = buffer.get(position);
+
+			if (b == '"') {
+				int index = keyTable.find(buffer, start, position);
+				position++;
+				expect(':');
+				return index;
+			} else if (b == '\\') {
+				// Escaped keys are rare: decode them the slow way
+				position = start - 1;
+				String key = nextString();
+				expect(':');
+				return keyTable.find(key);
+			}
+
+			position++;
+		}
+
+		throw syntaxError("unterminated string");
+	}
+
+	String nextString() throws MalformedJsonException {
+		expect('"');
+
+		int length = 0;
+
+		while (true) {
+			if (position >= limit) {
+				throw syntaxError("unterminated string");
+			}
+
+			if (length + 2 > chars.length) {
+				char[] new_chars = new char[chars.length * 2];
+				System.arraycopy(chars, 0, new_chars, 0, length);
+				chars = new_chars;
+			}
+
+			int b = buffer.get(position++) & 0xff;
+
+			if (b == '"') {
+				return new String(chars, 0, length);
+			} else if (b == '\\') {
+				chars[length++] = readEscape();
+			} else if (b < 0x80) {
+				chars[length++] = (char) b;
+			} else if ((b & 0xe0) == 0xc0) {
+				chars[length++] = (char) (((b & 0x1f) << 6) | continuation());
+			} else if ((b & 0xf0) == 0xe0) {
+				chars[length++] = (char) (((b & 0x0f) << 12) | (continuation() << 6) | continuation());
+			} else if ((b & 0xf8) == 0xf0) {
+				int code_point = (((b & 0x07) << 18) | (continuation() << 12) | (continuation() << 6) | continuation()) - 0x10000;
+				// Surrogate pair (Character.highSurrogate() requires API level 19)
+				chars[length++] = (char) (0xd800 + (code_point >> 10));
+				chars[length++] = (char) (0xdc00 + (code_point & 0x3ff));
+			} else {
+				throw syntaxError("invalid UTF-8");
+			}
+		}
+	}
+
+	/**
+	 * Read a number as org.json would: integers become Integer or Long, others become Double.
+	 */
+	Object nextNumber() throws MalformedJsonException {
+		int start = position;
+		boolean is_integer = true;
+
+		while (position < limit) {
+			byte b = buffer.get(position);
+
+			if (b == '.' || b == 'e' || b == 'E' || b == '+') {
+				is_integer = false;
+			} else if (b != '-' && (b < '0' || b > '9')) {
+				break;
+			}
+
+			position++;
+		}
+
+		boolean negative = (position > start && buffer.get(start) == '-');
+		int digit_start = negative ? start + 1 : start;
+		int digit_count = position - digit_start;
+
+		if (digit_count == 0) {
+			throw syntaxError("invalid number");
+		}
+
+		if (digit_count > 1 && buffer.get(digit_start) == '0' && buffer.get(digit_start + 1) >= '0' && buffer.get(digit_start + 1) <= '9') {
+			throw syntaxError("number with leading zero");
+		}
+
+		// 18 digits always fit in a long, so no String is needed
+		if (is_integer && digit_count <= 18) {
+			long value = 0;
+
+			for (int i = digit_start; i < position; ++i) {
+				byte b = buffer.get(i);
+
+				if (b < '0' || b > '9') {
+					throw syntaxError("invalid number");
+				}
+
+				value = value * 10 + (b - '0');
+			}
+
+			if (negative) {
+				value = -value;
+			}
+
+			if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+				return (int) value;
+			} else {
+				return value;
+			}
+		}
+
+		char[] number_chars = new char[position - start];
+
+		for (int i = 0; i < number_chars.length; ++i) {
+			number_chars[i] = (char) buffer.get(start + i);
+		}
+
+		String number = new String(number_chars);
+
+		try {
+			if (is_integer) {
+				try {
+					return Long.parseLong(number);
+				} catch (NumberFormatException e) {
+					// fall through to double parsing for numbers that don't fit in a long
+				}
+			}
+
+			return Double.valueOf(number);
+		} catch (NumberFormatException e) {
+			throw syntaxError("invalid number");
+		}
+	}
+
+	boolean nextBoolean() throws MalformedJsonException {
+		if (peekByte() == 't') {
+			expectLiteral("true");
+			return true;
+		} else {
+			expectLiteral("false");
+			return false;
+		}
+	}
+
+	void nextNull() throws MalformedJsonException {
+		peekByte();
+		expectLiteral("null");
+	}
+
+	/**
+	 * Skip the next value, including all its children, without materializing anything.
+	 */
+	void skipValue() throws MalformedJsonException {
+		int token = peek();
+
+		if (token == TOKEN_STRING) {
+			skipString();
+		} else if (token == TOKEN_NUMBER) {
+			nextNumber();
+		} else if (token == TOKEN_BOOLEAN) {
+			nextBoolean();
+		} else if (token == TOKEN_NULL) {
+			nextNull();
+		} else {
+			int base_depth = depth;
+
+			while (position < limit) {
+				byte b = buffer.get(position);
+
+				if (b == '"') {
+					skipString();
+					continue;
+				} else if (b == '{') {
+					push('}');
+				} else if (b == '[') {
+					push(']');
+				} else if (b == '}' || b == ']') {
+					pop(b);
+
+					if (depth == base_depth) {
+						position++;
+						return;
+					}
+				}
+
+				position++;
+			}
+
+			throw syntaxError("unterminated object or array");
+		}
+	}
+
+	/**
+	 * Read the next value into the same types that org.json would produce.
+	 */
+	Object readValue() throws MalformedJsonException, JSONException {
+		switch (peek()) {
+			case TOKEN_OBJECT:
+				JSONObject json_object = new JSONObject();
+				beginObject();
+
+				while (hasNext()) {
+					String key = nextString();
+					expect(':');
+					json_object.put(key, readValue());
+				}
+
+				return json_object;
+
+			case TOKEN_ARRAY:
+				JSONArray json_array = new JSONArray();
+				beginArray();
+
+				while (hasNext()) {
+					json_array.put(readValue());
+				}
+
+				return json_array;
+
+			case TOKEN_STRING:
+				return nextString();
+
+			case TOKEN_NUMBER:
+				return nextNumber();
+
+			case TOKEN_BOOLEAN:
+				return nextBoolean();
+
+			default:
+				nextNull();
+				return JSONObject.NULL;
+		}
+	}
+
+	/**
+	 * @return the byte position in the buffer, e.g. to resume reading with {@link #resumeArray(int)}
+	 */
+	int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Continue reading the top-level array of the document after one of its elements,
+	 * as if the document was read up to that position: the next call should be {@link #hasNext()}.
+	 *
+	 * @param position the position right after an element, as returned by {@link #getPosition()}
+	 */
+	void resumeArray(int position) throws MalformedJsonException {
+		if (position < buffer.position() || position > limit) {
+			throw syntaxError("invalid resume position " + position);
+		}
+
+		this.position = position;
+		depth = 1;
+		hasMembers[depth] = true;
+		closingBrackets[depth] = ']';
+	}
+
+	/**
+	 * Verify that only whitespace remains.
+	 */
+	void endDocument() throws MalformedJsonException {
+		skipWhitespace();
+
+		if (position < limit) {
+			throw syntaxError("unexpected data after the document");
+		}
+	}
+
+	private void push(char closingBracket) {
+		depth++;
+
+		if (depth == hasMembers.length) {
+			boolean[] new_has_members = new boolean[hasMembers.length * 2];
+			System.arraycopy(hasMembers, 0, new_has_members, 0, hasMembers.length);
+			hasMembers = new_has_members;
+
+			byte[] new_closing_brackets = new byte[closingBrackets.length * 2];
+			System.arraycopy(closingBrackets, 0, new_closing_brackets, 0, closingBrackets.length);
+			closingBrackets = new_closing_brackets;
+		}
+
+		hasMembers[depth] = false;
+		closingBrackets[depth] = (byte) closingBracket;
+	}
+
+	/**
+	 * End the current object or array.
+	 *
+	 * @param closingBracket the closing bracket that was read
+	 */
+	private void pop(int closingBracket) throws MalformedJsonException {
+		if (depth == 0 || closingBrackets[depth] != closingBracket) {
+			throw syntaxError("mismatched '" + (char) closingBracket + "'");
+		}
+
+		depth--;
+	}
+
+	private void skipString() throws MalformedJsonException {
+		expect('"');
+
+		while (position < limit) {
+			byte b = buffer.get(position++);
+
+			if (b == '"') {
+				return;
+			} else if (b == '\\') {
+				position++;
+			}
+		}
+
+		throw syntaxError("unterminated string");
+	}
+
+	private char readEscape() throws MalformedJsonException {
+		if (position >= limit) {
+			throw syntaxError("unterminated escape sequence");
+		}
+
+		byte b = buffer.get(position++);
+
+		switch (b) {
+			case 'u':
+				if (position + 4 > limit) {
+					throw syntaxError("unterminated escape sequence");
+				}
+
+				int value = 0;
+
+				for (int i = 0; i < 4; ++i) {
+					int digit = Character.digit(buffer.get(position++), 16);
+
+					if (digit == -1) {
+						throw syntaxError("invalid escape sequence");
+					}
+
+					value = (value << 4) | digit;
+				}
+
+				return (char) value;
+			case 't':
+				return '\t';
+			case 'b':
+				return '\b';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case '"':
+			case '\\':
+			case '/':
+				return (char) b;
+			default:
+				throw syntaxError("invalid escape sequence");
+		}
+	}
+
+	private int continuation() throws MalformedJsonException {
+		if (position >= limit) {
+			throw syntaxError("invalid UTF-8");
+		}
+
+		int b = buffer.get(position++) & 0xff;
+
+		if ((b & 0xc0) != 0x80) {
+			throw syntaxError("invalid UTF-8");
+		}
+
+		return b & 0x3f;
+	}
+
+	private void expectLiteral(String literal) throws MalformedJsonException {
+		if (position + literal.length() > limit) {
+			throw syntaxError("expected " + literal);
+		}
+
+		for (int i = 0; i < literal.length(); ++i) {
+			if (buffer.get(position + i) != literal.charAt(i)) {
+				throw syntaxError("expected " + literal);
+			}
+		}
+
+		position += literal.length();
+	}
+
+	private void expect(char c) throws MalformedJsonException {
+		if (peekByte() != c) {
+			throw syntaxError("expected '" + c + "'");
+		}
+
+		position++;
+	}
+
+	/**
+	 * Skip whitespace and return the next byte without consuming it.
+	 */
+	private int peekByte() throws MalformedJsonException {
+		skipWhitespace();
+
+		if (position >= limit) {
+			throw syntaxError("unexpected end of document");
+		}
+
+		return buffer.get(position);
+	}
+
+	private void skipWhitespace() {
+		while (position < limit) {
+			byte b = buffer.get(position);
+
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				return;
+			}
+
+			position++;
+		}
+	}
+
+	private void skipByteOrderMark() {
+		if (limit - position >= 3 && (buffer.get(position) & 0xff) == 0xef && (buffer.get(position + 1) & 0xff) == 0xbb && (buffer.get(position + 2) & 0xff) == 0xbf) {
+			position += 3;
+		}
+	}
+
+	private MalformedJsonException syntaxError(String message) {
+		return new MalformedJsonException(message + " at byte " + position);
+	}
+}
@@ -0,0 +1,23 @@
+package poetry.json;
+
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONException;
+
+/**
+ * Converts a JSON value into a database value for a specific model field type.
+ * <p>
+ * Custom converters can be registered with {@link JsonPersister#registerValueConverter(Class, ValueConverter)}.
+ * They take precedence over the built-in conversions.
+ */
+public interface ValueConverter {
+	/**
+	 * Bind a JSON value to a statement.
+	 *
+	 * @param statement the statement to bind the value to
+	 * @param index     the 1-based index of the bind argument
+	 * @param jsonValue a value as produced by org.json: String, Boolean, Integer, Long, Double, JSONObject or JSONArray (never null or JSONObject.NULL)
+	 * @throws JSONException when the value cannot be converted
+	 */
+	void bind(SQLiteStatement statement, int index, Object jsonValue) throws JSONException;
+}
@@ -0,0 +1,17 @@
+package poetry.json.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Add a text DatabaseField to the full-text index of its model.
+ * <p>
+ * DatabaseHelper creates an FTS4 table for the indexed fields of a model, which is kept in sync with the model's table by triggers.
+ * Use DatabaseHelper.searchFullText() to find the IDs of matching rows instead of LIKE '%term%' queries.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FullTextIndexed {
+}
@@ -0,0 +1,45 @@
+package poetry.json.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Specify how imported values are merged with existing rows.
+ * When used on a model class, it applies to all its fields. When used on a field, it overrides the policy of the model.
+ * The policies are executed by SQLite as part of the INSERT or UPDATE statement of a row.
+ */
+@Target({ElementType.TYPE, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MergePolicy {
+	enum Strategy {
+		/**
+		 * Existing values are overwritten with the JSON values (the default behavior).
+		 */
+		OVERWRITE,
+		/**
+		 * On a model: rows are only inserted when they don't exist yet (INSERT OR IGNORE).
+		 * On a field: the value is only written when the column is NULL.
+		 */
+		INSERT_ONLY,
+		/**
+		 * JSON values that are null don't overwrite existing values.
+		 */
+		NON_NULL,
+		/**
+		 * Only for models: existing rows are not updated when the column specified by {@link #dirtyColumn()} is set (non-zero).
+		 */
+		KEEP_DIRTY
+	}
+
+	/**
+	 * @return the merge strategy
+	 */
+	Strategy value();
+
+	/**
+	 * @return the column that marks rows with local changes (required for {@link Strategy#KEEP_DIRTY})
+	 */
+	String dirtyColumn() default "";
+}
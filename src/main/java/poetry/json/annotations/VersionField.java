@@ -0,0 +1,19 @@
+package poetry.json.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Mark a DatabaseField as the version (or updated-at timestamp) of a model.
+ * <p>
+ * When an imported object holds a version that is older than the version of the stored row,
+ * the row is not updated and the object's foreign collections are not processed.
+ * The versions are compared by SQLite, so numbers and sortable date strings (e.g. ISO 8601) are supported.
+ * A null version is considered older than any other version.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface VersionField {
+}
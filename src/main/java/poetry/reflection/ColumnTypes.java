@@ -0,0 +1,103 @@
+package poetry.reflection;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseField;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.UUID;
+
+import poetry.annotations.Nullable;
+
+/**
+ * Resolves how the value of a model field is stored, following the OrmLite {@link DataType} of the field.
+ * <p>
+ * Both the write path (JSON persistence) and the read path (cursor mapping) use these type codes,
+ * so values are read back in the same format as they are written.
+ */
+public final class ColumnTypes {
+	public static final int UNSUPPORTED = 0;
+	public static final int INT = 1;
+	public static final int LONG = 2;
+	public static final int SHORT = 3;
+	public static final int BYTE = 4;
+	public static final int BOOLEAN = 5;
+	public static final int FLOAT = 6;
+	public static final int DOUBLE = 7;
+	public static final int STRING = 8;
+	public static final int DATE_LONG = 9;
+	public static final int DATE_STRING = 10;
+	public static final int ENUM_NAME = 11;
+	public static final int ENUM_ORDINAL = 12;
+	public static final int ENUM_TO_STRING = 13;
+	public static final int BIG_DECIMAL = 14;
+	public static final int UUID_STRING = 15;
+	public static final int BYTE_ARRAY = 16;
+	/**
+	 * Callers can use type codes from this value onwards for their own special cases.
+	 */
+	public static final int FIRST_CUSTOM_TYPE = 100;
+
+	// Reference: com.j256.ormlite.field.types.DateStringType
+	private static final String ORMLITE_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSSSSS";
+
+	private ColumnTypes() {
+	}
+
+	/**
+	 * @param type          the field type
+	 * @param databaseField the annotation of the field
+	 * @return one of the type codes
+	 */
+	public static int getTypeCode(Class<?> type, DatabaseField databaseField) {
+		DataType data_type = databaseField.dataType();
+
+		if (type == int.class || type == Integer.class) {
+			return INT;
+		} else if (type == long.class || type == Long.class) {
+			return LONG;
+		} else if (type == short.class || type == Short.class) {
+			return SHORT;
+		} else if (type == byte.class || type == Byte.class) {
+			return BYTE;
+		} else if (type == boolean.class || type == Boolean.class) {
+			return BOOLEAN;
+		} else if (type == float.class || type == Float.class) {
+			return FLOAT;
+		} else if (type == double.class || type == Double.class) {
+			return DOUBLE;
+		} else if (type == String.class) {
+			return STRING;
+		} else if (Date.class.isAssignableFrom(type)) {
+			return (data_type == DataType.DATE_LONG) ? DATE_LONG : DATE_STRING;
+		} else if (type.isEnum()) {
+			if (data_type == DataType.ENUM_INTEGER) {
+				return ENUM_ORDINAL;
+			} else if (data_type == DataType.ENUM_TO_STRING) {
+				return ENUM_TO_STRING;
+			} else {
+				return ENUM_NAME;
+			}
+		} else if (type == BigDecimal.class) {
+			return BIG_DECIMAL;
+		} else if (type == UUID.class) {
+			return UUID_STRING;
+		} else if (type == byte[].class) {
+			return BYTE_ARRAY;
+		} else {
+			return UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * @return the SimpleDateFormat pattern of a {@link #DATE_STRING} field or null for other fields
+	 */
+	@Nullable
+	public static String getDateFormat(int typeCode, DatabaseField databaseField) {
+		if (typeCode != DATE_STRING) {
+			return null;
+		}
+
+		return !databaseField.format().isEmpty() ? databaseField.format() : ORMLITE_DATE_FORMAT;
+	}
+}
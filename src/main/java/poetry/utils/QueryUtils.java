@@ -1,11 +1,25 @@
 package poetry.utils;
 
+import android.database.Cursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
 import java.security.InvalidParameterException;
 import java.util.Date;
 import java.util.List;
 
 public class QueryUtils
 {
+    /**
+     * The default maximum amount of bind arguments in a single SQLite statement.
+     * Reference: https://www.sqlite.org/limits.html#max_variable_number
+     */
+    public static final int SQLITE_MAX_VARIABLE_NUMBER = 999;
+
+    // Maps: amount of arguments -> "IN (?,...)"
+    private static final String[] cachedInClauses = new String[SQLITE_MAX_VARIABLE_NUMBER + 1];
+
     /**
      * Convert an Object to a String so that it can be used as a query parameter.
      * This method supports objects instantiated or derived from:
@@ -69,24 +83,283 @@ public class QueryUtils
             throw new RuntimeException("targetIds and targetIdArgs must be the same size");
         }
 
-        StringBuilder in_clause_builder = new StringBuilder(5 + (targetIds.size()));
-
-        in_clause_builder.append("IN (");
-
         for (int i = 0; i < targetIds.size(); ++i)
         {
             outputQueryArgs[i] = parseAttribute(targetIds.get(i));
+        }
 
-            in_clause_builder.append('?');
+        return getInClause(targetIds.size());
+    }
 
-            if (i != (targetIds.size() - 1))
+    /**
+     * Get an "IN (?, ...)" query part. Query parts for up to {@link #SQLITE_MAX_VARIABLE_NUMBER} arguments are cached.
+     *
+     * @param argumentCount the amount of arguments
+     * @return the query part
+     */
+    public static String getInClause(int argumentCount)
+    {
+        if (argumentCount <= SQLITE_MAX_VARIABLE_NUMBER)
+        {
+            // Racing threads create equal Strings, so no synchronization is needed
+            String in_clause = cachedInClauses[argumentCount];
+
+            if (in_clause == null)
+            {
+                in_clause = createInClause(argumentCount);
+                cachedInClauses[argumentCount] = in_clause;
+            }
+
+            return in_clause;
+        }
+
+        return createInClause(argumentCount);
+    }
+
+    private static String createInClause(int argumentCount)
+    {
+        StringBuilder in_clause_builder = new StringBuilder(5 + argumentCount * 2);
+
+        in_clause_builder.append("IN (");
+
+        for (int i = 0; i < argumentCount; ++i)
+        {
+            if (i != 0)
             {
                 in_clause_builder.append(',');
             }
+
+            in_clause_builder.append('?');
         }
 
         in_clause_builder.append(')');
 
         return in_clause_builder.toString();
     }
+
+    /**
+     * Run a query with an IN clause for any amount of IDs: the query runs once per chunk of IDs
+     * that fits in the maximum amount of bind arguments and the results are merged.
+     * The rows are in chunk order, so ORDER BY and LIMIT only apply per chunk.
+     *
+     * @param database the database to query
+     * @param sqlPrefix the query up to the IN clause, e.g. "SELECT * FROM 'table' WHERE id"
+     * @param prefixArgs the arguments of the query prefix or null
+     * @param ids the IDs
+     * @param idCount the amount of IDs to use from the array
+     * @return the results of all chunks
+     */
+    public static Cursor rawQueryInChunks(SQLiteDatabase database, String sqlPrefix, String[] prefixArgs, long[] ids, int idCount)
+    {
+        int prefix_arg_count = (prefixArgs != null) ? prefixArgs.length : 0;
+        int chunk_size = getChunkSize(prefix_arg_count);
+        Cursor[] cursors = new Cursor[getChunkCount(idCount, chunk_size)];
+
+        for (int chunk = 0; chunk < cursors.length; ++chunk)
+        {
+            int start = chunk * chunk_size;
+            int end = Math.min(start + chunk_size, idCount);
+            String[] args = createChunkArgs(prefixArgs, end - start);
+
+            for (int i = start; i < end; ++i)
+            {
+                args[prefix_arg_count + i - start] = Long.toString(ids[i]);
+            }
+
+            cursors[chunk] = database.rawQuery(sqlPrefix + " " + getInClause(end - start), args);
+        }
+
+        return (cursors.length == 1) ? cursors[0] : new MergeCursor(cursors);
+    }
+
+    /**
+     * Run a query with an IN clause for any amount of IDs (see {@link #rawQueryInChunks(SQLiteDatabase, String, String[], long[], int)}).
+     */
+    public static Cursor rawQueryInChunks(SQLiteDatabase database, String sqlPrefix, String[] prefixArgs, String[] ids, int idCount)
+    {
+        int prefix_arg_count = (prefixArgs != null) ? prefixArgs.length : 0;
+        int chunk_size = getChunkSize(prefix_arg_count);
+        Cursor[] cursors = new Cursor[getChunkCount(idCount, chunk_size)];
+
+        for (int chunk = 0; chunk < cursors.length; ++chunk)
+        {
+            int start = chunk * chunk_size;
+            int end = Math.min(start + chunk_size, idCount);
+            String[] args = createChunkArgs(prefixArgs, end - start);
+
+            System.arraycopy(ids, start, args, prefix_arg_count, end - start);
+
+            cursors[chunk] = database.rawQuery(sqlPrefix + " " + getInClause(end - start), args);
+        }
+
+        return (cursors.length == 1) ? cursors[0] : new MergeCursor(cursors);
+    }
+
+    /**
+     * Run an UPDATE or DELETE statement with an IN clause for any amount of IDs: the statement runs once per chunk of IDs
+     * that fits in the maximum amount of bind arguments. The IDs are bound as integers.
+     * This doesn't work for "NOT IN" clauses, because every chunk would affect the IDs of the other chunks.
+     *
+     * @param database the database
+     * @param sqlPrefix the statement up to the IN clause, e.g. "DELETE FROM 'table' WHERE id"
+     * @param prefixArgs the arguments of the statement prefix or null
+     * @param ids the IDs
+     * @param idCount the amount of IDs to use from the array
+     * @return the total amount of changed rows
+     */
+    public static int executeUpdateDeleteInChunks(SQLiteDatabase database, String sqlPrefix, String[] prefixArgs, long[] ids, int idCount)
+    {
+        return executeUpdateDeleteInChunks(database, sqlPrefix, prefixArgs, ids, null, idCount);
+    }
+
+    /**
+     * Run an UPDATE or DELETE statement with an IN clause for any amount of IDs
+     * (see {@link #executeUpdateDeleteInChunks(SQLiteDatabase, String, String[], long[], int)}).
+     * The IDs are bound as strings, e.g. for String or UUID IDs.
+     */
+    public static int executeUpdateDeleteInChunks(SQLiteDatabase database, String sqlPrefix, String[] prefixArgs, String[] ids, int idCount)
+    {
+        return executeUpdateDeleteInChunks(database, sqlPrefix, prefixArgs, null, ids, idCount);
+    }
+
+    /**
+     * @param longIds the IDs to bind as integers or null
+     * @param stringIds the IDs to bind as strings when longIds is null
+     */
+    private static int executeUpdateDeleteInChunks(SQLiteDatabase database, String sqlPrefix, String[] prefixArgs, long[] longIds, String[] stringIds, int idCount)
+    {
+        int prefix_arg_count = (prefixArgs != null) ? prefixArgs.length : 0;
+        int chunk_size = getChunkSize(prefix_arg_count);
+        int chunk_count = getChunkCount(idCount, chunk_size);
+        int changed_rows = 0;
+        SQLiteStatement statement = null;
+        int statement_chunk_size = -1;
+
+        try
+        {
+            for (int chunk = 0; chunk < chunk_count; ++chunk)
+            {
+                int start = chunk * chunk_size;
+                int end = Math.min(start + chunk_size, idCount);
+
+                // All chunks but the last have the same size and share a statement
+                if (statement == null || statement_chunk_size != end - start)
+                {
+                    if (statement != null)
+                    {
+                        statement.close();
+                    }
+
+                    statement = database.compileStatement(sqlPrefix + " " + getInClause(end - start));
+                    statement_chunk_size = end - start;
+                }
+
+                statement.clearBindings();
+
+                for (int i = 0; i < prefix_arg_count; ++i)
+                {
+                    statement.bindString(i + 1, prefixArgs[i]);
+                }
+
+                for (int i = start; i < end; ++i)
+                {
+                    if (longIds != null)
+                    {
+                        statement.bindLong(prefix_arg_count + i - start + 1, longIds[i]);
+                    }
+                    else
+                    {
+                        statement.bindString(prefix_arg_count + i - start + 1, stringIds[i]);
+                    }
+                }
+
+                changed_rows += statement.executeUpdateDelete();
+            }
+        }
+        finally
+        {
+            if (statement != null)
+            {
+                statement.close();
+            }
+        }
+
+        return changed_rows;
+    }
+
+    private static int getChunkSize(int prefixArgCount)
+    {
+        if (prefixArgCount >= SQLITE_MAX_VARIABLE_NUMBER)
+        {
+            throw new RuntimeException("too many query arguments: " + prefixArgCount);
+        }
+
+        return SQLITE_MAX_VARIABLE_NUMBER - prefixArgCount;
+    }
+
+    /**
+     * @return the amount of chunks (at least 1, so queries for zero IDs still return a cursor with the right columns)
+     */
+    private static int getChunkCount(int idCount, int chunkSize)
+    {
+        return Math.max(1, (idCount + chunkSize - 1) / chunkSize);
+    }
+
+    private static String[] createChunkArgs(String[] prefixArgs, int chunkIdCount)
+    {
+        String[] args = new String[(prefixArgs != null ? prefixArgs.length : 0) + chunkIdCount];
+
+        if (prefixArgs != null)
+        {
+            System.arraycopy(prefixArgs, 0, args, 0, prefixArgs.length);
+        }
+
+        return args;
+    }
+
+    /**
+     * Creates a keyset pagination condition: the rows that come after the specified key in the order of the columns.
+     * This is the expanded form of "(a, b) > (?, ?)" because row values require SQLite 3.15.
+     * The last column must be unique (e.g. the ID) and the columns must not contain null values.
+     *
+     * @param columnNames the columns of the sort order
+     * @param keyValues the values of the last row of the previous page (one per column)
+     * @param outputQueryArgs the list that the query arguments are added to
+     * @return the query part, e.g. "(a > ? OR (a = ? AND b > ?))"
+     */
+    public static String createKeysetCondition(String[] columnNames, String[] keyValues, List<String> outputQueryArgs)
+    {
+        if (columnNames.length != keyValues.length)
+        {
+            throw new RuntimeException("columnNames and keyValues must be the same size");
+        }
+
+        StringBuilder condition_builder = new StringBuilder("(");
+
+        for (int i = 0; i < columnNames.length; ++i)
+        {
+            if (i != 0)
+            {
+                condition_builder.append(" OR (");
+            }
+
+            for (int j = 0; j < i; ++j)
+            {
+                condition_builder.append(columnNames[j]).append(" = ? AND ");
+                outputQueryArgs.add(keyValues[j]);
+            }
+
+            condition_builder.append(columnNames[i]).append(" > ?");
+            outputQueryArgs.add(keyValues[i]);
+
+            if (i != 0)
+            {
+                condition_builder.append(')');
+            }
+        }
+
+        condition_builder.append(')');
+
+        return condition_builder.toString();
+    }
 }